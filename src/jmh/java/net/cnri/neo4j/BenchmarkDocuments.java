@@ -0,0 +1,248 @@
+package net.cnri.neo4j;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import net.cnri.cordra.api.CordraObject;
+import net.cnri.neo4j.moviesdb.MoviesImporter;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * Documents and schemas for the benchmarks: the bundled movies data with its relationships folded
+ * in, and synthetic deep, wide and large-array documents under Person-like schemas.
+ */
+class BenchmarkDocuments {
+
+    static class Document {
+        final CordraObject co;
+        final JsonObject schema;
+        final Map<String, JsonElement> pointerToSchemaMap;
+        Document(CordraObject co, JsonObject schema) {
+            this.co = co;
+            this.schema = schema;
+            this.pointerToSchemaMap = pointerToSchemaMap(schema, co.content);
+        }
+    }
+
+    private BenchmarkDocuments() { }
+
+    static List<Document> load(String dataset) {
+        switch (dataset) {
+        case "movies":
+            return movies();
+        case "deep":
+            return Collections.singletonList(new Document(deep(8, 2), deepSchema(8)));
+        case "wide":
+            return Collections.singletonList(new Document(wide(500), wideSchema(500)));
+        case "largeArray":
+            return Collections.singletonList(new Document(largeArray(5000, 200), largeArraySchema()));
+        default:
+            throw new IllegalArgumentException("Unknown dataset " + dataset);
+        }
+    }
+
+    static List<Document> movies() {
+        Map<String, JsonObject> schemas = new HashMap<>();
+        schemas.put("Person", readResource("/Person.schema.json").getAsJsonObject());
+        schemas.put("Movie", readResource("/Movie.schema.json").getAsJsonObject());
+        Map<String, CordraObject> objects = new LinkedHashMap<>();
+        for (JsonElement record : readResource("/moviesdb/records.json").getAsJsonArray()) {
+            CordraObject co = MoviesImporter.fromNeo4jResult(record.getAsJsonObject());
+            objects.put(co.id, co);
+        }
+        for (JsonElement element : readResource("/moviesdb/relationships.json").getAsJsonArray()) {
+            JsonObject item = element.getAsJsonObject();
+            String type = item.getAsJsonObject("r").get("type").getAsString();
+            String fromId = MoviesImporter.getId(item.getAsJsonObject("a").get("identity").getAsString());
+            String toId = MoviesImporter.getId(item.getAsJsonObject("b").get("identity").getAsString());
+            MoviesImporter.addRelationship(objects.get(fromId), type, toId);
+        }
+        List<Document> documents = new ArrayList<>();
+        for (CordraObject co : objects.values()) {
+            documents.add(new Document(co, schemas.get(co.type)));
+        }
+        return documents;
+    }
+
+    // nested "children" objects, fanOut per level, each with Person properties
+    static CordraObject deep(int depth, int fanOut) {
+        return cordraObject("test/deep", "Deep", deepContent(depth, fanOut, "root"));
+    }
+
+    private static JsonObject deepContent(int depth, int fanOut, String name) {
+        JsonObject content = personContent(name);
+        if (depth > 0) {
+            JsonObject children = new JsonObject();
+            for (int i = 0; i < fanOut; i++) {
+                children.add("child" + i, deepContent(depth - 1, fanOut, name + "." + i));
+            }
+            content.add("children", children);
+        }
+        return content;
+    }
+
+    static JsonObject deepSchema(int depth) {
+        JsonObject schema = personSchema();
+        if (depth > 0) {
+            JsonObject children = new JsonObject();
+            children.addProperty("type", "object");
+            children.add("additionalProperties", deepSchema(depth - 1));
+            schema.getAsJsonObject("properties").add("children", children);
+        }
+        return schema;
+    }
+
+    static CordraObject wide(int width) {
+        JsonObject content = personContent("wide");
+        for (int i = 0; i < width; i++) {
+            if (i % 2 == 0) {
+                content.addProperty("p" + i, "value " + i);
+            } else {
+                content.addProperty("p" + i, i);
+            }
+        }
+        return cordraObject("test/wide", "Wide", content);
+    }
+
+    static JsonObject wideSchema(int width) {
+        JsonObject schema = personSchema();
+        JsonObject properties = schema.getAsJsonObject("properties");
+        for (int i = 0; i < width; i++) {
+            properties.add("p" + i, typed(i % 2 == 0 ? "string" : "integer"));
+        }
+        return schema;
+    }
+
+    // a long array of primitives, a long array of references and an array of objects
+    static CordraObject largeArray(int size, int objects) {
+        JsonObject content = personContent("largeArray");
+        JsonArray nicknames = new JsonArray();
+        JsonArray actedIn = new JsonArray();
+        for (int i = 0; i < size; i++) {
+            nicknames.add("nickname " + i);
+            actedIn.add(MoviesImporter.getId(String.valueOf(i)));
+        }
+        JsonArray roles = new JsonArray();
+        for (int i = 0; i < objects; i++) {
+            JsonObject role = new JsonObject();
+            role.addProperty("name", "role " + i);
+            role.addProperty("year", 1950 + i % 70);
+            role.addProperty("movie", MoviesImporter.getId(String.valueOf(i)));
+            roles.add(role);
+        }
+        content.add("nicknames", nicknames);
+        content.add("ACTED_IN", actedIn);
+        content.add("roles", roles);
+        return cordraObject("test/largeArray", "LargeArray", content);
+    }
+
+    static JsonObject largeArraySchema() {
+        JsonObject schema = personSchema();
+        JsonObject properties = schema.getAsJsonObject("properties");
+        properties.add("nicknames", arrayOf(typed("string")));
+        properties.add("ACTED_IN", arrayOf(handleReference()));
+        JsonObject role = typed("object");
+        JsonObject roleProperties = new JsonObject();
+        roleProperties.add("name", typed("string"));
+        roleProperties.add("year", typed("integer"));
+        roleProperties.add("movie", handleReference());
+        role.add("properties", roleProperties);
+        properties.add("roles", arrayOf(role));
+        return schema;
+    }
+
+    private static JsonObject personContent(String name) {
+        JsonObject content = new JsonObject();
+        content.addProperty("name", name);
+        content.addProperty("born", 1964);
+        return content;
+    }
+
+    private static JsonObject personSchema() {
+        JsonObject schema = typed("object");
+        JsonObject properties = new JsonObject();
+        properties.add("name", typed("string"));
+        properties.add("born", typed("number"));
+        schema.add("properties", properties);
+        return schema;
+    }
+
+    private static JsonObject typed(String type) {
+        JsonObject schema = new JsonObject();
+        schema.addProperty("type", type);
+        return schema;
+    }
+
+    private static JsonObject arrayOf(JsonObject items) {
+        JsonObject schema = typed("array");
+        schema.add("items", items);
+        return schema;
+    }
+
+    private static JsonObject handleReference() {
+        JsonObject schema = typed("string");
+        JsonObject types = new JsonObject();
+        JsonArray movie = new JsonArray();
+        movie.add("Movie");
+        types.add("types", movie);
+        JsonObject reference = new JsonObject();
+        reference.add("handleReference", types);
+        JsonObject type = new JsonObject();
+        type.add("type", reference);
+        schema.add("cordra", type);
+        return schema;
+    }
+
+    private static CordraObject cordraObject(String id, String type, JsonObject content) {
+        CordraObject co = new CordraObject();
+        co.id = id;
+        co.type = type;
+        co.content = content;
+        return co;
+    }
+
+    /**
+     * The pointer-to-schema map Cordra would pass to the hooks, for schemas made of properties,
+     * additionalProperties and items only.
+     */
+    static Map<String, JsonElement> pointerToSchemaMap(JsonObject schema, JsonElement content) {
+        Map<String, JsonElement> map = new HashMap<>();
+        addPointers(map, "", schema, content);
+        return map;
+    }
+
+    private static void addPointers(Map<String, JsonElement> map, String pointer, JsonElement schemaElement, JsonElement content) {
+        if (schemaElement == null || !schemaElement.isJsonObject()) return;
+        JsonObject schema = schemaElement.getAsJsonObject();
+        map.put(pointer, schema);
+        if (content.isJsonObject()) {
+            JsonObject properties = schema.getAsJsonObject("properties");
+            for (Map.Entry<String, JsonElement> entry : content.getAsJsonObject().entrySet()) {
+                JsonElement propertySchema = properties != null && properties.has(entry.getKey()) ? properties.get(entry.getKey()) : schema.get("additionalProperties");
+                addPointers(map, pointer + "/" + entry.getKey(), propertySchema, entry.getValue());
+            }
+        } else if (content.isJsonArray()) {
+            JsonArray array = content.getAsJsonArray();
+            for (int i = 0; i < array.size(); i++) {
+                addPointers(map, pointer + "/" + i, schema.get("items"), array.get(i));
+            }
+        }
+    }
+
+    private static JsonElement readResource(String name) {
+        try (InputStream in = BenchmarkDocuments.class.getResourceAsStream(name);
+             Reader reader = new InputStreamReader(in, StandardCharsets.UTF_8)) {
+            return JsonParser.parseReader(reader);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
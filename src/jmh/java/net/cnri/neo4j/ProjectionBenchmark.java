@@ -0,0 +1,130 @@
+package net.cnri.neo4j;
+
+import com.exhypothesi.json.Json;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonPrimitive;
+import org.neo4j.driver.Query;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per-object cost of the indexing hot path, without a database. Each invocation handles the next
+ * document of the dataset in turn. Run with ./gradlew jmh; the gc profiler adds allocation rates.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class ProjectionBenchmark {
+
+    @Param({"movies", "deep", "wide", "largeArray"})
+    public String dataset;
+
+    // whether the projections carry content hashes, as with incrementalUpdate
+    @Param({"false", "true"})
+    public boolean contentHashes;
+
+    private static class Input {
+        final BenchmarkDocuments.Document document;
+        final MappingPlan plan;
+        final GraphProjection projection;
+        Input(BenchmarkDocuments.Document document, boolean contentHashes) {
+            this.document = document;
+            this.plan = MappingPlan.compile(document.schema);
+            this.projection = GraphProjection.project(document.co, plan, document.pointerToSchemaMap, true, contentHashes);
+        }
+    }
+
+    private final List<Input> inputs = new ArrayList<>();
+    private CypherTemplates templates;
+    private int next;
+
+    @Setup
+    public void setUp() {
+        for (BenchmarkDocuments.Document document : BenchmarkDocuments.load(dataset)) {
+            inputs.add(new Input(document, contentHashes));
+        }
+        templates = new CypherTemplates(10000, new IndexerStats());
+        for (Input input : inputs) {
+            templates.createQuery(input.projection);
+            templates.updateQuery(input.projection);
+        }
+    }
+
+    private Input next() {
+        Input input = inputs.get(next);
+        next = (next + 1) % inputs.size();
+        return input;
+    }
+
+    @Benchmark
+    public void denest(Blackhole blackhole) {
+        Json.denest(next().document.co.content, new Json.Visitor() {
+            @Override
+            public void beginObject(CharSequence pointer, int sourcePointerLength, String relationship) {
+                blackhole.consume(pointer.length());
+            }
+
+            @Override
+            public void primitiveProperty(String key, JsonPrimitive value) {
+                blackhole.consume(value);
+            }
+
+            @Override
+            public void arrayProperty(String key, JsonArray array) {
+                blackhole.consume(array);
+            }
+
+            @Override
+            public void endObject(CharSequence pointer) {
+                blackhole.consume(pointer.length());
+            }
+        });
+    }
+
+    @Benchmark
+    public GraphProjection project() {
+        Input input = next();
+        return GraphProjection.project(input.document.co, input.plan, input.document.pointerToSchemaMap, true, contentHashes);
+    }
+
+    @Benchmark
+    public void keysAndParameters(Blackhole blackhole) {
+        List<GraphProjection.ProjectedNode> nodes = next().projection.nodes;
+        for (int i = 0; i < nodes.size(); i++) {
+            blackhole.consume(CypherTemplates.keysAndParameters(i, nodes.get(i).properties));
+        }
+    }
+
+    // what a template cache miss costs
+    @Benchmark
+    public String buildAndRenderCreate() {
+        return CypherTemplates.render(CypherTemplates.buildCreateGraph(next().projection));
+    }
+
+    @Benchmark
+    public String buildAndRenderUpdate() {
+        return CypherTemplates.render(CypherTemplates.buildUpdateGraph(next().projection));
+    }
+
+    // projection through to the statement, with the template cache warm, as in the hooks
+    @Benchmark
+    public Query createStatement() {
+        Input input = next();
+        GraphProjection projection = GraphProjection.project(input.document.co, input.plan, input.document.pointerToSchemaMap, true, contentHashes);
+        return templates.createQuery(projection);
+    }
+
+    @Benchmark
+    public Query updateStatement() {
+        Input input = next();
+        GraphProjection projection = GraphProjection.project(input.document.co, input.plan, input.document.pointerToSchemaMap, true, contentHashes);
+        return templates.updateQuery(projection);
+    }
+}
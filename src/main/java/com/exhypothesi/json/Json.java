@@ -3,8 +3,11 @@ package com.exhypothesi.json;
 import com.google.gson.JsonArray;
 import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
+import com.google.gson.JsonPrimitive;
 
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Deque;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -19,6 +22,29 @@ public class Json {
         }
     }
 
+    /**
+     * Receives the denested objects of a document as events, in document order. Pointers are views
+     * of a buffer that is reused during the walk and must be copied if they are kept after the call.
+     */
+    public interface Visitor {
+        /**
+         * Starts a denested object. For nested objects, the first sourcePointerLength characters of
+         * pointer are the pointer of the object it hangs off and relationship is the property name;
+         * for the root, sourcePointerLength is -1 and relationship is null.
+         */
+        void beginObject(CharSequence pointer, int sourcePointerLength, String relationship);
+
+        void primitiveProperty(String key, JsonPrimitive value);
+
+        /**
+         * An array property with at least one primitive element. Object elements of the array are
+         * reported as nested objects and should be skipped here.
+         */
+        void arrayProperty(String key, JsonArray array);
+
+        void endObject(CharSequence pointer);
+    }
+
     private final JsonElement json;
     private final Map<String, JsonObject> pointerToObjectMap;
     private final Map<String, List<Relative>> sourceToTargetWithRelationship;
@@ -38,43 +64,84 @@ public class Json {
     }
 
     public void denest() {
-        denestJsonElement(json, "", null, "");
+        denest(json, new MapBuildingVisitor());
     }
 
-    private void denestJsonElement(JsonElement element, String jsonPointer, String sourceJsonPointer, String relationship) {
-        if (element.isJsonObject()) {
-            JsonObject obj = element.getAsJsonObject();
-            JsonObject target = new JsonObject();
-
-            for (Map.Entry<String, JsonElement> entry : obj.entrySet()) {
-                if (entry.getValue().isJsonPrimitive()) {
-                    target.add(entry.getKey(), entry.getValue());
-                } else if (entry.getValue().isJsonArray()) {
-                    JsonArray array = denestJsonArray(entry.getValue().getAsJsonArray(), jsonPointer + "/" + entry.getKey(), jsonPointer, entry.getKey());
-                    if (array.size() > 0) target.add(entry.getKey(), array);
-                } else {
-                    denestJsonElement(entry.getValue(), jsonPointer + "/" + entry.getKey(), jsonPointer, entry.getKey());
+    public static void denest(JsonElement json, Visitor visitor) {
+        new Walker(visitor).walkObject(json, -1, null);
+    }
+
+    private static class Walker {
+        private final Visitor visitor;
+        private final StringBuilder pointer = new StringBuilder();
+
+        Walker(Visitor visitor) {
+            this.visitor = visitor;
+        }
+
+        void walkObject(JsonElement element, int sourcePointerLength, String relationship) {
+            if (!element.isJsonObject()) return;
+            visitor.beginObject(pointer, sourcePointerLength, relationship);
+            int length = pointer.length();
+            for (Map.Entry<String, JsonElement> entry : element.getAsJsonObject().entrySet()) {
+                String key = entry.getKey();
+                JsonElement value = entry.getValue();
+                if (value.isJsonPrimitive()) {
+                    visitor.primitiveProperty(key, value.getAsJsonPrimitive());
+                } else if (value.isJsonArray()) {
+                    JsonArray array = value.getAsJsonArray();
+                    boolean hasPrimitives = false;
+                    int index = 0;
+                    for (JsonElement arrayElement : array) {
+                        if (arrayElement.isJsonPrimitive()) {
+                            hasPrimitives = true;
+                        } else if (arrayElement.isJsonObject()) {
+                            pointer.append('/').append(key).append('/').append(index);
+                            walkObject(arrayElement, length, key);
+                            pointer.setLength(length);
+                        }
+                        index++;
+                    }
+                    if (hasPrimitives) visitor.arrayProperty(key, array);
+                } else if (value.isJsonObject()) {
+                    pointer.append('/').append(key);
+                    walkObject(value, length, key);
+                    pointer.setLength(length);
                 }
             }
+            visitor.endObject(pointer);
+        }
+    }
 
-            pointerToObjectMap.put(jsonPointer, target);
-            if (sourceJsonPointer != null) {
-                sourceToTargetWithRelationship.computeIfAbsent(sourceJsonPointer, k -> new ArrayList<>()).add(new Relative(relationship, jsonPointer));
+    private class MapBuildingVisitor implements Visitor {
+        private final Deque<JsonObject> targets = new ArrayDeque<>();
+
+        @Override
+        public void beginObject(CharSequence pointer, int sourcePointerLength, String relationship) {
+            targets.push(new JsonObject());
+            if (sourcePointerLength >= 0) {
+                String sourcePointer = pointer.subSequence(0, sourcePointerLength).toString();
+                sourceToTargetWithRelationship.computeIfAbsent(sourcePointer, k -> new ArrayList<>()).add(new Relative(relationship, pointer.toString()));
             }
         }
-    }
 
-    private JsonArray denestJsonArray(JsonArray jsonArray, String jsonPointer, String sourceJsonPointer, String relationship) {
-        JsonArray resultArray = new JsonArray();
-        int index = 0;
-        for (JsonElement element : jsonArray) {
-            if (element.isJsonPrimitive()) {
-                resultArray.add(element);
-            } else if (element.isJsonObject()) {
-                denestJsonElement(element, jsonPointer + "/" + index, sourceJsonPointer, relationship);
+        @Override
+        public void primitiveProperty(String key, JsonPrimitive value) {
+            targets.peek().add(key, value);
+        }
+
+        @Override
+        public void arrayProperty(String key, JsonArray array) {
+            JsonArray resultArray = new JsonArray();
+            for (JsonElement element : array) {
+                if (element.isJsonPrimitive()) resultArray.add(element);
             }
-            index++;
+            targets.peek().add(key, resultArray);
+        }
+
+        @Override
+        public void endObject(CharSequence pointer) {
+            pointerToObjectMap.put(pointer.toString(), targets.pop());
         }
-        return resultArray;
     }
 }
@@ -0,0 +1,301 @@
+package net.cnri.neo4j;
+
+import com.google.gson.JsonObject;
+import net.cnri.neo4j.GraphProjection.ExternalRelationship;
+import net.cnri.neo4j.GraphProjection.InternalRelationship;
+import net.cnri.neo4j.GraphProjection.ProjectedNode;
+import net.cnri.cordra.api.BadRequestCordraException;
+import org.neo4j.driver.Value;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryNotEmptyException;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.LocalTime;
+import java.time.OffsetDateTime;
+import java.time.OffsetTime;
+import java.time.ZonedDateTime;
+import java.util.*;
+import java.util.stream.Stream;
+
+/**
+ * Writes projected objects as CSV files for neo4j-admin import. The nodes, labels, properties and
+ * relationships are exactly those {@link CypherTemplates#createQuery} would write, including the
+ * content hashes when incrementalUpdate is on, so incremental updates from the hooks can take over
+ * after the import.
+ * <p>
+ * Nodes are split into one file per shape (labels plus typed property keys), each with a separate
+ * header file written at the end; only a bounded number of files are held open at once. Every
+ * external reference also gets a bare CordraObject node, the node MERGE would create for a
+ * target that does not exist; these come last and are dropped as duplicates wherever the target
+ * was exported, so the import must run with --skip-duplicate-nodes, as in the generated
+ * import.args file.
+ */
+public class CsvExporter implements Closeable {
+
+    public static final String ARRAY_DELIMITER = "\u001F";
+
+    private static class Column {
+        final String key;
+        final String type;
+        Column(String key, String type) {
+            this.key = key;
+            this.type = type;
+        }
+    }
+
+    private static class NodeFile {
+        final String labels;
+        final List<Column> columns;
+        final Path data;
+        final Path header;
+        NodeFile(String labels, List<Column> columns, Path data, Path header) {
+            this.labels = labels;
+            this.columns = columns;
+            this.data = data;
+            this.header = header;
+        }
+    }
+
+    private final Path directory;
+    private final Map<String, NodeFile> nodeFiles = new LinkedHashMap<>();
+    private final Map<Path, Writer> openWriters;
+    private final Writer stubNodes;
+    private final Writer relationships;
+    private final StringBuilder row = new StringBuilder();
+    private long objectCount;
+    private long nodeCount;
+    private long relationshipCount;
+
+    /**
+     * Writes to the given directory, which must be empty: node files are appended to, so files
+     * left by an earlier export would be mixed into this one.
+     */
+    public CsvExporter(Path directory, int maxOpenFiles) throws IOException {
+        this.directory = directory;
+        Files.createDirectories(directory);
+        try (Stream<Path> entries = Files.list(directory)) {
+            if (entries.findAny().isPresent()) throw new DirectoryNotEmptyException(directory.toString());
+        }
+        this.openWriters = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Path, Writer> eldest) {
+                if (size() <= Math.max(1, maxOpenFiles)) return false;
+                try {
+                    eldest.getValue().close();
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+                return true;
+            }
+        };
+        this.stubNodes = Files.newBufferedWriter(directory.resolve("stub-nodes.csv"), StandardCharsets.UTF_8);
+        this.relationships = Files.newBufferedWriter(directory.resolve("relationships.csv"), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Resolves a directory named by a caller under the export root. Absolute paths and paths with
+     * .. segments are refused, so that an export cannot write anywhere else on the server.
+     */
+    public static Path resolveDirectory(Path root, String directory) throws BadRequestCordraException {
+        Path relative;
+        try {
+            relative = Paths.get(directory);
+        } catch (InvalidPathException e) {
+            throw new BadRequestCordraException("Invalid export directory " + directory);
+        }
+        if (directory.isBlank() || relative.isAbsolute() || relative.getRoot() != null) {
+            throw new BadRequestCordraException("Export directory must be a relative path");
+        }
+        for (Path segment : relative) {
+            if ("..".equals(segment.toString())) {
+                throw new BadRequestCordraException("Export directory must not contain ..");
+            }
+        }
+        Path normalizedRoot = root.normalize();
+        Path resolved = normalizedRoot.resolve(relative).normalize();
+        if (resolved.equals(normalizedRoot) || !resolved.startsWith(normalizedRoot)) {
+            throw new BadRequestCordraException("Invalid export directory " + directory);
+        }
+        return resolved;
+    }
+
+    public void add(GraphProjection projection) throws IOException {
+        for (int i = 0; i < projection.nodes.size(); i++) {
+            writeNode(projection, i);
+        }
+        for (InternalRelationship relationship : projection.internalRelationships) {
+            writeRelationship(projection.getNodeId(relationship.source), projection.getNodeId(relationship.target), relationship.type);
+        }
+        for (ExternalRelationship relationship : projection.externalRelationships) {
+            writeRelationship(projection.getNodeId(relationship.source), relationship.reference, relationship.type);
+            row.setLength(0);
+            appendQuoted(row, relationship.reference);
+            stubNodes.append(row).append('\n');
+        }
+        objectCount++;
+    }
+
+    private void writeNode(GraphProjection projection, int index) throws IOException {
+        ProjectedNode node = projection.nodes.get(index);
+        String labels;
+        if (index == 0) {
+            labels = projection.type + ":CordraObject";
+        } else {
+            labels = node.label == null ? "_CordraObject" : node.label + ":_CordraObject";
+        }
+        List<Column> columns = new ArrayList<>();
+        StringBuilder shape = new StringBuilder(labels);
+        for (Map.Entry<String, Object> entry : new TreeMap<>(node.properties).entrySet()) {
+            String type = csvType(entry.getValue());
+            if (type == null) continue;
+            columns.add(new Column(entry.getKey(), type));
+            shape.append('\u0000').append(entry.getKey()).append(':').append(type);
+        }
+        NodeFile nodeFile = nodeFiles.get(shape.toString());
+        if (nodeFile == null) {
+            int n = nodeFiles.size();
+            nodeFile = new NodeFile(labels, columns, directory.resolve("nodes-" + n + ".csv"), directory.resolve("nodes-" + n + "-header.csv"));
+            nodeFiles.put(shape.toString(), nodeFile);
+        }
+        row.setLength(0);
+        for (Column column : nodeFile.columns) {
+            if (row.length() > 0) row.append(',');
+            appendValue(row, node.properties.get(column.key));
+        }
+        writer(nodeFile.data).append(row).append('\n');
+        nodeCount++;
+    }
+
+    private void writeRelationship(String start, String end, String type) throws IOException {
+        row.setLength(0);
+        appendQuoted(row, start);
+        row.append(',');
+        appendQuoted(row, end);
+        row.append(',');
+        appendQuoted(row, type);
+        relationships.append(row).append('\n');
+        relationshipCount++;
+    }
+
+    private Writer writer(Path path) throws IOException {
+        Writer writer = openWriters.get(path);
+        if (writer == null) {
+            writer = Files.newBufferedWriter(path, StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+            openWriters.put(path, writer);
+        }
+        return writer;
+    }
+
+    /**
+     * Closes the data files and writes the header files and an import.args file with the
+     * neo4j-admin import arguments, one per line. Returns counts of what was written.
+     */
+    public JsonObject finish() throws IOException {
+        close();
+        List<String> args = new ArrayList<>();
+        for (NodeFile nodeFile : nodeFiles.values()) {
+            StringBuilder header = new StringBuilder();
+            for (Column column : nodeFile.columns) {
+                if (header.length() > 0) header.append(',');
+                header.append(column.key.equals("_id") ? "_id:ID" : column.key + ":" + column.type);
+            }
+            Files.writeString(nodeFile.header, header.append('\n'));
+            args.add("--nodes=" + nodeFile.labels + "=" + nodeFile.header.toAbsolutePath() + "," + nodeFile.data.toAbsolutePath());
+        }
+        Path stubHeader = directory.resolve("stub-nodes-header.csv");
+        Files.writeString(stubHeader, "_id:ID\n");
+        args.add("--nodes=CordraObject=" + stubHeader.toAbsolutePath() + "," + directory.resolve("stub-nodes.csv").toAbsolutePath());
+        Path relationshipHeader = directory.resolve("relationships-header.csv");
+        Files.writeString(relationshipHeader, ":START_ID,:END_ID,:TYPE\n");
+        args.add("--relationships=" + relationshipHeader.toAbsolutePath() + "," + directory.resolve("relationships.csv").toAbsolutePath());
+        args.add("--id-type=STRING");
+        args.add("--array-delimiter=U+001F");
+        args.add("--multiline-fields=true");
+        args.add("--skip-duplicate-nodes=true");
+        Files.write(directory.resolve("import.args"), args, StandardCharsets.UTF_8);
+
+        JsonObject json = new JsonObject();
+        json.addProperty("directory", directory.toAbsolutePath().toString());
+        json.addProperty("objectCount", objectCount);
+        json.addProperty("nodeCount", nodeCount);
+        json.addProperty("relationshipCount", relationshipCount);
+        json.addProperty("nodeFileCount", nodeFiles.size());
+        return json;
+    }
+
+    @Override
+    public void close() throws IOException {
+        for (Writer writer : openWriters.values()) {
+            writer.close();
+        }
+        openWriters.clear();
+        stubNodes.close();
+        relationships.close();
+    }
+
+    // the neo4j-admin import type of a projected property, or null if it has no value
+    static String csvType(Object value) {
+        if (value instanceof String) return "string";
+        if (!(value instanceof Value) || ((Value) value).isNull()) return null;
+        Object object = ((Value) value).asObject();
+        if (object instanceof List) {
+            for (Object element : (List<?>) object) {
+                if (element != null) return scalarType(element) + "[]";
+            }
+            return "string[]";
+        }
+        return scalarType(object);
+    }
+
+    private static String scalarType(Object object) {
+        if (object instanceof Long) return "long";
+        if (object instanceof Double) return "double";
+        if (object instanceof Boolean) return "boolean";
+        if (object instanceof LocalDate) return "date";
+        if (object instanceof OffsetDateTime || object instanceof ZonedDateTime) return "datetime";
+        if (object instanceof LocalDateTime) return "localdatetime";
+        if (object instanceof OffsetTime) return "time";
+        if (object instanceof LocalTime) return "localtime";
+        return "string";
+    }
+
+    private static void appendValue(StringBuilder sb, Object value) {
+        if (value instanceof String) {
+            appendQuoted(sb, (String) value);
+            return;
+        }
+        Object object = ((Value) value).asObject();
+        if (object instanceof List) {
+            StringBuilder elements = new StringBuilder();
+            for (Object element : (List<?>) object) {
+                if (elements.length() > 0) elements.append(ARRAY_DELIMITER);
+                elements.append(element);
+            }
+            appendQuoted(sb, elements.toString());
+        } else if (object instanceof String) {
+            appendQuoted(sb, (String) object);
+        } else {
+            sb.append(object);
+        }
+    }
+
+    private static void appendQuoted(StringBuilder sb, String value) {
+        sb.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"') sb.append('"');
+            sb.append(c);
+        }
+        sb.append('"');
+    }
+}
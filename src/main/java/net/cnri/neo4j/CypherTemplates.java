@@ -0,0 +1,750 @@
+package net.cnri.neo4j;
+
+import com.google.gson.JsonObject;
+import net.cnri.neo4j.GraphProjection.ExternalRelationship;
+import net.cnri.neo4j.GraphProjection.InternalRelationship;
+import net.cnri.neo4j.GraphProjection.ProjectedNode;
+import org.apache.commons.lang3.tuple.ImmutablePair;
+import org.neo4j.cypherdsl.core.*;
+import org.neo4j.cypherdsl.core.renderer.Configuration;
+import org.neo4j.cypherdsl.core.renderer.Renderer;
+import org.neo4j.driver.Query;
+
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Renders parameterized create/update statements and caches the rendered text by the structural
+ * shape of the projected graph, so that same-shaped objects share one query string (and one
+ * Neo4j query plan) and only differ in their parameters.
+ */
+public class CypherTemplates {
+
+    private static final String DELETE_QUERY = render(buildDeleteStatement().build());
+    private static final String STORED_GRAPH_QUERY = render(buildStoredGraphStatement());
+    private static final String SET_GRAPH_HASH_QUERY = render(buildSetGraphHashStatement());
+
+    private final int maxSize;
+    private final Map<String, String> templates;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private final IndexerStats stats;
+
+    public CypherTemplates(int maxSize, IndexerStats stats) {
+        this.maxSize = maxSize;
+        this.stats = stats;
+        this.templates = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+                if (size() > CypherTemplates.this.maxSize) {
+                    evictions.incrementAndGet();
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    public Query createQuery(GraphProjection projection) {
+        String cypherQuery = getTemplate(shapeKey("create", projection), () -> render(buildCreateGraph(projection)));
+        return new Query(cypherQuery, parameters(projection, true));
+    }
+
+    public Query updateQuery(GraphProjection projection) {
+        String cypherQuery = getTemplate(shapeKey("update", projection), () -> render(buildUpdateGraph(projection)));
+        return new Query(cypherQuery, parameters(projection, false));
+    }
+
+    /**
+     * Builds the statements that replace the graphs of many objects in one transaction.
+     */
+    public List<Query> batchUpdateQueries(List<GraphProjection> projections) {
+        List<Object> ids = new ArrayList<>();
+        BatchRows rows = new BatchRows();
+        for (GraphProjection projection : projections) {
+            ids.add(projection.id);
+            for (int i = 0; i < projection.nodes.size(); i++) {
+                rows.addNode(projection, i);
+            }
+            for (InternalRelationship relationship : projection.internalRelationships) {
+                rows.addInternalRelationship(projection, relationship);
+            }
+            for (ExternalRelationship relationship : projection.externalRelationships) {
+                rows.addExternalRelationship(projection.getNodeId(relationship.source), relationship.source == 0, relationship.type, relationship.reference);
+            }
+        }
+
+        List<Query> queries = new ArrayList<>();
+        queries.add(new Query(getTemplate("batch:deleteInternal", () -> render(buildBatchDeleteInternalStatement())), Map.of("rows", ids)));
+        queries.add(new Query(getTemplate("batch:deleteExternal", () -> render(buildBatchDeleteExternalStatement())), Map.of("rows", ids)));
+        rows.addQueries(queries);
+        return queries;
+    }
+
+    /**
+     * Deletes up to limit nodes with the given label; run until it deletes fewer than limit.
+     */
+    public Query deleteLabelBatchQuery(String label, int limit) {
+        String cypherQuery = getTemplate(batchKey("delete:label", label), () -> render(buildDeleteLabelBatchStatement(label)));
+        return new Query(cypherQuery, Map.of("limit", limit));
+    }
+
+    /**
+     * Sets _owner on up to limit nodes written without it, from the root they hang off, and
+     * deletes those no root reaches any more; run until it touches fewer than limit nodes.
+     */
+    public Query backfillOwnerBatchQuery(int limit) {
+        String cypherQuery = getTemplate("batch:backfillOwner", () -> render(buildBackfillOwnerBatchStatement()));
+        return new Query(cypherQuery, Map.of("limit", limit));
+    }
+
+    /**
+     * Returns the _id of up to limit root nodes of the given type, as id.
+     */
+    public Query typeIdsBatchQuery(String type, int limit) {
+        String cypherQuery = getTemplate(batchKey("delete:typeIds", type), () -> render(buildTypeIdsBatchStatement(type)));
+        return new Query(cypherQuery, Map.of("limit", limit));
+    }
+
+    /**
+     * Builds the statements that delete the whole graphs of many objects in one transaction.
+     */
+    public List<Query> deleteObjectsQueries(List<String> ids) {
+        List<Query> queries = new ArrayList<>();
+        queries.add(new Query(getTemplate("batch:deleteInternal", () -> render(buildBatchDeleteInternalStatement())), Map.of("rows", ids)));
+        queries.add(new Query(getTemplate("batch:deleteRoots", () -> render(buildBatchDeleteRootsStatement())), Map.of("rows", ids)));
+        return queries;
+    }
+
+    /**
+     * Builds the statements that merge buffered external relationships, one UNWIND statement per
+     * source kind and relationship type. Used after a reindex has written every node.
+     */
+    public List<Query> deferredRelationshipQueries(List<ExternalEdgeBuffer.Edge> edges) {
+        BatchRows rows = new BatchRows();
+        for (ExternalEdgeBuffer.Edge edge : edges) {
+            rows.addExternalRelationship(edge.source, edge.sourceIsRoot, edge.type, edge.target);
+        }
+        List<Query> queries = new ArrayList<>();
+        rows.addQueries(queries);
+        return queries;
+    }
+
+    /**
+     * Builds the statements that clear the content hashes of the sources of deferred relationships
+     * that could not be merged, and the graph hashes of their objects, so that the next incremental
+     * update of those objects rewrites the sources with their relationships rather than skipping them.
+     */
+    public List<Query> clearSourceHashesQueries(List<ExternalEdgeBuffer.Edge> edges) {
+        Set<String> rootIds = new LinkedHashSet<>();
+        Set<String> childIds = new LinkedHashSet<>();
+        for (ExternalEdgeBuffer.Edge edge : edges) {
+            (edge.sourceIsRoot ? rootIds : childIds).add(edge.source);
+        }
+        List<Query> queries = new ArrayList<>();
+        if (!rootIds.isEmpty()) {
+            queries.add(new Query(getTemplate("deferred:clearRootHashes", () -> render(buildBatchClearRootHashesStatement())), Map.of("rows", new ArrayList<>(rootIds))));
+        }
+        if (!childIds.isEmpty()) {
+            queries.add(new Query(getTemplate("deferred:clearChildHashes", () -> render(buildBatchClearChildHashesStatement())), Map.of("rows", new ArrayList<>(childIds))));
+        }
+        return queries;
+    }
+
+    /**
+     * Builds the statements that bring a stored graph up to date with the projection, touching only
+     * the nodes in the diff: removed nodes are deleted, and added or changed nodes are written
+     * together with their outgoing relationships.
+     */
+    public List<Query> incrementalUpdateQueries(GraphProjection projection, GraphDiff diff) {
+        List<Query> queries = new ArrayList<>();
+        if (!diff.removedNodeIds.isEmpty()) {
+            queries.add(new Query(getTemplate("diff:deleteNodes", () -> render(buildBatchDeleteNodesStatement())), Map.of("rows", diff.removedNodeIds)));
+        }
+        List<Object> changedChildIds = new ArrayList<>();
+        for (int i : diff.changedNodes) {
+            if (i > 0) changedChildIds.add(projection.getNodeId(i));
+        }
+        if (diff.changedNodes.contains(0)) {
+            queries.add(new Query(getTemplate("diff:deleteOutgoingFromRoot", () -> render(buildBatchDeleteOutgoingStatement("CordraObject"))), Map.of("rows", List.of(projection.id))));
+        }
+        if (!changedChildIds.isEmpty()) {
+            queries.add(new Query(getTemplate("diff:deleteOutgoing", () -> render(buildBatchDeleteOutgoingStatement("_CordraObject"))), Map.of("rows", changedChildIds)));
+        }
+        BatchRows rows = new BatchRows();
+        Set<Integer> written = diff.writtenNodes();
+        for (int i : written) {
+            rows.addNode(projection, i);
+        }
+        for (InternalRelationship relationship : projection.internalRelationships) {
+            if (diff.writesRelationship(relationship, written)) {
+                rows.addInternalRelationship(projection, relationship);
+            }
+        }
+        for (ExternalRelationship relationship : projection.externalRelationships) {
+            if (diff.writesRelationship(relationship, written)) {
+                rows.addExternalRelationship(projection.getNodeId(relationship.source), relationship.source == 0, relationship.type, relationship.reference);
+            }
+        }
+        rows.addQueries(queries);
+        queries.add(new Query(SET_GRAPH_HASH_QUERY, Map.of("id", projection.id, "graphHash", projection.graphHash)));
+        return queries;
+    }
+
+    /**
+     * Rows of a batch, grouped by everything that cannot be a parameter (labels and relationship
+     * types); each group is written with a single UNWIND statement.
+     */
+    private class BatchRows {
+        final Map<String, List<Object>> rootRowsByType = new LinkedHashMap<>();
+        final Map<String, List<Object>> childRowsByLabel = new LinkedHashMap<>();
+        final Map<List<Object>, List<Object>> internalRowsBySourceAndType = new LinkedHashMap<>();
+        final Map<List<Object>, List<Object>> externalRowsBySourceAndType = new LinkedHashMap<>();
+
+        void addNode(GraphProjection projection, int i) {
+            ProjectedNode node = projection.nodes.get(i);
+            Map<String, List<Object>> rowsByLabel = i == 0 ? rootRowsByType : childRowsByLabel;
+            rowsByLabel.computeIfAbsent(node.label, k -> new ArrayList<>())
+                    .add(Map.of("id", projection.getNodeId(i), "props", node.properties));
+        }
+
+        void addInternalRelationship(GraphProjection projection, InternalRelationship relationship) {
+            internalRowsBySourceAndType.computeIfAbsent(List.of(relationship.source == 0, relationship.type), k -> new ArrayList<>())
+                    .add(Map.of("source", projection.getNodeId(relationship.source), "target", projection.getNodeId(relationship.target)));
+        }
+
+        void addExternalRelationship(String source, boolean sourceIsRoot, String type, String target) {
+            externalRowsBySourceAndType.computeIfAbsent(List.of(sourceIsRoot, type), k -> new ArrayList<>())
+                    .add(Map.of("source", source, "target", target));
+        }
+
+        void addQueries(List<Query> queries) {
+            rootRowsByType.forEach((type, rows) -> {
+                String cypherQuery = getTemplate(batchKey("batch:root", type), () -> render(buildBatchNodeStatement(type, "CordraObject")));
+                queries.add(new Query(cypherQuery, Map.of("rows", rows)));
+            });
+            childRowsByLabel.forEach((label, rows) -> {
+                String cypherQuery = getTemplate(batchKey("batch:child", label), () -> render(buildBatchNodeStatement(label, "_CordraObject")));
+                queries.add(new Query(cypherQuery, Map.of("rows", rows)));
+            });
+            internalRowsBySourceAndType.forEach((sourceAndType, rows) -> {
+                boolean fromRoot = (Boolean) sourceAndType.get(0);
+                String type = (String) sourceAndType.get(1);
+                String cypherQuery = getTemplate(batchKey(fromRoot ? "batch:internalFromRoot" : "batch:internal", type), () -> render(buildBatchInternalRelationshipStatement(fromRoot, type)));
+                queries.add(new Query(cypherQuery, Map.of("rows", rows)));
+            });
+            externalRowsBySourceAndType.forEach((sourceAndType, rows) -> {
+                boolean fromRoot = (Boolean) sourceAndType.get(0);
+                String type = (String) sourceAndType.get(1);
+                String cypherQuery = getTemplate(batchKey(fromRoot ? "batch:externalFromRoot" : "batch:external", type), () -> render(buildBatchExternalRelationshipStatement(fromRoot, type)));
+                queries.add(new Query(cypherQuery, Map.of("rows", rows)));
+            });
+        }
+    }
+
+    public static Query storedGraphQuery(String id) {
+        return new Query(STORED_GRAPH_QUERY, Collections.singletonMap("id", id));
+    }
+
+    public static Query deleteQuery(String id) {
+        return new Query(DELETE_QUERY, Collections.singletonMap("id", id));
+    }
+
+    private String getTemplate(String shapeKey, Supplier<String> renderer) {
+        String template;
+        synchronized (templates) {
+            template = templates.get(shapeKey);
+        }
+        if (template != null) {
+            hits.incrementAndGet();
+            return template;
+        }
+        misses.incrementAndGet();
+        long start = System.nanoTime();
+        template = renderer.get();
+        stats.recordPhase(IndexerStats.RENDER, System.nanoTime() - start);
+        synchronized (templates) {
+            templates.put(shapeKey, template);
+        }
+        return template;
+    }
+
+    public JsonObject getStats() {
+        JsonObject stats = new JsonObject();
+        long hitCount = hits.get();
+        long missCount = misses.get();
+        int size;
+        synchronized (templates) {
+            size = templates.size();
+        }
+        stats.addProperty("size", size);
+        stats.addProperty("maxSize", maxSize);
+        stats.addProperty("hits", hitCount);
+        stats.addProperty("misses", missCount);
+        stats.addProperty("evictions", evictions.get());
+        stats.addProperty("hitRate", hitCount + missCount == 0 ? 0.0 : (double) hitCount / (hitCount + missCount));
+        return stats;
+    }
+
+    // Everything that ends up in the rendered text, and nothing that ends up in the parameters.
+    // Strings are length-prefixed so that arbitrary labels and property names cannot collide.
+    static String shapeKey(String mode, GraphProjection projection) {
+        StringBuilder sb = new StringBuilder(mode);
+        appendKeyPart(sb, projection.type);
+        for (int i = 0; i < projection.nodes.size(); i++) {
+            ProjectedNode node = projection.nodes.get(i);
+            sb.append('N');
+            appendKeyPart(sb, node.label);
+            if (i == 0 && "update".equals(mode)) continue;
+            sb.append(node.properties.size());
+            for (String key : node.properties.keySet()) {
+                appendKeyPart(sb, key);
+            }
+        }
+        for (InternalRelationship relationship : projection.internalRelationships) {
+            sb.append('I').append(relationship.source).append('>').append(relationship.target);
+            appendKeyPart(sb, relationship.type);
+        }
+        for (ExternalRelationship relationship : projection.externalRelationships) {
+            sb.append('E').append(relationship.source);
+            appendKeyPart(sb, relationship.type);
+        }
+        return sb.toString();
+    }
+
+    private static void appendKeyPart(StringBuilder sb, String part) {
+        if (part == null) {
+            sb.append('-');
+        } else {
+            sb.append(part.length()).append(':').append(part);
+        }
+    }
+
+    private static String batchKey(String kind, String name) {
+        StringBuilder sb = new StringBuilder(kind);
+        appendKeyPart(sb, name);
+        return sb.toString();
+    }
+
+    static Map<String, Object> parameters(GraphProjection projection, boolean isCreate) {
+        Map<String, Object> parameters = new HashMap<>();
+        parameters.put("id", projection.id);
+        for (int i = 0; i < projection.nodes.size(); i++) {
+            ProjectedNode node = projection.nodes.get(i);
+            if (i == 0 && !isCreate) {
+                parameters.put("root", node.properties);
+                continue;
+            }
+            int j = 0;
+            for (Object value : node.properties.values()) {
+                parameters.put(propertyParameterName(i, j++), value);
+            }
+        }
+        int k = 0;
+        for (ExternalRelationship relationship : projection.externalRelationships) {
+            parameters.put("t" + k++, relationship.reference);
+        }
+        return parameters;
+    }
+
+    private static String propertyParameterName(int node, int property) {
+        return "n" + node + "_" + property;
+    }
+
+    // the parameter holding the node's _id, one of its property parameters
+    private static Parameter<?> idParameter(int nodeIndex, Map<String, Object> properties) {
+        int j = 0;
+        for (String key : properties.keySet()) {
+            if (key.equals("_id")) return Cypher.parameter(propertyParameterName(nodeIndex, j));
+            j++;
+        }
+        throw new IllegalArgumentException("Node " + nodeIndex + " has no _id");
+    }
+
+    static Object[] keysAndParameters(int nodeIndex, Map<String, Object> properties) {
+        List<Object> keysAndValuesList = new ArrayList<>();
+        int j = 0;
+        for (String key : properties.keySet()) {
+            keysAndValuesList.add(key);
+            keysAndValuesList.add(Cypher.parameter(propertyParameterName(nodeIndex, j++)));
+        }
+        return keysAndValuesList.toArray(new Object[0]);
+    }
+
+    private static StatementBuilder.OngoingUpdate buildDeleteStatement() {
+        Node rootNode = Cypher.node("CordraObject")
+                .named("root")
+                .withProperties("_id", Cypher.parameter("id"));
+
+        Node internalNode = Cypher.node("_CordraObject")
+                .named("internal")
+                .withProperties(GraphProjection.OWNER_PROPERTY, Cypher.parameter("id"));
+
+        return Cypher.match(rootNode)
+                .optionalMatch(internalNode)
+                .detachDelete(internalNode)
+                .with(rootNode)
+                .detachDelete(rootNode);
+    }
+
+    private static ImmutablePair<ExposesMerge, Node> buildUpdateStatement(GraphProjection projection) {
+        /*
+          MERGE (root:CordraObject {_id: $id})
+          SET root:Movie
+          SET root = $root
+          WITH root
+          OPTIONAL MATCH (internal:`_CordraObject` {_owner: $id})
+          DETACH DELETE internal
+          WITH root
+          OPTIONAL MATCH (root) -[e]-> (external:CordraObject)
+          DELETE e
+          // build graph from here as if it were a create
+         */
+        // not MERGE (root:Movie:CordraObject ...), which would not match the bare node an earlier
+        // reference to this object created
+        Node rootNode = Cypher.node("CordraObject")
+                .named("root")
+                .withProperties("_id", Cypher.parameter("id"));
+
+        Node internalNode = Cypher.node("_CordraObject")
+                .named("internal")
+                .withProperties(GraphProjection.OWNER_PROPERTY, Cypher.parameter("id"));
+
+        Node externalNode = Cypher.node("CordraObject")
+                .named("external");
+
+        Relationship externalRelationships = rootNode.relationshipTo(externalNode);
+        var update = Cypher.merge(rootNode)
+                .set(rootNode, projection.type)
+                .set(rootNode, Cypher.parameter("root"))
+                .with(rootNode)
+                .optionalMatch(internalNode)
+                .detachDelete(internalNode)
+                .with(rootNode)
+                .optionalMatch(externalRelationships)
+                .delete(externalRelationships);
+
+        return new ImmutablePair<>(update, rootNode);
+    }
+
+    private static ImmutablePair<ExposesMerge, Node> buildCreateStatement(GraphProjection projection) {
+        /*
+          MERGE (root:CordraObject {_id: $id})
+          SET root:Movie
+          SET root = {_id: $n0_0, ...}
+         */
+        // merged on _id alone, like the update, so that it matches the bare node an earlier
+        // reference to this object created, or the object if it is already indexed
+        Node rootNode = Cypher.node("CordraObject")
+                .named("root")
+                .withProperties("_id", Cypher.parameter("id"));
+
+        // Starting point for building a Cypher statement
+        return new ImmutablePair<>(Cypher.merge(rootNode)
+                .set(rootNode, projection.type)
+                .set(rootNode, Cypher.mapOf(keysAndParameters(0, projection.getRoot().properties))), rootNode);
+    }
+
+    static ResultStatement buildCreateGraph(GraphProjection projection) {
+        ImmutablePair<ExposesMerge, Node> updateAndRoot = buildCreateStatement(projection);
+        return buildGraph(updateAndRoot.left, updateAndRoot.right, projection);
+    }
+
+    static ResultStatement buildUpdateGraph(GraphProjection projection) {
+        ImmutablePair<ExposesMerge, Node> updateAndRoot = buildUpdateStatement(projection);
+        return buildGraph(updateAndRoot.left, updateAndRoot.right, projection);
+    }
+
+    private static ResultStatement buildGraph(
+            ExposesMerge ongoingUpdate,
+            Node rootNode,
+            GraphProjection projection) {
+
+        List<Node> indexToNodeList = new ArrayList<>();
+        indexToNodeList.add(rootNode);
+
+        // Iterate through the list of child nodes: MERGE (child0:_CordraObject {_id: $n1_3}) SET child0:Label SET child0 = {...}
+        for (int i = 1; i < projection.nodes.size(); i++) {
+            ProjectedNode child = projection.nodes.get(i);
+            Node childNode = Cypher.node("_CordraObject")
+                    .named("child" + (i - 1))
+                    .withProperties("_id", idParameter(i, child.properties));
+            indexToNodeList.add(childNode);
+            StatementBuilder.OngoingMerge merge = ongoingUpdate.merge(childNode);
+            ongoingUpdate = child.label == null
+                    ? merge.set(childNode, Cypher.mapOf(keysAndParameters(i, child.properties)))
+                    : merge.set(childNode, child.label).set(childNode, Cypher.mapOf(keysAndParameters(i, child.properties)));
+        }
+
+        // Iterate through the internal relationships
+        for (InternalRelationship relationship : projection.internalRelationships) {
+            Node source = indexToNodeList.get(relationship.source);
+            Node target = indexToNodeList.get(relationship.target);
+            ongoingUpdate = ongoingUpdate.merge(source.relationshipTo(target, relationship.type));
+        }
+
+        // Iterate through the external relationships, grouped by source
+        int previousSource = -1;
+        Node sourceRenamed = null;
+        int k = 0;
+        for (ExternalRelationship relationship : projection.externalRelationships) {
+            if (relationship.source != previousSource) {
+                previousSource = relationship.source;
+                sourceRenamed = indexToNodeList.get(relationship.source).named("source" + k);
+                ongoingUpdate = ongoingUpdate.merge(sourceRenamed);
+            }
+            Node target = Cypher.node("CordraObject")
+                    .named("target" + k)
+                    .withProperties("_id", Cypher.parameter("t" + k));
+            ongoingUpdate = ongoingUpdate
+                    .merge(target)
+                    .merge(sourceRenamed.relationshipTo(target, relationship.type));
+            k++;
+        }
+
+        return ongoingUpdate
+                .merge(Cypher
+                        .node("CordraObject")
+                        .named("finishedRoot")
+                        .withProperties("_id", Cypher.parameter("id")))
+                .returning("finishedRoot")
+                .build();
+    }
+
+    private static Statement buildBatchDeleteInternalStatement() {
+        // UNWIND $rows AS row MATCH (internal:_CordraObject {_owner: row}) DETACH DELETE internal
+        Node internalNode = Cypher.node("_CordraObject")
+                .named("internal")
+                .withProperties(GraphProjection.OWNER_PROPERTY, Cypher.name("row"));
+        return Cypher.unwind(Cypher.parameter("rows")).as("row")
+                .match(internalNode)
+                .detachDelete(internalNode)
+                .build();
+    }
+
+    private static Statement buildBatchDeleteRootsStatement() {
+        // UNWIND $rows AS row MATCH (root:CordraObject {_id: row}) DETACH DELETE root
+        Node rootNode = Cypher.node("CordraObject")
+                .named("root")
+                .withProperties("_id", Cypher.name("row"));
+        return Cypher.unwind(Cypher.parameter("rows")).as("row")
+                .match(rootNode)
+                .detachDelete(rootNode)
+                .build();
+    }
+
+    private static Statement buildDeleteLabelBatchStatement(String label) {
+        // MATCH (n:Label) WITH n LIMIT $limit DETACH DELETE n
+        Node node = Cypher.node(label)
+                .named("n");
+        return Cypher.match(node)
+                .with(node)
+                .limit(Cypher.parameter("limit"))
+                .detachDelete(node)
+                .build();
+    }
+
+    private static Statement buildBackfillOwnerBatchStatement() {
+        /*
+          MATCH (n:_CordraObject) WHERE n._owner IS NULL
+          WITH n LIMIT $limit
+          OPTIONAL MATCH p = (root:CordraObject) -[*]-> (n)
+          WHERE all(x IN nodes(p) WHERE x:_CordraObject OR x = root) AND n._id STARTS WITH root._id + ':'
+          WITH n, head(collect(root._id)) AS owner
+          SET n._owner = owner
+          WITH n WHERE n._owner IS NULL
+          DETACH DELETE n
+         */
+        // Only an object's own nodes lie between its root and its nodes, and references only point
+        // at roots, so the expansion walks up one subtree and stops at the first root
+        Node internalNode = Cypher.node("_CordraObject")
+                .named("n");
+        Node rootNode = Cypher.node("CordraObject")
+                .named("root");
+        NamedPath path = Cypher.path("p").definedBy(rootNode.relationshipTo(internalNode).unbounded());
+        Property owner = internalNode.property(GraphProjection.OWNER_PROPERTY);
+        return Cypher.match(internalNode)
+                .where(owner.isNull())
+                .with(internalNode)
+                .limit(Cypher.parameter("limit"))
+                .optionalMatch(path)
+                .where(Predicates.all("x").in(Functions.nodes(path))
+                        .where(Cypher.anyNode("x").hasLabels("_CordraObject").or(Cypher.name("x").isEqualTo(rootNode.getRequiredSymbolicName())))
+                        .and(internalNode.property("_id").startsWith(rootNode.property("_id").concat(Cypher.literalOf(":")))))
+                .with(internalNode.getRequiredSymbolicName(), Functions.head(Functions.collect(rootNode.property("_id"))).as("owner"))
+                .set(owner.to(Cypher.name("owner")))
+                .with(internalNode)
+                .where(owner.isNull())
+                .detachDelete(internalNode)
+                .build();
+    }
+
+    private static Statement buildTypeIdsBatchStatement(String type) {
+        // MATCH (root:Type:CordraObject) RETURN root._id AS id LIMIT $limit
+        Node rootNode = Cypher.node(type, "CordraObject")
+                .named("root");
+        return Cypher.match(rootNode)
+                .returning(rootNode.property("_id").as("id"))
+                .limit(Cypher.parameter("limit"))
+                .build();
+    }
+
+    private static Statement buildBatchDeleteExternalStatement() {
+        // UNWIND $rows AS row MATCH (root:CordraObject {_id: row}) -[e]-> (external:CordraObject) DELETE e
+        Node rootNode = Cypher.node("CordraObject")
+                .named("root")
+                .withProperties("_id", Cypher.name("row"));
+        Node externalNode = Cypher.node("CordraObject")
+                .named("external");
+        Relationship externalRelationship = rootNode.relationshipTo(externalNode).named("e");
+        return Cypher.unwind(Cypher.parameter("rows")).as("row")
+                .match(externalRelationship)
+                .delete(externalRelationship)
+                .build();
+    }
+
+    private static Statement buildStoredGraphStatement() {
+        // MATCH (root:CordraObject {_id: $id}) SET root._graphHash = root._graphHash
+        // WITH root OPTIONAL MATCH (n:_CordraObject {_owner: $id})
+        // RETURN root._graphHash AS graphHash, root._hash AS rootHash, collect(n {._id, ._hash, ._type}) AS nodes
+        Node rootNode = Cypher.node("CordraObject")
+                .named("root")
+                .withProperties("_id", Cypher.parameter("id"));
+        Node internalNode = Cypher.node("_CordraObject")
+                .named("n")
+                .withProperties(GraphProjection.OWNER_PROPERTY, Cypher.parameter("id"));
+        // Assigning _graphHash its own value changes nothing but takes the root's write lock before the
+        // stored hashes are read, so concurrent updates of one object diff one after the other rather
+        // than both against the same stored graph
+        return Cypher.match(rootNode)
+                .set(rootNode.property(GraphProjection.GRAPH_HASH_PROPERTY).to(rootNode.property(GraphProjection.GRAPH_HASH_PROPERTY)))
+                .with(rootNode)
+                .optionalMatch(internalNode)
+                .returning(
+                        rootNode.property(GraphProjection.GRAPH_HASH_PROPERTY).as("graphHash"),
+                        rootNode.property(GraphProjection.HASH_PROPERTY).as("rootHash"),
+                        Functions.collect(internalNode.project("_id", GraphProjection.HASH_PROPERTY, "_type")).as("nodes"))
+                .build();
+    }
+
+    private static Statement buildSetGraphHashStatement() {
+        // MATCH (root:CordraObject {_id: $id}) SET root._graphHash = $graphHash RETURN root
+        Node rootNode = Cypher.node("CordraObject")
+                .named("root")
+                .withProperties("_id", Cypher.parameter("id"));
+        return Cypher.match(rootNode)
+                .set(rootNode.property(GraphProjection.GRAPH_HASH_PROPERTY).to(Cypher.parameter("graphHash")))
+                .returning(rootNode)
+                .build();
+    }
+
+    private static Statement buildBatchClearRootHashesStatement() {
+        // UNWIND $rows AS row MATCH (root:CordraObject {_id: row}) REMOVE root._hash, root._graphHash
+        Node rootNode = Cypher.node("CordraObject")
+                .named("root")
+                .withProperties("_id", Cypher.name("row"));
+        return Cypher.unwind(Cypher.parameter("rows")).as("row")
+                .match(rootNode)
+                .remove(rootNode.property(GraphProjection.HASH_PROPERTY), rootNode.property(GraphProjection.GRAPH_HASH_PROPERTY))
+                .build();
+    }
+
+    private static Statement buildBatchClearChildHashesStatement() {
+        // UNWIND $rows AS row MATCH (n:_CordraObject {_id: row}) MATCH (root:CordraObject {_id: n._owner}) REMOVE n._hash, root._graphHash
+        Node internalNode = Cypher.node("_CordraObject")
+                .named("n")
+                .withProperties("_id", Cypher.name("row"));
+        Node rootNode = Cypher.node("CordraObject")
+                .named("root")
+                .withProperties("_id", internalNode.property(GraphProjection.OWNER_PROPERTY));
+        return Cypher.unwind(Cypher.parameter("rows")).as("row")
+                .match(internalNode)
+                .match(rootNode)
+                .remove(internalNode.property(GraphProjection.HASH_PROPERTY), rootNode.property(GraphProjection.GRAPH_HASH_PROPERTY))
+                .build();
+    }
+
+    private static Statement buildBatchDeleteNodesStatement() {
+        // UNWIND $rows AS row MATCH (n:_CordraObject {_id: row}) DETACH DELETE n
+        Node node = Cypher.node("_CordraObject")
+                .named("n")
+                .withProperties("_id", Cypher.name("row"));
+        return Cypher.unwind(Cypher.parameter("rows")).as("row")
+                .match(node)
+                .detachDelete(node)
+                .build();
+    }
+
+    private static Statement buildBatchDeleteOutgoingStatement(String label) {
+        // UNWIND $rows AS row MATCH (n:Label {_id: row}) -[r]-> () DELETE r
+        Node node = Cypher.node(label)
+                .named("n")
+                .withProperties("_id", Cypher.name("row"));
+        Relationship outgoing = node.relationshipTo(Cypher.anyNode()).named("r");
+        return Cypher.unwind(Cypher.parameter("rows")).as("row")
+                .match(outgoing)
+                .delete(outgoing)
+                .build();
+    }
+
+    private static Statement buildBatchNodeStatement(String label, String baseLabel) {
+        // UNWIND $rows AS row MERGE (n:Label:_CordraObject {_id: row.id}) SET n = row.props
+        // roots: UNWIND $rows AS row MERGE (n:CordraObject {_id: row.id}) SET n:Label SET n = row.props
+        if ("CordraObject".equals(baseLabel) && label != null) {
+            // matches the bare node an earlier reference to this object created
+            Node node = Cypher.node(baseLabel)
+                    .named("n")
+                    .withProperties("_id", Cypher.property("row", "id"));
+            return Cypher.unwind(Cypher.parameter("rows")).as("row")
+                    .merge(node)
+                    .set(node, label)
+                    .set(node, Cypher.property("row", "props"))
+                    .build();
+        }
+        Node node = (label == null ? Cypher.node(baseLabel) : Cypher.node(label, baseLabel))
+                .named("n")
+                .withProperties("_id", Cypher.property("row", "id"));
+        return Cypher.unwind(Cypher.parameter("rows")).as("row")
+                .merge(node)
+                .set(node, Cypher.property("row", "props"))
+                .build();
+    }
+
+    private static Statement buildBatchInternalRelationshipStatement(boolean fromRoot, String type) {
+        // UNWIND $rows AS row MATCH (source:_CordraObject {_id: row.source}) MATCH (target:_CordraObject {_id: row.target}) MERGE (source) -[:TYPE]-> (target)
+        Node source = Cypher.node(fromRoot ? "CordraObject" : "_CordraObject")
+                .named("source")
+                .withProperties("_id", Cypher.property("row", "source"));
+        Node target = Cypher.node("_CordraObject")
+                .named("target")
+                .withProperties("_id", Cypher.property("row", "target"));
+        return Cypher.unwind(Cypher.parameter("rows")).as("row")
+                .match(source)
+                .match(target)
+                .merge(source.relationshipTo(target, type))
+                .build();
+    }
+
+    private static Statement buildBatchExternalRelationshipStatement(boolean fromRoot, String type) {
+        // UNWIND $rows AS row MATCH (source:CordraObject {_id: row.source}) MERGE (target:CordraObject {_id: row.target}) MERGE (source) -[:TYPE]-> (target)
+        Node source = Cypher.node(fromRoot ? "CordraObject" : "_CordraObject")
+                .named("source")
+                .withProperties("_id", Cypher.property("row", "source"));
+        Node target = Cypher.node("CordraObject")
+                .named("target")
+                .withProperties("_id", Cypher.property("row", "target"));
+        return Cypher.unwind(Cypher.parameter("rows")).as("row")
+                .match(source)
+                .merge(target)
+                .merge(source.relationshipTo(target, type))
+                .build();
+    }
+
+    static String render(Statement statement) {
+        return Renderer
+                .getRenderer(Configuration.prettyPrinting())
+                .render(statement);
+    }
+}
@@ -0,0 +1,42 @@
+package net.cnri.neo4j;
+
+import com.google.gson.JsonObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.TimeUnit;
+
+public class DeleteStats {
+    private static final Logger logger = LoggerFactory.getLogger(DeleteStats.class);
+
+    private final String target;
+    private final long startNanos = System.nanoTime();
+    private long objectCount;
+    private long nodeCount;
+    private long relationshipCount;
+    private long batchCount;
+
+    public DeleteStats(String target) {
+        this.target = target;
+    }
+
+    public synchronized void batchDeleted(int objects, int nodes, int relationships) {
+        objectCount += objects;
+        nodeCount += nodes;
+        relationshipCount += relationships;
+        batchCount++;
+        logger.info("Deleting {} from Neo4j: {} nodes and {} relationships in {} batches so far",
+                target, nodeCount, relationshipCount, batchCount);
+    }
+
+    public synchronized JsonObject toJson() {
+        JsonObject json = new JsonObject();
+        json.addProperty("target", target);
+        if (objectCount > 0) json.addProperty("objectCount", objectCount);
+        json.addProperty("nodeCount", nodeCount);
+        json.addProperty("relationshipCount", relationshipCount);
+        json.addProperty("batchCount", batchCount);
+        json.addProperty("elapsedMs", TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos));
+        return json;
+    }
+}
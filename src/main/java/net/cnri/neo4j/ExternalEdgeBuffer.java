@@ -0,0 +1,118 @@
+package net.cnri.neo4j;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * Collects external (handleReference) relationships during a reindex so that they can be merged
+ * after every node has been written. Edges beyond the in-memory limit are spilled to a temporary file.
+ */
+public class ExternalEdgeBuffer implements Closeable {
+
+    public static class Edge {
+        public final String source;
+        public final boolean sourceIsRoot;
+        public final String type;
+        public final String target;
+        public Edge(String source, boolean sourceIsRoot, String type, String target) {
+            this.source = source;
+            this.sourceIsRoot = sourceIsRoot;
+            this.type = type;
+            this.target = target;
+        }
+    }
+
+    private final int maxInMemory;
+    private List<Edge> edges = new ArrayList<>();
+    private Path spillFile;
+    private DataOutputStream spillOut;
+    private long spilledCount;
+    private long count;
+
+    public ExternalEdgeBuffer(int maxInMemory) {
+        this.maxInMemory = Math.max(1, maxInMemory);
+    }
+
+    public void addAll(GraphProjection projection) throws IOException {
+        if (projection.externalRelationships.isEmpty()) return;
+        synchronized (this) {
+            for (GraphProjection.ExternalRelationship relationship : projection.externalRelationships) {
+                add(new Edge(projection.getNodeId(relationship.source), relationship.source == 0, relationship.type, relationship.reference));
+            }
+        }
+    }
+
+    public synchronized void add(Edge edge) throws IOException {
+        edges.add(edge);
+        count++;
+        if (edges.size() >= maxInMemory) {
+            spill();
+        }
+    }
+
+    private void spill() throws IOException {
+        if (spillOut == null) {
+            spillFile = Files.createTempFile("neo4j-deferred-edges", ".bin");
+            spillOut = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(spillFile)));
+        }
+        for (Edge edge : edges) {
+            spillOut.writeUTF(edge.source);
+            spillOut.writeBoolean(edge.sourceIsRoot);
+            spillOut.writeUTF(edge.type);
+            spillOut.writeUTF(edge.target);
+        }
+        spilledCount += edges.size();
+        edges = new ArrayList<>();
+    }
+
+    public synchronized long size() {
+        return count;
+    }
+
+    public synchronized long getSpilledCount() {
+        return spilledCount;
+    }
+
+    /**
+     * Hands all buffered edges, spilled ones first, to the consumer in batches of at most batchSize.
+     */
+    public synchronized void forEachBatch(int batchSize, Consumer<List<Edge>> consumer) throws IOException {
+        List<Edge> batch = new ArrayList<>(batchSize);
+        if (spillOut != null) {
+            spillOut.flush();
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(spillFile)))) {
+                for (long i = 0; i < spilledCount; i++) {
+                    batch.add(new Edge(in.readUTF(), in.readBoolean(), in.readUTF(), in.readUTF()));
+                    if (batch.size() >= batchSize) {
+                        consumer.accept(batch);
+                        batch = new ArrayList<>(batchSize);
+                    }
+                }
+            }
+        }
+        for (Edge edge : edges) {
+            batch.add(edge);
+            if (batch.size() >= batchSize) {
+                consumer.accept(batch);
+                batch = new ArrayList<>(batchSize);
+            }
+        }
+        if (!batch.isEmpty()) {
+            consumer.accept(batch);
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        edges = new ArrayList<>();
+        if (spillOut != null) {
+            spillOut.close();
+            spillOut = null;
+            Files.deleteIfExists(spillFile);
+        }
+    }
+}
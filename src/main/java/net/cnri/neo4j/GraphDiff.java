@@ -0,0 +1,93 @@
+package net.cnri.neo4j;
+
+import org.neo4j.driver.Record;
+import org.neo4j.driver.Value;
+
+import java.util.*;
+
+/**
+ * The difference between the graph stored for an object and its new projection, by node content
+ * hash. A changed node is rewritten in place together with its outgoing relationships; a node
+ * whose label changed is removed and added again.
+ */
+public class GraphDiff {
+
+    public final List<String> removedNodeIds = new ArrayList<>();
+    public final List<Integer> addedNodes = new ArrayList<>();
+    public final List<Integer> changedNodes = new ArrayList<>();
+
+    public boolean isEmpty() {
+        return removedNodeIds.isEmpty() && addedNodes.isEmpty() && changedNodes.isEmpty();
+    }
+
+    /**
+     * The added and changed nodes, which are written in full.
+     */
+    public Set<Integer> writtenNodes() {
+        Set<Integer> written = new TreeSet<>(changedNodes);
+        written.addAll(addedNodes);
+        return written;
+    }
+
+    public boolean writesRelationship(GraphProjection.InternalRelationship relationship, Set<Integer> writtenNodes) {
+        // a re-added node lost its incoming relationship even if its parent is unchanged
+        return writtenNodes.contains(relationship.source) || addedNodes.contains(relationship.target);
+    }
+
+    public boolean writesRelationship(GraphProjection.ExternalRelationship relationship, Set<Integer> writtenNodes) {
+        return writtenNodes.contains(relationship.source);
+    }
+
+    public int countWrittenRelationships(GraphProjection projection) {
+        Set<Integer> writtenNodes = writtenNodes();
+        int count = 0;
+        for (GraphProjection.InternalRelationship relationship : projection.internalRelationships) {
+            if (writesRelationship(relationship, writtenNodes)) count++;
+        }
+        for (GraphProjection.ExternalRelationship relationship : projection.externalRelationships) {
+            if (writesRelationship(relationship, writtenNodes)) count++;
+        }
+        return count;
+    }
+
+    /**
+     * Compares the projection with the result of {@link CypherTemplates#storedGraphQuery(String)}.
+     */
+    public static GraphDiff compute(GraphProjection projection, Record stored) {
+        return compute(projection, stringOrNull(stored.get("rootHash")), stored.get("nodes").asList(Value::asMap));
+    }
+
+    /**
+     * Compares the projection with the stored root hash and the stored child nodes, each a map of
+     * its _id, _hash and _type.
+     */
+    static GraphDiff compute(GraphProjection projection, String rootHash, List<Map<String, Object>> storedNodeList) {
+        Map<String, Map<String, Object>> storedNodes = new HashMap<>();
+        for (Map<String, Object> node : storedNodeList) {
+            storedNodes.put((String) node.get("_id"), node);
+        }
+        GraphDiff diff = new GraphDiff();
+        if (!projection.getRoot().hash.equals(rootHash)) {
+            diff.changedNodes.add(0);
+        }
+        for (int i = 1; i < projection.nodes.size(); i++) {
+            GraphProjection.ProjectedNode node = projection.nodes.get(i);
+            String nodeId = projection.getNodeId(i);
+            Map<String, Object> storedNode = storedNodes.remove(nodeId);
+            if (storedNode == null) {
+                diff.addedNodes.add(i);
+            } else if (!Objects.equals(node.label, storedNode.get("_type"))) {
+                diff.removedNodeIds.add(nodeId);
+                diff.addedNodes.add(i);
+            } else if (!node.hash.equals(storedNode.get(GraphProjection.HASH_PROPERTY))) {
+                diff.changedNodes.add(i);
+            }
+        }
+        diff.removedNodeIds.addAll(storedNodes.keySet());
+        return diff;
+    }
+
+    private static String stringOrNull(Value value) {
+        return value == null || value.isNull() ? null : value.asString();
+    }
+}
@@ -0,0 +1,284 @@
+package net.cnri.neo4j;
+
+import com.exhypothesi.json.Json;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonPrimitive;
+import net.cnri.cordra.api.CordraObject;
+import org.neo4j.driver.Value;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+
+/**
+ * The nodes and relationships a single Cordra object is projected onto in Neo4j.
+ * Node 0 is always the root; the remaining nodes are ordered by JSON pointer so that
+ * objects of the same shape always produce the same node and relationship order.
+ */
+public class GraphProjection {
+
+    public static final String HASH_PROPERTY = "_hash";
+    public static final String GRAPH_HASH_PROPERTY = "_graphHash";
+    // the _id of the root, on every other node, so an object's nodes are found by index lookup
+    public static final String OWNER_PROPERTY = "_owner";
+
+    public static class ProjectedNode {
+        public String pointer;
+        public String label;
+        public Map<String, Object> properties;
+        public String hash;
+        public ProjectedNode(String pointer, String label, Map<String, Object> properties) {
+            this.pointer = pointer;
+            this.label = label;
+            this.properties = properties;
+        }
+    }
+
+    public static class InternalRelationship {
+        public int source;
+        public int target;
+        public String type;
+        public InternalRelationship(int source, int target, String type) {
+            this.source = source;
+            this.target = target;
+            this.type = type;
+        }
+    }
+
+    public static class ExternalRelationship {
+        public int source;
+        public String type;
+        public String reference;
+        public ExternalRelationship(int source, String type, String reference) {
+            this.source = source;
+            this.type = type;
+            this.reference = reference;
+        }
+    }
+
+    public final String id;
+    public final String type;
+    public final List<ProjectedNode> nodes = new ArrayList<>();
+    public final List<InternalRelationship> internalRelationships = new ArrayList<>();
+    public final List<ExternalRelationship> externalRelationships = new ArrayList<>();
+    public String graphHash;
+
+    private GraphProjection(String id, String type) {
+        this.id = id;
+        this.type = type;
+    }
+
+    public ProjectedNode getRoot() {
+        return nodes.get(0);
+    }
+
+    public String getNodeId(int index) {
+        if (index == 0) return id;
+        return id + ":" + nodes.get(index).pointer;
+    }
+
+    /**
+     * With contentHashes, as incremental updates need, every node also gets a _hash and the root a
+     * _graphHash; otherwise graphHash and the node hashes are null.
+     */
+    public static GraphProjection project(CordraObject co, MappingPlan plan, Map<String, JsonElement> pointerToSchemaMap, boolean includeRelationships, boolean contentHashes) {
+        // denest Json into non-nested objects and relationships
+        ProjectingVisitor visitor = new ProjectingVisitor(co, plan, pointerToSchemaMap, includeRelationships);
+        Json.denest(co.content, visitor);
+
+        GraphProjection projection = new GraphProjection(co.id, co.type);
+        Map<String, Integer> pointerToIndexMap = new HashMap<>();
+        for (ProjectedNode node : visitor.pointerToNodeMap.values()) {
+            pointerToIndexMap.put(node.pointer, projection.nodes.size());
+            projection.nodes.add(node);
+        }
+        for (Map.Entry<String, List<Json.Relative>> entry : visitor.sourceToTargetWithRelationship.entrySet()) {
+            int source = pointerToIndexMap.get(entry.getKey());
+            for (Json.Relative relative : entry.getValue()) {
+                projection.internalRelationships.add(new InternalRelationship(source, pointerToIndexMap.get(relative.targetPointer), relative.relationship));
+            }
+        }
+        for (Map.Entry<String, List<ExternalRelative>> entry : visitor.sourceToExternalTargetWithRelationship.entrySet()) {
+            int source = pointerToIndexMap.get(entry.getKey());
+            // sort by type so same-shaped objects line up
+            List<ExternalRelative> relatives = entry.getValue();
+            relatives.sort(Comparator.comparing(relative -> relative.relationship));
+            for (ExternalRelative relative : relatives) {
+                projection.externalRelationships.add(new ExternalRelationship(source, relative.relationship, relative.reference));
+            }
+        }
+        if (contentHashes) projection.computeHashes();
+        return projection;
+    }
+
+    /**
+     * Stores a content hash on every node, as _hash, covering its label, properties and outgoing
+     * relationships, and a hash of the whole graph on the root, as _graphHash.
+     */
+    private void computeHashes() {
+        StringBuilder[] contents = new StringBuilder[nodes.size()];
+        for (int i = 0; i < nodes.size(); i++) {
+            ProjectedNode node = nodes.get(i);
+            StringBuilder sb = new StringBuilder();
+            appendHashPart(sb, node.label);
+            for (Map.Entry<String, Object> entry : new TreeMap<>(node.properties).entrySet()) {
+                if (entry.getKey().equals(HASH_PROPERTY) || entry.getKey().equals(GRAPH_HASH_PROPERTY)) continue;
+                appendHashPart(sb, entry.getKey());
+                Object value = entry.getValue();
+                appendHashPart(sb, value instanceof Value ? ((Value) value).type().name() + RecordSerializer.toJson((Value) value) : String.valueOf(value));
+            }
+            contents[i] = sb;
+        }
+        for (InternalRelationship relationship : internalRelationships) {
+            StringBuilder sb = contents[relationship.source].append('I');
+            appendHashPart(sb, relationship.type);
+            appendHashPart(sb, nodes.get(relationship.target).pointer);
+        }
+        for (ExternalRelationship relationship : externalRelationships) {
+            StringBuilder sb = contents[relationship.source].append('E');
+            appendHashPart(sb, relationship.type);
+            appendHashPart(sb, relationship.reference);
+        }
+        MessageDigest digest = sha256();
+        StringBuilder graph = new StringBuilder();
+        for (int i = 0; i < nodes.size(); i++) {
+            ProjectedNode node = nodes.get(i);
+            node.hash = hash(digest, contents[i]);
+            node.properties.put(HASH_PROPERTY, node.hash);
+            appendHashPart(graph, node.pointer);
+            graph.append(node.hash);
+        }
+        graphHash = hash(digest, graph);
+        getRoot().properties.put(GRAPH_HASH_PROPERTY, graphHash);
+    }
+
+    private static void appendHashPart(StringBuilder sb, String part) {
+        if (part == null) {
+            sb.append('-');
+        } else {
+            sb.append(part.length()).append(':').append(part);
+        }
+    }
+
+    private static String hash(MessageDigest digest, CharSequence content) {
+        digest.reset();
+        byte[] bytes = digest.digest(content.toString().getBytes(StandardCharsets.UTF_8));
+        StringBuilder sb = new StringBuilder(32);
+        for (int i = 0; i < 16; i++) {
+            sb.append(Character.forDigit((bytes[i] >> 4) & 0xF, 16)).append(Character.forDigit(bytes[i] & 0xF, 16));
+        }
+        return sb.toString();
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    /**
+     * Builds the nodes and relationships straight from the denesting events. Maps are keyed by
+     * pointer in sorted order, so the root ("") comes first.
+     */
+    private static class ProjectingVisitor implements Json.Visitor {
+        private final CordraObject co;
+        private final MappingPlan plan;
+        private final Map<String, JsonElement> pointerToSchemaMap;
+        private final boolean includeRelationships;
+        private final Deque<ProjectedNode> openNodes = new ArrayDeque<>();
+        private final StringBuilder propertyPointer = new StringBuilder();
+
+        final Map<String, ProjectedNode> pointerToNodeMap = new TreeMap<>();
+        final Map<String, List<Json.Relative>> sourceToTargetWithRelationship = new TreeMap<>();
+        final Map<String, List<ExternalRelative>> sourceToExternalTargetWithRelationship = new TreeMap<>();
+
+        ProjectingVisitor(CordraObject co, MappingPlan plan, Map<String, JsonElement> pointerToSchemaMap, boolean includeRelationships) {
+            this.co = co;
+            this.plan = plan;
+            this.pointerToSchemaMap = pointerToSchemaMap;
+            this.includeRelationships = includeRelationships;
+        }
+
+        @Override
+        public void beginObject(CharSequence pointer, int sourcePointerLength, String relationship) {
+            ProjectedNode node = new ProjectedNode(pointer.toString(), null, new LinkedHashMap<>());
+            if (sourcePointerLength >= 0) {
+                // use relationship name from schema for internal references
+                String sourcePointer = openNodes.peek().pointer;
+                String relationshipType = plan.get(sourcePointer + "/" + relationship, pointerToSchemaMap).getRelationshipType(relationship);
+                sourceToTargetWithRelationship.computeIfAbsent(sourcePointer, k -> new ArrayList<>()).add(new Json.Relative(relationshipType, node.pointer));
+            }
+            openNodes.push(node);
+        }
+
+        @Override
+        public void primitiveProperty(String key, JsonPrimitive value) {
+            ProjectedNode node = openNodes.peek();
+            MappingPlan.PointerMapping mapping = plan.get(propertyPointer(node, key, -1), pointerToSchemaMap);
+            node.properties.put(key, ValueConverter.toValue(value, mapping));
+            if (includeRelationships && mapping.handleReference) {
+                addExternalRelative(node, mapping.getRelationshipType(key), value.getAsString());
+            }
+        }
+
+        @Override
+        public void arrayProperty(String key, JsonArray array) {
+            ProjectedNode node = openNodes.peek();
+            MappingPlan.PointerMapping itemsMapping = null;
+            int index = 0;
+            for (JsonElement element : array) {
+                if (element.isJsonPrimitive()) {
+                    MappingPlan.PointerMapping mapping = plan.get(propertyPointer(node, key, index), pointerToSchemaMap);
+                    if (itemsMapping == null) itemsMapping = mapping;
+                    if (includeRelationships && mapping.handleReference) {
+                        addExternalRelative(node, mapping.getRelationshipType(key), element.getAsString());
+                    }
+                }
+                index++;
+            }
+            node.properties.put(key, ValueConverter.toValue(array, itemsMapping));
+        }
+
+        @Override
+        public void endObject(CharSequence pointer) {
+            ProjectedNode node = openNodes.pop();
+            if (node.pointer.equals("")) {
+                node.label = co.type;
+                node.properties.put("_id", co.id);
+                node.properties.put("_type", co.type);
+            } else {
+                node.label = plan.get(node.pointer, pointerToSchemaMap).label;
+                node.properties.put("_id", co.id + ":" + node.pointer);
+                node.properties.put(OWNER_PROPERTY, co.id);
+                if (node.label != null) {
+                    node.properties.put("_type", node.label);
+                }
+            }
+            pointerToNodeMap.put(node.pointer, node);
+        }
+
+        private String propertyPointer(ProjectedNode node, String key, int index) {
+            propertyPointer.setLength(0);
+            propertyPointer.append(node.pointer).append('/').append(key);
+            if (index >= 0) propertyPointer.append('/').append(index);
+            return propertyPointer.toString();
+        }
+
+        private void addExternalRelative(ProjectedNode node, String relationship, String reference) {
+            sourceToExternalTargetWithRelationship.computeIfAbsent(node.pointer, k -> new ArrayList<>()).add(new ExternalRelative(relationship, reference));
+        }
+    }
+
+    private static class ExternalRelative {
+        String relationship;
+        String reference;
+        public ExternalRelative(String relationship, String reference) {
+            this.relationship = relationship;
+            this.reference = reference;
+        }
+    }
+}
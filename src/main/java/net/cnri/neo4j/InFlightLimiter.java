@@ -0,0 +1,132 @@
+package net.cnri.neo4j;
+
+import com.google.gson.JsonObject;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.Supplier;
+
+/**
+ * Bounds the number of asynchronous operations in flight without blocking the caller: an operation
+ * beyond the limit waits in a bounded queue and is started when an earlier one completes.
+ */
+public class InFlightLimiter {
+
+    // operations handed a permit on this thread while it is already starting one
+    private static final ThreadLocal<Queue<Runnable>> startsOnThisThread = new ThreadLocal<>();
+
+    private static class Pending<T> {
+        final Supplier<CompletionStage<T>> operation;
+        final CompletableFuture<T> future = new CompletableFuture<>();
+        Pending(Supplier<CompletionStage<T>> operation) {
+            this.operation = operation;
+        }
+    }
+
+    private final int maxInFlight;
+    private final int maxPending;
+    private final Queue<Pending<?>> pending = new ArrayDeque<>();
+    private int inFlight;
+    private long started;
+    private long rejected;
+    private int maxObservedInFlight;
+
+    public InFlightLimiter(int maxInFlight, int maxPending) {
+        this.maxInFlight = Math.max(1, maxInFlight);
+        this.maxPending = maxPending;
+    }
+
+    /**
+     * Starts the operation now if a permit is free, otherwise queues it. The returned stage fails
+     * with RejectedExecutionException if the queue is full.
+     */
+    public <T> CompletionStage<T> submit(Supplier<CompletionStage<T>> operation) {
+        Pending<T> task = new Pending<>(operation);
+        synchronized (this) {
+            if (inFlight >= maxInFlight) {
+                if (pending.size() >= maxPending) {
+                    rejected++;
+                    task.future.completeExceptionally(new RejectedExecutionException("Too many pending Neo4j operations"));
+                    return task.future;
+                }
+                pending.add(task);
+                return task.future;
+            }
+            acquire();
+        }
+        startWithoutNesting(() -> start(task));
+        return task.future;
+    }
+
+    // called holding the lock
+    private void acquire() {
+        inFlight++;
+        started++;
+        maxObservedInFlight = Math.max(maxObservedInFlight, inFlight);
+    }
+
+    private <T> void start(Pending<T> task) {
+        CompletionStage<T> stage;
+        try {
+            stage = task.operation.get();
+        } catch (RuntimeException e) {
+            stage = CompletableFuture.failedFuture(e);
+        }
+        stage.whenComplete((result, error) -> {
+            release();
+            if (error != null) task.future.completeExceptionally(error);
+            else task.future.complete(result);
+        });
+    }
+
+    private void release() {
+        Pending<?> next;
+        synchronized (this) {
+            next = pending.poll();
+            if (next == null) {
+                inFlight--;
+                return;
+            }
+            // the permit passes straight to the next operation
+            started++;
+        }
+        startWithoutNesting(() -> start(next));
+    }
+
+    /**
+     * An operation that completes synchronously releases its permit, and so starts the next one,
+     * from inside its own start; with a long queue that would nest one call per operation. Starts
+     * made from inside another start are queued and run by the outermost one instead.
+     */
+    static void startWithoutNesting(Runnable start) {
+        Queue<Runnable> starts = startsOnThisThread.get();
+        if (starts != null) {
+            starts.add(start);
+            return;
+        }
+        starts = new ArrayDeque<>();
+        startsOnThisThread.set(starts);
+        try {
+            for (Runnable next = start; next != null; next = starts.poll()) {
+                next.run();
+            }
+        } finally {
+            startsOnThisThread.remove();
+        }
+    }
+
+    public synchronized JsonObject getStats() {
+        JsonObject stats = new JsonObject();
+        stats.addProperty("maxInFlight", maxInFlight);
+        stats.addProperty("inFlight", inFlight);
+        stats.addProperty("pending", pending.size());
+        stats.addProperty("maxPending", maxPending);
+        stats.addProperty("started", started);
+        stats.addProperty("rejected", rejected);
+        stats.addProperty("maxObservedInFlight", maxObservedInFlight);
+        return stats;
+    }
+}
@@ -0,0 +1,174 @@
+package net.cnri.neo4j;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import org.neo4j.driver.Record;
+import org.neo4j.driver.Session;
+import org.neo4j.driver.exceptions.Neo4jException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The constraints and indexes the statements rely on: every MERGE and MATCH is on {_id: ...} or,
+ * for the nodes of one object, {_owner: ...}, so without them each write scans all nodes of the
+ * label. Needs Neo4j 4.4 or later, for CREATE CONSTRAINT ... REQUIRE and SHOW CONSTRAINTS with YIELD.
+ */
+public class IndexBootstrap {
+
+    private static final Logger logger = LoggerFactory.getLogger(IndexBootstrap.class);
+
+    private static final String SHOW_INDEXES_QUERY = "SHOW INDEXES YIELD name, state, labelsOrTypes, properties";
+    // SHOW INDEXES only reports uniqueness before 5.0, so it is read from the constraints
+    private static final String SHOW_CONSTRAINTS_QUERY = "SHOW CONSTRAINTS YIELD type, labelsOrTypes, properties";
+
+    public static class RequiredIndex {
+        public final String label;
+        public final String property;
+        public final boolean unique;
+        public final String name;
+        public RequiredIndex(String label, String property, boolean unique, String name) {
+            this.label = label;
+            this.property = property;
+            this.unique = unique;
+            this.name = name;
+        }
+
+        String createStatement() {
+            if (unique) {
+                return "CREATE CONSTRAINT " + escape(name) + " IF NOT EXISTS FOR (n:" + escape(label) + ") REQUIRE n." + escape(property) + " IS UNIQUE";
+            }
+            return "CREATE INDEX " + escape(name) + " IF NOT EXISTS FOR (n:" + escape(label) + ") ON (n." + escape(property) + ")";
+        }
+    }
+
+    public static class IndexState {
+        public final RequiredIndex required;
+        public String existingName;
+        public String state;
+        public String error;
+        IndexState(RequiredIndex required) {
+            this.required = required;
+        }
+
+        public boolean isOnline() {
+            return "ONLINE".equals(state);
+        }
+    }
+
+    private IndexBootstrap() { }
+
+    /**
+     * Unique _id on CordraObject and _CordraObject, an _owner index on _CordraObject, plus an _id
+     * index on each type label.
+     */
+    public static List<RequiredIndex> requiredIndexes(Collection<String> types) {
+        List<RequiredIndex> required = new ArrayList<>();
+        required.add(new RequiredIndex("CordraObject", "_id", true, "cordra_object_id"));
+        required.add(new RequiredIndex("_CordraObject", "_id", true, "cordra_child_object_id"));
+        required.add(new RequiredIndex("_CordraObject", GraphProjection.OWNER_PROPERTY, false, "cordra_child_object_owner"));
+        for (String type : types) {
+            if ("CordraObject".equals(type) || "_CordraObject".equals(type)) continue;
+            required.add(new RequiredIndex(type, "_id", false, "cordra_type_" + type.replaceAll("[^A-Za-z0-9_]", "_") + "_id"));
+        }
+        return required;
+    }
+
+    public static List<IndexState> status(Session session, List<RequiredIndex> required) {
+        List<Record> indexes = session.run(SHOW_INDEXES_QUERY).list();
+        Set<List<Object>> uniqueSchemas = new HashSet<>();
+        for (Record constraint : session.run(SHOW_CONSTRAINTS_QUERY).list()) {
+            if (isNodeUniqueness(constraint.get("type").asString())) {
+                uniqueSchemas.add(List.of(constraint.get("labelsOrTypes").asList(), constraint.get("properties").asList()));
+            }
+        }
+        List<IndexState> states = new ArrayList<>(required.size());
+        for (RequiredIndex requiredIndex : required) {
+            IndexState indexState = new IndexState(requiredIndex);
+            for (Record index : indexes) {
+                if (!matches(requiredIndex, index, uniqueSchemas)) continue;
+                indexState.existingName = index.get("name").asString();
+                indexState.state = index.get("state").asString();
+                if (indexState.isOnline()) break;
+            }
+            states.add(indexState);
+        }
+        return states;
+    }
+
+    // UNIQUENESS before 5.7, NODE_PROPERTY_UNIQUENESS after; a node key is unique too
+    static boolean isNodeUniqueness(String constraintType) {
+        return "UNIQUENESS".equals(constraintType) || "NODE_PROPERTY_UNIQUENESS".equals(constraintType) || "NODE_KEY".equals(constraintType);
+    }
+
+    private static boolean matches(RequiredIndex required, Record index, Set<List<Object>> uniqueSchemas) {
+        if (index.get("labelsOrTypes").isNull() || index.get("properties").isNull()) return false;
+        List<Object> labels = index.get("labelsOrTypes").asList();
+        List<Object> properties = index.get("properties").asList();
+        if (labels.size() != 1 || !required.label.equals(labels.get(0))) return false;
+        if (properties.size() != 1 || !required.property.equals(properties.get(0))) return false;
+        // the index backing a unique constraint also serves where a plain one is required
+        return !required.unique || uniqueSchemas.contains(List.of(labels, properties));
+    }
+
+    /**
+     * Creates whatever is missing and returns the resulting states. A failure to create one index,
+     * for instance because duplicate _id values already exist, is recorded in its state.
+     */
+    public static List<IndexState> ensure(Session session, List<RequiredIndex> required) {
+        Map<String, String> errors = new HashMap<>();
+        for (IndexState indexState : status(session, required)) {
+            if (indexState.existingName != null) continue;
+            String statement = indexState.required.createStatement();
+            try {
+                session.writeTransaction(tx -> tx.run(statement).consume());
+                logger.info("Created Neo4j index {}", indexState.required.name);
+            } catch (Neo4jException e) {
+                logger.error("Could not create Neo4j index " + indexState.required.name, e);
+                errors.put(indexState.required.name, e.getMessage());
+            }
+        }
+        List<IndexState> states = status(session, required);
+        for (IndexState indexState : states) {
+            indexState.error = errors.get(indexState.required.name);
+        }
+        return states;
+    }
+
+    public static List<IndexState> missing(List<IndexState> states) {
+        List<IndexState> missing = new ArrayList<>();
+        for (IndexState indexState : states) {
+            if (!indexState.isOnline()) missing.add(indexState);
+        }
+        return missing;
+    }
+
+    public static JsonObject toJson(List<IndexState> states) {
+        JsonObject json = new JsonObject();
+        JsonArray indexes = new JsonArray();
+        for (IndexState indexState : states) {
+            JsonObject index = new JsonObject();
+            index.addProperty("label", indexState.required.label);
+            index.addProperty("property", indexState.required.property);
+            index.addProperty("unique", indexState.required.unique);
+            index.addProperty("name", indexState.existingName == null ? indexState.required.name : indexState.existingName);
+            index.addProperty("state", indexState.state == null ? "MISSING" : indexState.state);
+            if (indexState.error != null) index.addProperty("error", indexState.error);
+            indexes.add(index);
+        }
+        json.addProperty("complete", missing(states).isEmpty());
+        json.add("indexes", indexes);
+        return json;
+    }
+
+    private static String escape(String name) {
+        return "`" + name.replace("`", "``") + "`";
+    }
+}
@@ -0,0 +1,102 @@
+package net.cnri.neo4j;
+
+import com.google.gson.JsonObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Running indexer metrics: a latency histogram per phase and per operation, write volume, and
+ * error counts. Operations slower than the configured threshold are logged.
+ */
+public class IndexerStats {
+
+    private static final Logger logger = LoggerFactory.getLogger(IndexerStats.class);
+
+    public static final String SCHEMA_LOOKUP = "schemaLookup";
+    public static final String DENEST = "denest";
+    public static final String STATEMENT_BUILD = "statementBuild";
+    public static final String RENDER = "render"; // building and rendering a statement on a template cache miss
+    public static final String TRANSACTION = "transaction";
+    public static final String BATCH_TRANSACTION = "batchTransaction";
+
+    private final Map<String, LatencyHistogram> phases = new ConcurrentHashMap<>();
+    private final Map<String, LatencyHistogram> operations = new ConcurrentHashMap<>();
+    private final Map<String, LongAdder> errors = new ConcurrentHashMap<>();
+    private final LongAdder objectsWritten = new LongAdder();
+    private final LongAdder nodesWritten = new LongAdder();
+    private final LongAdder relationshipsWritten = new LongAdder();
+    private volatile long startMillis = System.currentTimeMillis();
+
+    public void recordPhase(String phase, long nanos) {
+        phases.computeIfAbsent(phase, k -> new LatencyHistogram()).record(nanos);
+    }
+
+    /**
+     * Records the end-to-end time of an operation on one object, logging it if it took longer
+     * than slowOperationMs (0 or less disables the slow log).
+     */
+    public void recordOperation(String operation, String id, long nanos, long slowOperationMs) {
+        operations.computeIfAbsent(operation, k -> new LatencyHistogram()).record(nanos);
+        if (slowOperationMs > 0 && nanos >= TimeUnit.MILLISECONDS.toNanos(slowOperationMs)) {
+            logger.warn("Slow Neo4j {} of {}: {} ms", operation, id, TimeUnit.NANOSECONDS.toMillis(nanos));
+        }
+    }
+
+    public void objectWritten(GraphProjection projection) {
+        objectWritten(projection.nodes.size(), projection.internalRelationships.size() + projection.externalRelationships.size());
+    }
+
+    public void objectWritten(int nodes, int relationships) {
+        objectsWritten.increment();
+        nodesWritten.add(nodes);
+        relationshipsWritten.add(relationships);
+    }
+
+    public void error(String operation) {
+        errors.computeIfAbsent(operation, k -> new LongAdder()).increment();
+    }
+
+    public void reset() {
+        phases.values().forEach(LatencyHistogram::reset);
+        operations.values().forEach(LatencyHistogram::reset);
+        errors.values().forEach(LongAdder::reset);
+        objectsWritten.reset();
+        nodesWritten.reset();
+        relationshipsWritten.reset();
+        startMillis = System.currentTimeMillis();
+    }
+
+    public JsonObject toJson() {
+        JsonObject json = new JsonObject();
+        long elapsedMillis = System.currentTimeMillis() - startMillis;
+        long objects = objectsWritten.sum();
+        json.addProperty("since", java.time.Instant.ofEpochMilli(startMillis).toString());
+        json.addProperty("objectsWritten", objects);
+        json.addProperty("objectsPerSecond", elapsedMillis == 0 ? 0.0 : objects * 1e3 / elapsedMillis);
+        json.addProperty("nodesWritten", nodesWritten.sum());
+        json.addProperty("relationshipsWritten", relationshipsWritten.sum());
+        json.addProperty("avgNodesPerObject", objects == 0 ? 0.0 : (double) nodesWritten.sum() / objects);
+        json.addProperty("avgRelationshipsPerObject", objects == 0 ? 0.0 : (double) relationshipsWritten.sum() / objects);
+        json.add("operations", histogramsToJson(operations));
+        json.add("phases", histogramsToJson(phases));
+        JsonObject errorsJson = new JsonObject();
+        new TreeMap<>(errors).forEach((operation, count) -> errorsJson.addProperty(operation, count.sum()));
+        json.add("errors", errorsJson);
+        Runtime runtime = Runtime.getRuntime();
+        json.addProperty("heapUsedBytes", runtime.totalMemory() - runtime.freeMemory());
+        json.addProperty("heapMaxBytes", runtime.maxMemory());
+        return json;
+    }
+
+    private static JsonObject histogramsToJson(Map<String, LatencyHistogram> histograms) {
+        JsonObject json = new JsonObject();
+        new TreeMap<>(histograms).forEach((name, histogram) -> json.add(name, histogram.toJson()));
+        return json;
+    }
+}
@@ -0,0 +1,70 @@
+package net.cnri.neo4j;
+
+import com.google.gson.JsonObject;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock-free latency histogram with power-of-two microsecond buckets. Percentiles are reported as
+ * the upper bound of the bucket they fall in, so they are accurate to within a factor of two.
+ */
+public class LatencyHistogram {
+    private static final int BUCKETS = 40;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder totalNanos = new LongAdder();
+    private final AtomicLong maxNanos = new AtomicLong();
+
+    public void record(long nanos) {
+        long micros = Math.max(1, nanos / 1000);
+        int bucket = Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros - 1));
+        buckets.incrementAndGet(bucket);
+        count.increment();
+        totalNanos.add(nanos);
+        maxNanos.accumulateAndGet(nanos, Math::max);
+    }
+
+    public long getCount() {
+        return count.sum();
+    }
+
+    public void reset() {
+        for (int i = 0; i < BUCKETS; i++) {
+            buckets.set(i, 0);
+        }
+        count.reset();
+        totalNanos.reset();
+        maxNanos.set(0);
+    }
+
+    public JsonObject toJson() {
+        long[] snapshot = new long[BUCKETS];
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            snapshot[i] = buckets.get(i);
+            total += snapshot[i];
+        }
+        JsonObject json = new JsonObject();
+        json.addProperty("count", total);
+        if (total == 0) return json;
+        json.addProperty("avgMs", totalNanos.sum() / 1e6 / count.sum());
+        json.addProperty("p50Ms", percentile(snapshot, total, 0.50));
+        json.addProperty("p95Ms", percentile(snapshot, total, 0.95));
+        json.addProperty("p99Ms", percentile(snapshot, total, 0.99));
+        json.addProperty("maxMs", maxNanos.get() / 1e6);
+        return json;
+    }
+
+    private static double percentile(long[] snapshot, long total, double fraction) {
+        long rank = (long) Math.ceil(total * fraction);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += snapshot[i];
+            if (seen >= rank) return (1L << i) / 1e3;
+        }
+        return (1L << (BUCKETS - 1)) / 1e3;
+    }
+}
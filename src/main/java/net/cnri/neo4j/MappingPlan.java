@@ -0,0 +1,168 @@
+package net.cnri.neo4j;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import net.cnri.cordra.util.JsonUtil;
+
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The Neo4j mapping and value types of one Cordra type's schema, keyed by normalized JSON pointer: every index
+ * segment under an array of the schema is replaced by {@value #ANY_INDEX}, so /pets/0/name and /pets/7/name
+ * share an entry. Entries are compiled from the type's schema up front where the schema is plain
+ * properties/items. Other pointers the schema declares are looked up once from an object's
+ * pointer-to-schema map and then reused; pointers it does not declare, like the keys of an
+ * additionalProperties map, are looked up every time, so that they cannot grow the plan.
+ */
+public class MappingPlan {
+
+    public static final String ANY_INDEX = "~";
+
+    public static class PointerMapping {
+        public static final PointerMapping NONE = new PointerMapping(null, null, false, null, null);
+
+        public final String label;
+        public final String relationshipType;
+        public final boolean handleReference;
+        public final String valueType;
+        public final String format;
+        public PointerMapping(String label, String relationshipType, boolean handleReference, String valueType, String format) {
+            this.label = label;
+            this.relationshipType = relationshipType;
+            this.handleReference = handleReference;
+            this.valueType = valueType;
+            this.format = format;
+        }
+
+        public String getRelationshipType(String defaultName) {
+            return relationshipType == null ? defaultName : relationshipType;
+        }
+    }
+
+    private final Map<String, PointerMapping> mappings = new ConcurrentHashMap<>();
+    // normalized pointers of every property and array item the schema declares, and of the arrays
+    private final Set<String> declared = new HashSet<>();
+    private final Set<String> arrays = new HashSet<>();
+    private final boolean cacheLookups;
+
+    private MappingPlan(boolean cacheLookups) {
+        this.cacheLookups = cacheLookups;
+    }
+
+    public static MappingPlan compile(JsonElement rootSchema) {
+        if (rootSchema == null) return new MappingPlan(true);
+        // with conditional subschemas the schema of a pointer depends on the instance, so only
+        // the unconditional part of the schema can be shared across objects
+        MappingPlan plan = new MappingPlan(!hasConditionalSubschemas(rootSchema));
+        plan.compile("", rootSchema);
+        return plan;
+    }
+
+    private static boolean hasConditionalSubschemas(JsonElement schemaElement) {
+        if (schemaElement.isJsonArray()) {
+            for (JsonElement element : schemaElement.getAsJsonArray()) {
+                if (hasConditionalSubschemas(element)) return true;
+            }
+        } else if (schemaElement.isJsonObject()) {
+            JsonObject schema = schemaElement.getAsJsonObject();
+            if (schema.has("oneOf") || schema.has("anyOf") || schema.has("if")) return true;
+            for (Map.Entry<String, JsonElement> entry : schema.entrySet()) {
+                if (hasConditionalSubschemas(entry.getValue())) return true;
+            }
+        }
+        return false;
+    }
+
+    private void compile(String pointer, JsonElement schemaElement) {
+        declared.add(pointer);
+        if (!schemaElement.isJsonObject()) return;
+        JsonObject schema = schemaElement.getAsJsonObject();
+        if ("array".equals(getStringProperty(schema, "type")) || schema.has("items")) {
+            arrays.add(pointer);
+        }
+        if (schema.has("$ref") || schema.has("allOf") || schema.has("oneOf") || schema.has("anyOf") || schema.has("if")) return;
+        mappings.put(pointer, mappingOf(schema));
+        JsonElement properties = schema.get("properties");
+        if (properties != null && properties.isJsonObject()) {
+            for (Map.Entry<String, JsonElement> entry : properties.getAsJsonObject().entrySet()) {
+                compile(pointer + "/" + entry.getKey(), entry.getValue());
+            }
+        }
+        JsonElement items = schema.get("items");
+        if (items != null && items.isJsonObject()) {
+            compile(pointer + "/" + ANY_INDEX, items);
+        }
+    }
+
+    /**
+     * Returns the mapping of a concrete pointer, falling back to the object's pointer-to-schema map
+     * for pointers the schema walk could not resolve.
+     */
+    public PointerMapping get(String pointer, Map<String, JsonElement> pointerToSchemaMap) {
+        String normalizedPointer = normalize(pointer);
+        PointerMapping mapping = mappings.get(normalizedPointer);
+        if (mapping != null) return mapping;
+        JsonElement subSchemaElement = pointerToSchemaMap == null ? null : pointerToSchemaMap.get(pointer);
+        mapping = subSchemaElement != null && subSchemaElement.isJsonObject() ? mappingOf(subSchemaElement.getAsJsonObject()) : PointerMapping.NONE;
+        if (cacheLookups && declared.contains(normalizedPointer)) {
+            mappings.put(normalizedPointer, mapping);
+        }
+        return mapping;
+    }
+
+    public int size() {
+        return mappings.size();
+    }
+
+    private static PointerMapping mappingOf(JsonObject subSchema) {
+        JsonElement labelElement = JsonUtil.getJsonAtPointer(subSchema, "/cordra/ext/neo4j/nodeLabel");
+        JsonElement relationshipTypeElement = JsonUtil.getJsonAtPointer(subSchema, "/cordra/ext/neo4j/relationshipType");
+        boolean handleReference = JsonUtil.getJsonAtPointer(subSchema, "/cordra/type/handleReference") != null;
+        String valueType = getStringProperty(subSchema, "type");
+        String format = getStringProperty(subSchema, "format");
+        if (labelElement == null && relationshipTypeElement == null && !handleReference && valueType == null && format == null) return PointerMapping.NONE;
+        return new PointerMapping(
+                labelElement == null ? null : labelElement.getAsString(),
+                relationshipTypeElement == null ? null : relationshipTypeElement.getAsString(),
+                handleReference,
+                valueType,
+                format);
+    }
+
+    private static String getStringProperty(JsonObject subSchema, String name) {
+        JsonElement element = subSchema.get(name);
+        if (element == null || !element.isJsonPrimitive() || !element.getAsJsonPrimitive().isString()) return null;
+        return element.getAsString();
+    }
+
+    // only under an array of the schema is an all-digit segment an index; elsewhere it is a key
+    String normalize(String pointer) {
+        StringBuilder sb = null;
+        int segmentStart = 1;
+        for (int i = 1; i <= pointer.length(); i++) {
+            if (i < pointer.length() && pointer.charAt(i) != '/') continue;
+            if (isArrayIndex(pointer, segmentStart, i) && arrays.contains(sb == null ? pointer.substring(0, segmentStart - 1) : sb.substring(0, sb.length() - 1))) {
+                if (sb == null) sb = new StringBuilder(pointer.length()).append(pointer, 0, segmentStart);
+                sb.append(ANY_INDEX);
+            } else if (sb != null) {
+                sb.append(pointer, segmentStart, i);
+            }
+            if (sb != null && i < pointer.length()) sb.append('/');
+            segmentStart = i + 1;
+        }
+        return sb == null ? pointer : sb.toString();
+    }
+
+    private static boolean isArrayIndex(String pointer, int start, int end) {
+        if (start >= end) return false;
+        if (pointer.charAt(start) == '0') return end - start == 1;
+        for (int i = start; i < end; i++) {
+            char c = pointer.charAt(i);
+            if (c < '0' || c > '9') return false;
+        }
+        return true;
+    }
+}
@@ -0,0 +1,313 @@
+package net.cnri.neo4j;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonPrimitive;
+import com.google.gson.reflect.TypeToken;
+import net.cnri.cordra.api.BadRequestCordraException;
+import net.cnri.cordra.api.NotFoundCordraException;
+import net.cnri.cordra.util.GsonUtility;
+import org.neo4j.driver.Query;
+import org.neo4j.driver.Session;
+import org.neo4j.driver.TransactionConfig;
+import org.neo4j.driver.exceptions.ClientException;
+import org.neo4j.driver.summary.QueryType;
+import org.neo4j.driver.summary.ResultSummary;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.time.Duration;
+import java.time.LocalDate;
+import java.time.OffsetDateTime;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Read queries registered by name in the design object's neo4jQueries payload, with declared
+ * parameter types, for example:
+ * <pre>
+ * {"coActors": {"query": "MATCH (p:Person {name: $name})-[:ACTED_IN]->(m)<-[:ACTED_IN]-(c) RETURN c.name",
+ *               "parameters": {"name": "string"}}}
+ * </pre>
+ * Parameter types are string, integer, float, boolean, date and dateTime, or a list of one of
+ * them written as e.g. "string[]". Each query is checked with EXPLAIN when loaded: it must
+ * compile, only read, and use no parameters beyond those declared. A query that could not be
+ * checked because Neo4j was unreachable is checked again when first run.
+ */
+public class NamedQueries {
+
+    private static final Logger logger = LoggerFactory.getLogger(NamedQueries.class);
+
+    // string literals, comments and quoted names are matched whole so a $ inside them is not a parameter
+    private static final Pattern PARAMETER = Pattern.compile(
+            "'(?:[^'\\\\]|\\\\.)*'|\"(?:[^\"\\\\]|\\\\.)*\"|//[^\\n]*|/\\*[\\s\\S]*?\\*/|`(?:[^`]|``)*`"
+            + "|\\$(\\w+|`(?:[^`]|``)+`)");
+    private static final Set<String> TYPES = Set.of("string", "integer", "float", "boolean", "date", "dateTime");
+
+    public static class Definition {
+        public String query;
+        public Map<String, String> parameters;
+        public String description;
+    }
+
+    public static class NamedQuery {
+        private final String name;
+        private final Definition definition;
+        private final LatencyHistogram latency = new LatencyHistogram();
+        private final LongAdder errors = new LongAdder();
+        private boolean validated;
+        private String validationError;
+
+        NamedQuery(String name, Definition definition) {
+            this.name = name;
+            this.definition = definition;
+            if (definition.parameters == null) definition.parameters = Collections.emptyMap();
+        }
+
+        public String getQuery() {
+            return definition.query;
+        }
+
+        public synchronized boolean isValidated() {
+            return validated;
+        }
+
+        /**
+         * Checks the query with EXPLAIN, run outside a transaction function so that it is not
+         * retried. Returns false if it could not be checked, for example because Neo4j is
+         * unreachable; it is then checked again when first run.
+         */
+        public synchronized boolean validate(Session session, long timeoutMs) {
+            validationError = checkDefinition();
+            if (validationError != null) {
+                validated = true;
+                logger.error("Named Neo4j query {} is invalid: {}", name, validationError);
+                return true;
+            }
+            try {
+                TransactionConfig transactionConfig = TransactionConfig.builder().withTimeout(Duration.ofMillis(timeoutMs)).build();
+                ResultSummary summary = session.run(new Query("EXPLAIN " + definition.query, placeholderParameters()), transactionConfig).consume();
+                if (summary.queryType() != QueryType.READ_ONLY) {
+                    validationError = "Query is " + summary.queryType() + "; named queries may only read";
+                }
+                validated = true;
+            } catch (ClientException e) {
+                validationError = e.getMessage();
+                validated = true;
+            } catch (Exception e) {
+                logger.warn("Could not check named Neo4j query " + name + "; it will be checked when first run", e);
+                return false;
+            }
+            if (validationError != null) {
+                logger.error("Named Neo4j query {} is invalid: {}", name, validationError);
+            }
+            return true;
+        }
+
+        String checkDefinition() {
+            if (definition.query == null || definition.query.isBlank()) return "Missing query";
+            for (Map.Entry<String, String> parameter : definition.parameters.entrySet()) {
+                if (!TYPES.contains(baseType(parameter.getValue()))) {
+                    return "Unknown type " + parameter.getValue() + " of parameter " + parameter.getKey();
+                }
+            }
+            Set<String> undeclared = new LinkedHashSet<>();
+            Matcher matcher = PARAMETER.matcher(definition.query);
+            while (matcher.find()) {
+                String parameter = matcher.group(1);
+                if (parameter == null) continue;
+                if (parameter.startsWith("`")) parameter = parameter.substring(1, parameter.length() - 1).replace("``", "`");
+                if (!definition.parameters.containsKey(parameter)) undeclared.add(parameter);
+            }
+            if (!undeclared.isEmpty()) return "Undeclared parameters " + undeclared;
+            return null;
+        }
+
+        // EXPLAIN does not run the query, but the values still have to be of the declared types
+        private Map<String, Object> placeholderParameters() {
+            Map<String, Object> parameters = new HashMap<>();
+            for (Map.Entry<String, String> parameter : definition.parameters.entrySet()) {
+                String type = parameter.getValue();
+                parameters.put(parameter.getKey(), isList(type) ? Collections.emptyList() : placeholder(type));
+            }
+            return parameters;
+        }
+
+        private static Object placeholder(String type) {
+            switch (type) {
+            case "integer":
+                return 0L;
+            case "float":
+                return 0.0;
+            case "boolean":
+                return false;
+            case "date":
+                return LocalDate.EPOCH;
+            case "dateTime":
+                return OffsetDateTime.of(1970, 1, 1, 0, 0, 0, 0, ZoneOffset.UTC);
+            default:
+                return "";
+            }
+        }
+
+        public synchronized void checkValid() throws BadRequestCordraException {
+            if (!validated) {
+                throw new BadRequestCordraException("Named query " + name + " has not been checked yet; Neo4j may be unavailable");
+            }
+            if (validationError != null) {
+                throw new BadRequestCordraException("Named query " + name + " is invalid: " + validationError);
+            }
+        }
+
+        /**
+         * Converts the given JSON values to the declared types; every declared parameter is required.
+         */
+        public Map<String, Object> toParameters(JsonObject values) throws BadRequestCordraException {
+            if (values == null) values = new JsonObject();
+            for (String key : values.keySet()) {
+                if (!definition.parameters.containsKey(key)) {
+                    throw new BadRequestCordraException("Named query " + name + " has no parameter " + key);
+                }
+            }
+            Map<String, Object> parameters = new HashMap<>();
+            for (Map.Entry<String, String> parameter : definition.parameters.entrySet()) {
+                String key = parameter.getKey();
+                String type = parameter.getValue();
+                JsonElement value = values.get(key);
+                if (value == null || value.isJsonNull()) {
+                    throw new BadRequestCordraException("Missing parameter " + key + " of named query " + name);
+                }
+                try {
+                    parameters.put(key, convert(value, type));
+                } catch (IllegalArgumentException | IllegalStateException | UnsupportedOperationException e) {
+                    throw new BadRequestCordraException("Parameter " + key + " of named query " + name + " must be " + type);
+                }
+            }
+            return parameters;
+        }
+
+        private static Object convert(JsonElement value, String type) {
+            if (isList(type)) {
+                JsonArray array = value.getAsJsonArray();
+                List<Object> list = new ArrayList<>(array.size());
+                for (JsonElement element : array) {
+                    list.add(convert(element, baseType(type)));
+                }
+                return list;
+            }
+            JsonPrimitive primitive = value.getAsJsonPrimitive();
+            switch (type) {
+            case "integer":
+                if (!primitive.isNumber()) throw new IllegalArgumentException();
+                return Long.valueOf(primitive.getAsString());
+            case "float":
+                if (!primitive.isNumber()) throw new IllegalArgumentException();
+                return primitive.getAsDouble();
+            case "boolean":
+                if (!primitive.isBoolean()) throw new IllegalArgumentException();
+                return primitive.getAsBoolean();
+            case "date":
+                return parse(() -> LocalDate.parse(primitive.getAsString()));
+            case "dateTime":
+                return parse(() -> OffsetDateTime.parse(primitive.getAsString()));
+            default:
+                if (!primitive.isString()) throw new IllegalArgumentException();
+                return primitive.getAsString();
+            }
+        }
+
+        private static Object parse(Supplier<Object> parser) {
+            try {
+                return parser.get();
+            } catch (DateTimeParseException e) {
+                throw new IllegalArgumentException(e);
+            }
+        }
+
+        public void recordLatency(long nanos) {
+            latency.record(nanos);
+        }
+
+        public void recordError() {
+            errors.increment();
+        }
+
+        public synchronized JsonObject toJson() {
+            JsonObject json = new JsonObject();
+            if (definition.description != null) json.addProperty("description", definition.description);
+            json.addProperty("query", definition.query);
+            json.add("parameters", GsonUtility.getGson().toJsonTree(definition.parameters));
+            json.addProperty("validated", validated);
+            if (validationError != null) json.addProperty("error", validationError);
+            json.addProperty("errorCount", errors.sum());
+            json.add("latency", latency.toJson());
+            return json;
+        }
+    }
+
+    private static boolean isList(String type) {
+        return type != null && type.endsWith("[]");
+    }
+
+    private static String baseType(String type) {
+        return isList(type) ? type.substring(0, type.length() - 2) : type;
+    }
+
+    private final Map<String, NamedQuery> queries;
+
+    private NamedQueries(Map<String, NamedQuery> queries) {
+        this.queries = queries;
+    }
+
+    public static NamedQueries empty() {
+        return new NamedQueries(Collections.emptyMap());
+    }
+
+    public static NamedQueries fromJson(String json) {
+        Map<String, Definition> definitions = GsonUtility.getGson().fromJson(json, new TypeToken<LinkedHashMap<String, Definition>>() { }.getType());
+        Map<String, NamedQuery> queries = new LinkedHashMap<>();
+        if (definitions != null) {
+            definitions.forEach((name, definition) -> {
+                if (definition != null) queries.put(name, new NamedQuery(name, definition));
+            });
+        }
+        return new NamedQueries(Collections.unmodifiableMap(queries));
+    }
+
+    /**
+     * Checks every query, stopping at the first that cannot be checked; the rest are checked when
+     * first run.
+     */
+    public void validate(Session session, long timeoutMs) {
+        for (NamedQuery query : queries.values()) {
+            if (!query.validate(session, timeoutMs)) return;
+        }
+    }
+
+    public NamedQuery get(String name) throws NotFoundCordraException {
+        NamedQuery query = queries.get(name);
+        if (query == null) {
+            throw new NotFoundCordraException("No named Neo4j query " + name);
+        }
+        return query;
+    }
+
+    public JsonObject toJson() {
+        JsonObject json = new JsonObject();
+        queries.forEach((name, query) -> json.add(name, query.toJson()));
+        return json;
+    }
+}
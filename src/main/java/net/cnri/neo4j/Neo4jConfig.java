@@ -9,11 +9,68 @@ public class Neo4jConfig {
 
     public String databaseName;
 
+    public int maxConnectionPoolSize = 100;
+    public long connectionAcquisitionTimeoutMs = 60000;
+    public long maxConnectionLifetimeMs = 3600000;
+    public long connectionTimeoutMs = 30000;
+    public long fetchSize = 1000;
+    public int driverWarmUpConnections = 4; // connections opened before a reloaded driver is swapped in
+    public long driverDrainTimeoutMs = 60000; // how long a replaced driver stays open for in-flight work
+
     public List<String> includeTypes;
 
     public List<String> excludeTypes;
 
     public String propertyNameMode = "topLevel"; //topLevel or jsonPointer
 
-    public boolean verbose = false;
+    public boolean verbose = false; // log every query at info level rather than debug
+
+    public long slowOperationMs = 1000; // index operations slower than this are logged; 0 disables
+
+    public int templateCacheSize = 1000;
+
+    public boolean createIndexes = true; // create the _id constraints and indexes on startup and reload
+    public boolean requireIndexesForReindex = true; // refuse bulk reindex without them, rather than only warn
+
+    public boolean incrementalUpdate = false; // diff updates against the stored content hashes rather than rewrite the graph
+
+    public int searchMaxRows = 10000; // largest page, and streamed output without a pageSize
+    public boolean searchRejectOverMaxRows = false; // fail unpaged searches past searchMaxRows rather than return every row
+    public boolean searchReadYourWrites = false; // wait for this node's latest index write before searching
+    public int searchCacheSize = 0; // cached search pages; 0 disables the cache
+    public long searchCacheMaxBytes = 64L * 1024 * 1024; // estimated, from the serialized results
+    public long searchCacheTtlMs = 60000; // also bounds how long writes not made through this node go unseen
+    public long namedQueryCheckTimeoutMs = 5000; // for the EXPLAIN of each named query when the design object is loaded
+
+    public int reindexBatchSize = 500; // 1 or less to reindex object by object
+    public int reindexProjectionThreads = 1;
+    public int reindexWriterThreads = 1;
+    public boolean reindexDeferRelationships = true;
+    public int deferredEdgesInMemory = 1000000; // buffered edges beyond this are spilled to a temp file
+    public int deferredEdgeBatchSize = 5000;
+    public String reindexJobDirectory = "neo4j-reindex-jobs"; // checkpoints of background reindex jobs, relative to Cordra's data directory
+    public int reindexJobSegmentSize = 10000; // objects reindexed between checkpoints
+    public boolean resumeReindexJobs = true; // pick up interrupted reindex jobs on startup
+
+    public int bulkMinConcurrency = 1; // bulk (reindex and bulk delete) transactions that may always run at once
+    public int bulkMaxConcurrency = 8;
+    public long liveLatencyTargetMs = 200; // hook writes slower than this shrink the bulk limit
+    public long bulkLatencyTargetMs = 5000; // as do bulk transactions slower than this
+    public long bulkMaxDelayMs = 1000; // longest pause before each bulk transaction once the limit is at its minimum
+    public long bulkYieldToLiveMs = 500; // longest a bulk transaction waits for hook writes in flight to finish
+
+    public int deleteBatchSize = 10000; // nodes, or objects when deleting by type or query, per delete transaction
+
+    public String exportDirectory = "neo4j-export"; // CSV exports go in subdirectories of this, relative to Cordra's data directory
+    public int exportMaxOpenFiles = 256; // node CSV files held open at once during a CSV export
+
+    public boolean asyncExecution = false; // hooks write through the driver's async API without blocking
+    public int asyncMaxInFlight = 256;
+    public int asyncMaxPending = 10000;
+
+    public boolean writeBehind = false;
+    public int writeBehindQueueCapacity = 10000;
+    public int writeBehindThreads = 2;
+    public long writeBehindOfferTimeoutMs = 5000;
+    public long writeBehindShutdownTimeoutMs = 30000;
 }
@@ -1,27 +1,45 @@
 package net.cnri.neo4j;
 
-import com.exhypothesi.json.Json;
 import com.google.gson.*;
 import net.cnri.cordra.CordraHooksSupport;
 import net.cnri.cordra.CordraHooksSupportProvider;
 import net.cnri.cordra.api.*;
 
 import net.cnri.cordra.util.GsonUtility;
-import net.cnri.cordra.util.JsonUtil;
-import org.apache.commons.lang3.tuple.ImmutablePair;
-import org.neo4j.cypherdsl.core.*;
-import org.neo4j.cypherdsl.core.renderer.Configuration;
-import org.neo4j.cypherdsl.core.renderer.Renderer;
 import org.neo4j.driver.*;
 import org.neo4j.driver.Record;
+import org.neo4j.driver.async.AsyncQueryRunner;
+import org.neo4j.driver.async.AsyncSession;
+import org.neo4j.driver.async.AsyncTransaction;
+import org.neo4j.driver.async.AsyncTransactionWork;
+import org.neo4j.driver.async.ResultCursor;
+import org.neo4j.driver.exceptions.ClientException;
+import org.neo4j.driver.summary.SummaryCounters;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.io.Writer;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryNotEmptyException;
+import java.nio.file.Path;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.function.Function;
 
 public class Neo4jCordraObjectIndexer {
 
+    private static final Logger logger = LoggerFactory.getLogger(Neo4jCordraObjectIndexer.class);
+    private static final int PAGE_COLUMNS_CACHE_SIZE = 1000;
+
     private static CordraHooksSupport hooks = CordraHooksSupportProvider.get();
     private static CordraClient cordra = hooks.getCordraClient();
 
@@ -30,20 +48,59 @@ public class Neo4jCordraObjectIndexer {
     private volatile Driver driver;
 
     private volatile Neo4jConfig config;
+    private volatile CypherTemplates templates;
+    private volatile WriteBehindQueue writeBehindQueue;
+    private volatile InFlightLimiter asyncLimiter;
+    private volatile WriteScheduler writeScheduler;
+    private volatile SearchCache searchCache;
+    private volatile NamedQueries namedQueries = NamedQueries.empty();
+    // whether the current driver reached Neo4j when it was loaded
+    private volatile boolean driverConnected;
+    private volatile Bookmark lastWriteBookmark;
+    private final AtomicLong skippedUpdates = new AtomicLong();
+    private final AtomicLong incrementalUpdates = new AtomicLong();
+    private final AtomicLong fullUpdates = new AtomicLong();
+    private final Map<String, MappingPlan> mappingPlans = new ConcurrentHashMap<>();
+    private final Map<String, List<String>> pageColumns = Collections.synchronizedMap(new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, List<String>> eldest) {
+            return size() > PAGE_COLUMNS_CACHE_SIZE;
+        }
+    });
+    private final IndexerStats indexerStats = new IndexerStats();
+    private ReindexJobs reindexJobs;
 
     private Neo4jCordraObjectIndexer() throws CordraException {
         hooks.addShutdownHook(this::shutdown);
         loadConfigFromDesign();
+        reindexJobs = new ReindexJobs(this, cordra, Util.resolveDataPath(config.reindexJobDirectory));
     }
 
     public synchronized static Neo4jCordraObjectIndexer getInstance() throws CordraException {
         if (instance == null) {
             instance = new Neo4jCordraObjectIndexer();
+            // resumed jobs run on their own thread, so not before the indexer is fully built
+            instance.resumeInterruptedReindexJobs();
         }
         return instance;
     }
 
+    private void resumeInterruptedReindexJobs() {
+        if (!config.resumeReindexJobs) return;
+        String pauseReason = null;
+        try {
+            checkIndexesForBulkWrite();
+        } catch (CordraException | RuntimeException e) {
+            pauseReason = e.getMessage();
+        }
+        reindexJobs.resumeInterrupted(pauseReason);
+    }
+
     private SessionConfig getSessionConfig() {
+        return getSessionConfig(config);
+    }
+
+    private static SessionConfig getSessionConfig(Neo4jConfig config) {
         if (config.databaseName != null) {
             return SessionConfig.forDatabase(config.databaseName);
         } else {
@@ -51,6 +108,35 @@ public class Neo4jCordraObjectIndexer {
         }
     }
 
+    // read sessions are routed to followers and read replicas in a cluster
+    private SessionConfig getReadSessionConfig(List<Bookmark> bookmarks) {
+        SessionConfig.Builder builder = SessionConfig.builder().withDefaultAccessMode(AccessMode.READ);
+        if (config.databaseName != null) {
+            builder.withDatabase(config.databaseName);
+        }
+        if (bookmarks != null && !bookmarks.isEmpty()) {
+            builder.withBookmarks(bookmarks);
+        }
+        return builder.build();
+    }
+
+    private void recordBookmark(Session session) {
+        recordBookmark(session.lastBookmark());
+    }
+
+    private void recordBookmark(Bookmark bookmark) {
+        if (bookmark != null && !bookmark.isEmpty()) {
+            lastWriteBookmark = bookmark;
+        }
+    }
+
+    /**
+     * The bookmark of the most recent index write; passing it to a search makes the search see that write.
+     */
+    public Bookmark getLastWriteBookmark() {
+        return lastWriteBookmark;
+    }
+
     public synchronized Neo4jConfig loadConfigFromDesign() throws CordraException {
         CordraObject designCo = cordra.get("design");
         Neo4jConfig configToLoad;
@@ -63,19 +149,185 @@ public class Neo4jCordraObjectIndexer {
             configToLoad.password = "password";
             configToLoad.uri = "bolt://localhost:7687";
         }
-        return loadConfig(configToLoad);
+        Neo4jConfig loadedConfig = loadConfig(configToLoad);
+        loadNamedQueries(designCo);
+        return loadedConfig;
     }
 
-    public synchronized Neo4jConfig loadConfig(Neo4jConfig configToLoad) {
-        if (driver != null) {
-            driver.close();
+    private void loadNamedQueries(CordraObject designCo) {
+        NamedQueries queries = NamedQueries.empty();
+        if (designCo.getPayload("neo4jQueries") != null) {
+            try {
+                queries = NamedQueries.fromJson(readPayloadToString("design", "neo4jQueries"));
+            } catch (Exception e) {
+                logger.error("Could not read named Neo4j queries from the design object", e);
+            }
         }
-        AuthToken auth = AuthTokens.basic(configToLoad.user, configToLoad.password);
-        this.driver = GraphDatabase.driver(configToLoad.uri, auth);
+        if (driverConnected) {
+            try (Session session = driver.session(getReadSessionConfig(null))) {
+                queries.validate(session, config.namedQueryCheckTimeoutMs);
+            }
+        } else {
+            logger.warn("Not checking named Neo4j queries until Neo4j is reachable; each is checked when first run");
+        }
+        this.namedQueries = queries;
+    }
+
+    /**
+     * Builds, verifies and warms a driver for the new config before swapping it in; the old driver
+     * stays open for driverDrainTimeoutMs so its in-flight transactions can finish. If the new
+     * driver cannot connect the current one is kept, except on first load, when there is nothing
+     * to fall back to.
+     */
+    public synchronized Neo4jConfig loadConfig(Neo4jConfig configToLoad) throws CordraException {
+        Driver newDriver = buildDriver(configToLoad);
+        boolean connected = true;
+        try {
+            warmUp(newDriver, configToLoad);
+        } catch (Exception e) {
+            if (driver != null) {
+                newDriver.close();
+                throw new InternalErrorCordraException("Could not connect to Neo4j with the new config; keeping the current one", e);
+            }
+            logger.warn("Could not connect to Neo4j at " + configToLoad.uri, e);
+            connected = false;
+        }
+        Driver oldDriver = driver;
+        WriteBehindQueue oldWriteBehindQueue = writeBehindQueue;
+        this.templates = new CypherTemplates(configToLoad.templateCacheSize, indexerStats);
+        mappingPlans.clear();
+        this.asyncLimiter = new InFlightLimiter(configToLoad.asyncMaxInFlight, configToLoad.asyncMaxPending);
+        this.writeScheduler = new WriteScheduler(configToLoad);
+        this.searchCache = new SearchCache(configToLoad.searchCacheSize, configToLoad.searchCacheMaxBytes, configToLoad.searchCacheTtlMs);
+        WriteBehindQueue newWriteBehindQueue = null;
+        if (configToLoad.writeBehind) {
+            newWriteBehindQueue = new WriteBehindQueue(this, configToLoad.writeBehindQueueCapacity, configToLoad.writeBehindThreads, configToLoad.writeBehindOfferTimeoutMs);
+        }
+        Neo4jConfig oldConfig = config;
         this.config = configToLoad;
+        this.driver = newDriver;
+        this.driverConnected = connected;
+        if (oldWriteBehindQueue != null) {
+            // pending writes go to the new driver, still in order with writes submitted during the reload
+            oldWriteBehindQueue.retire(newWriteBehindQueue, oldConfig.writeBehindShutdownTimeoutMs);
+        }
+        this.writeBehindQueue = newWriteBehindQueue;
+        if (oldDriver != null) {
+            CompletableFuture.delayedExecutor(oldConfig.driverDrainTimeoutMs, TimeUnit.MILLISECONDS).execute(oldDriver::close);
+        }
+        if (configToLoad.createIndexes) {
+            try {
+                ensureIndexes();
+            } catch (Exception e) {
+                logger.warn("Could not create Neo4j indexes", e);
+            }
+        }
         return configToLoad;
     }
 
+    private static Driver buildDriver(Neo4jConfig config) {
+        AuthToken auth = AuthTokens.basic(config.user, config.password);
+        Config driverConfig = Config.builder()
+                .withMaxConnectionPoolSize(config.maxConnectionPoolSize)
+                .withConnectionAcquisitionTimeout(config.connectionAcquisitionTimeoutMs, TimeUnit.MILLISECONDS)
+                .withMaxConnectionLifetime(config.maxConnectionLifetimeMs, TimeUnit.MILLISECONDS)
+                .withConnectionTimeout(config.connectionTimeoutMs, TimeUnit.MILLISECONDS)
+                .withFetchSize(config.fetchSize)
+                .build();
+        return GraphDatabase.driver(config.uri, auth, driverConfig);
+    }
+
+    // opens driverWarmUpConnections pooled connections at once so the first requests don't pay for them
+    private static void warmUp(Driver newDriver, Neo4jConfig config) throws Exception {
+        newDriver.verifyConnectivity();
+        SessionConfig sessionConfig = getSessionConfig(config);
+        CompletableFuture<?>[] warmUps = new CompletableFuture<?>[Math.max(0, config.driverWarmUpConnections)];
+        for (int i = 0; i < warmUps.length; i++) {
+            AsyncSession session = newDriver.asyncSession(sessionConfig);
+            warmUps[i] = closeAfter(session, session.runAsync("RETURN 1").thenCompose(ResultCursor::consumeAsync)).toCompletableFuture();
+        }
+        CompletableFuture.allOf(warmUps).get(config.connectionAcquisitionTimeoutMs, TimeUnit.MILLISECONDS);
+    }
+
+    // the types whose label gets an _id index: includeTypes if set, otherwise every type with a schema
+    private Set<String> getIndexedTypes() throws CordraException {
+        Set<String> types = new TreeSet<>();
+        if (config.includeTypes != null) {
+            types.addAll(config.includeTypes);
+        } else {
+            try (SearchResults<CordraObject> schemas = cordra.search("type:Schema")) {
+                for (CordraObject schema : schemas) {
+                    JsonElement name = schema.content.getAsJsonObject().get("name");
+                    if (name != null) types.add(name.getAsString());
+                }
+            }
+        }
+        types.removeIf(type -> !shouldIndexType(type));
+        return types;
+    }
+
+    /**
+     * Creates any missing _id constraints and indexes and returns their state.
+     */
+    public JsonObject ensureIndexes() throws CordraException {
+        List<IndexBootstrap.RequiredIndex> required = IndexBootstrap.requiredIndexes(getIndexedTypes());
+        try (Session session = driver.session(getSessionConfig())) {
+            return IndexBootstrap.toJson(IndexBootstrap.ensure(session, required));
+        }
+    }
+
+    public JsonObject getIndexStatus() throws CordraException {
+        return IndexBootstrap.toJson(getIndexStates());
+    }
+
+    private List<IndexBootstrap.IndexState> getIndexStates() throws CordraException {
+        List<IndexBootstrap.RequiredIndex> required = IndexBootstrap.requiredIndexes(getIndexedTypes());
+        try (Session session = driver.session(getSessionConfig())) {
+            return IndexBootstrap.status(session, required);
+        }
+    }
+
+    // without the _id indexes every MERGE of a bulk reindex scans the whole label
+    private void checkIndexesForBulkWrite() throws CordraException {
+        List<IndexBootstrap.IndexState> missing = IndexBootstrap.missing(getIndexStates());
+        if (missing.isEmpty()) return;
+        List<String> names = new ArrayList<>();
+        for (IndexBootstrap.IndexState indexState : missing) {
+            names.add(indexState.required.label + "(_id)" + (indexState.state == null ? "" : " " + indexState.state));
+        }
+        if (config.requireIndexesForReindex) {
+            throw new BadRequestCordraException("Neo4j _id indexes are missing or not online: " + names + "; call ensureNeo4jIndexes first");
+        }
+        logger.warn("Reindexing without Neo4j _id indexes {}; every write will scan its label", names);
+    }
+
+    public Neo4jConfig getConfig() {
+        return config;
+    }
+
+    MappingPlan getMappingPlan(String type, Map<String, JsonElement> pointerToSchemaMap) {
+        MappingPlan plan = mappingPlans.get(type);
+        if (plan == null) {
+            plan = MappingPlan.compile(pointerToSchemaMap == null ? null : pointerToSchemaMap.get(""));
+            mappingPlans.put(type, plan);
+        }
+        return plan;
+    }
+
+    public void invalidateMappingPlan(String type) {
+        mappingPlans.remove(type);
+    }
+
+    public void clearMappingPlans() {
+        mappingPlans.clear();
+    }
+
+    public JsonElement getMappingPlanStats() {
+        JsonObject json = new JsonObject();
+        mappingPlans.forEach((type, plan) -> json.addProperty(type, plan.size()));
+        return json;
+    }
+
     private String readPayloadToString(String objectId, String payloadName) throws CordraException {
         try (InputStream in = cordra.getPayload(objectId, payloadName)) {
             return new String(in.readAllBytes(), StandardCharsets.UTF_8);
@@ -84,7 +336,7 @@ public class Neo4jCordraObjectIndexer {
         }
     }
 
-    private boolean shouldIndexType(String type) {
+    boolean shouldIndexType(String type) {
         if (config.excludeTypes != null) {
             if (config.excludeTypes.contains(type)) {
                 return false;
@@ -98,45 +350,396 @@ public class Neo4jCordraObjectIndexer {
         }
     }
 
-    public void deleteAll() {
-        deleteAll("CordraObject");
-        deleteAll("_CordraObject");
+    public JsonElement deleteAll() {
+        return deleteAll(config.deleteBatchSize);
     }
 
-    public void deleteAll(String type) {
-        Node match = Cypher.node(type)
-                .named("matchNode");
-        var statement = Cypher
-                .match(match)
-                .detachDelete(match)
-                .build();
+    /**
+     * Deletes every indexed node, batchSize nodes per transaction. Each batch commits on its own,
+     * so an interrupted run can simply be run again.
+     */
+    public JsonElement deleteAll(int batchSize) {
+        DeleteStats stats = new DeleteStats("all objects");
+        deleteAllWithLabel("_CordraObject", Math.max(1, batchSize), stats);
+        deleteAllWithLabel("CordraObject", Math.max(1, batchSize), stats);
+        return stats.toJson();
+    }
 
-        String cypherQuery = Renderer
-                .getRenderer(Configuration.prettyPrinting())
-                .render(statement);
-        logQuery(cypherQuery, config.verbose);
+    public JsonElement deleteAll(String label, int batchSize) {
+        DeleteStats stats = new DeleteStats("label " + label);
+        deleteAllWithLabel(label, Math.max(1, batchSize), stats);
+        return stats.toJson();
+    }
 
-        try (Session session = driver.session(getSessionConfig())) {
-            session.writeTransaction(tx -> {
-                tx.run(cypherQuery);
-                return null;
+    private void deleteAllWithLabel(String label, int batchSize, DeleteStats stats) {
+        Query query = templates.deleteLabelBatchQuery(label, batchSize);
+        logQuery(query, config.verbose);
+        while (true) {
+            int[] counts = writeScheduler.bulk(() -> {
+                try (Session session = driver.session(getSessionConfig())) {
+                    int[] deleted = session.writeTransaction(tx -> {
+                        SummaryCounters counters = tx.run(query).consume().counters();
+                        return new int[] { 0, counters.nodesDeleted(), counters.relationshipsDeleted() };
+                    });
+                    recordBookmark(session);
+                    return deleted;
+                } finally {
+                    searchCache.invalidateAll();
+                }
             });
+            if (counts[1] == 0) return;
+            stats.batchDeleted(counts[0], counts[1], counts[2]);
+            if (counts[1] < batchSize) return;
         }
     }
 
-    public JsonElement search(String cypherQuery) {
-        JsonArray jsonRecords = new JsonArray();
-        try (Session session = driver.session(getSessionConfig())) {
-            Result result = session.run(cypherQuery);
-            List<Record> records = result.list();
-            Gson gson = GsonUtility.getPrettyGson();
-            for (Record r : records) {
-                Map<String, Object> map = r.asMap();
-                JsonObject jsonRecord = gson.toJsonTree(map).getAsJsonObject();
-                jsonRecords.add(jsonRecord);
+    /**
+     * Sets _owner on nodes written before the extension stored it, batchSize nodes per transaction,
+     * and deletes the nodes that no object reaches any more. Until then deletes and updates do not
+     * find those nodes. An interrupted run can simply be run again.
+     */
+    public JsonElement backfillOwners(int batchSize) {
+        int limit = Math.max(1, batchSize);
+        Query query = templates.backfillOwnerBatchQuery(limit);
+        logQuery(query, config.verbose);
+        long startNanos = System.nanoTime();
+        long owned = 0;
+        long deleted = 0;
+        long batches = 0;
+        while (true) {
+            int[] counts = writeScheduler.bulk(() -> {
+                try (Session session = driver.session(getSessionConfig())) {
+                    int[] written = session.writeTransaction(tx -> {
+                        SummaryCounters counters = tx.run(query).consume().counters();
+                        return new int[] { counters.propertiesSet(), counters.nodesDeleted() };
+                    });
+                    recordBookmark(session);
+                    return written;
+                } finally {
+                    searchCache.invalidateAll();
+                }
+            });
+            owned += counts[0];
+            deleted += counts[1];
+            batches++;
+            logger.info("Backfilling _owner in Neo4j: {} nodes owned and {} unreachable nodes deleted so far", owned, deleted);
+            if (counts[0] + counts[1] < limit) break;
+        }
+        JsonObject result = new JsonObject();
+        result.addProperty("ownedNodeCount", owned);
+        result.addProperty("deletedNodeCount", deleted);
+        result.addProperty("batchCount", batches);
+        result.addProperty("elapsedMs", TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos));
+        return result;
+    }
+
+    /**
+     * Deletes the graphs of all objects of a type, batchSize objects per transaction.
+     */
+    public JsonElement deleteAllOfType(String type, int batchSize) {
+        DeleteStats stats = new DeleteStats("type " + type);
+        batchSize = Math.max(1, batchSize);
+        Query idsQuery = templates.typeIdsBatchQuery(type, batchSize);
+        while (true) {
+            int[] counts = writeScheduler.bulk(() -> {
+                try (Session session = driver.session(getSessionConfig())) {
+                    int[] deleted = session.writeTransaction(tx -> {
+                        logQuery(idsQuery, config.verbose);
+                        List<String> ids = tx.run(idsQuery).list(record -> record.get("id").asString());
+                        return deleteObjects(tx, ids);
+                    });
+                    recordBookmark(session);
+                    return deleted;
+                } finally {
+                    searchCache.invalidateAll();
+                }
+            });
+            if (counts[0] == 0) break;
+            stats.batchDeleted(counts[0], counts[1], counts[2]);
+            if (counts[0] < batchSize) break;
+        }
+        return stats.toJson();
+    }
+
+    /**
+     * Deletes the graphs of the objects matching a Cordra query, batchSize objects per
+     * transaction. Objects are not deleted from Cordra.
+     */
+    public JsonElement deleteQueryResults(String cordraQuery, int batchSize) throws CordraException {
+        DeleteStats stats = new DeleteStats("query " + cordraQuery);
+        batchSize = Math.max(1, batchSize);
+        List<String> batch = new ArrayList<>(batchSize);
+        try (SearchResults<String> results = cordra.searchHandles(cordraQuery)) {
+            for (String id : results) {
+                batch.add(id);
+                if (batch.size() >= batchSize) {
+                    deleteObjects(batch, stats);
+                    batch.clear();
+                }
+            }
+        }
+        if (!batch.isEmpty()) {
+            deleteObjects(batch, stats);
+        }
+        return stats.toJson();
+    }
+
+    private void deleteObjects(List<String> ids, DeleteStats stats) {
+        int[] counts = writeScheduler.bulk(() -> {
+            try (Session session = driver.session(getSessionConfig())) {
+                int[] deleted = session.writeTransaction(tx -> deleteObjects(tx, ids));
+                recordBookmark(session);
+                return deleted;
+            } finally {
+                searchCache.invalidateAll();
             }
+        });
+        stats.batchDeleted(counts[0], counts[1], counts[2]);
+    }
+
+    // returns the number of objects, nodes and relationships deleted
+    private int[] deleteObjects(Transaction tx, List<String> ids) {
+        int[] counts = { ids.size(), 0, 0 };
+        if (ids.isEmpty()) return counts;
+        for (Query query : templates.deleteObjectsQueries(ids)) {
+            logQuery(query, config.verbose);
+            SummaryCounters counters = tx.run(query).consume().counters();
+            counts[1] += counters.nodesDeleted();
+            counts[2] += counters.relationshipsDeleted();
         }
-        return jsonRecords;
+        return counts;
+    }
+
+    public JsonElement search(String cypherQuery) throws CordraException {
+        return search(cypherQuery, Collections.emptyList());
+    }
+
+    public JsonElement search(String cypherQuery, List<Bookmark> bookmarks) throws CordraException {
+        return search(cypherQuery, bookmarks, true);
+    }
+
+    /**
+     * With useCache, a cached page is returned if the search cache is enabled and nothing the
+     * query reads has been written since; pass false when the bookmarks come from another node.
+     */
+    public JsonElement search(String cypherQuery, List<Bookmark> bookmarks, boolean useCache) throws CordraException {
+        return searchAll(cypherQuery, Collections.emptyMap(), bookmarks, useCache);
+    }
+
+    // every row, unless searchRejectOverMaxRows is set
+    private JsonElement searchAll(String cypherQuery, Map<String, Object> parameters, List<Bookmark> bookmarks, boolean useCache) throws CordraException {
+        int maxRows = config.searchRejectOverMaxRows ? config.searchMaxRows : Integer.MAX_VALUE;
+        SearchPage page = readPage(cypherQuery, parameters, 0, maxRows, bookmarks, useCache);
+        if (page.hasMore) {
+            throw new BadRequestCordraException("Query returned more than " + maxRows + " rows; use pageSize to page through the results");
+        }
+        return page.records;
+    }
+
+    /**
+     * Returns one page of results as {results, continuationToken}; the token is absent on the last page.
+     * Pages are stable only if the query has an ORDER BY on unique values and the rows before the page
+     * do not change; otherwise rows can repeat or be missed between pages.
+     */
+    public JsonElement search(String cypherQuery, int pageSize, String continuationToken, List<Bookmark> bookmarks) throws CordraException {
+        return search(cypherQuery, pageSize, continuationToken, bookmarks, true);
+    }
+
+    public JsonElement search(String cypherQuery, int pageSize, String continuationToken, List<Bookmark> bookmarks, boolean useCache) throws CordraException {
+        return searchPage(cypherQuery, Collections.emptyMap(), pageSize, continuationToken, bookmarks, useCache);
+    }
+
+    private JsonElement searchPage(String cypherQuery, Map<String, Object> parameters, int pageSize, String continuationToken, List<Bookmark> bookmarks, boolean useCache) throws CordraException {
+        int offset = SearchContinuation.decode(continuationToken, cypherQuery);
+        int limit = Math.min(pageSize, config.searchMaxRows);
+        SearchPage page = readPage(cypherQuery, parameters, offset, limit, bookmarks, useCache);
+        JsonObject json = new JsonObject();
+        json.add("results", page.records);
+        if (page.hasMore) {
+            json.addProperty("continuationToken", SearchContinuation.encode(offset + limit, cypherQuery));
+        }
+        return json;
+    }
+
+    /**
+     * Writes results as newline-delimited JSON, one record per line. If there are more rows than
+     * the page size (or the configured maximum) a final {"_continuationToken": ...} line is written.
+     */
+    public void searchToWriter(String cypherQuery, int pageSize, String continuationToken, List<Bookmark> bookmarks, Writer writer) throws CordraException, IOException {
+        int offset = SearchContinuation.decode(continuationToken, cypherQuery);
+        int limit = pageSize > 0 ? Math.min(pageSize, config.searchMaxRows) : config.searchMaxRows;
+        Gson gson = GsonUtility.getGson();
+        boolean hasMore;
+        try {
+            hasMore = stream(cypherQuery, offset, limit, bookmarks, jsonRecord -> {
+                try {
+                    gson.toJson(jsonRecord, writer);
+                    writer.write('\n');
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        if (hasMore) {
+            JsonObject continuation = new JsonObject();
+            continuation.addProperty("_continuationToken", SearchContinuation.encode(offset + limit, cypherQuery));
+            gson.toJson(continuation, writer);
+            writer.write('\n');
+        }
+        writer.flush();
+    }
+
+    private static class SearchPage {
+        final JsonArray records;
+        boolean hasMore;
+
+        SearchPage() {
+            this.records = new JsonArray();
+        }
+
+        SearchPage(SearchCache.CachedPage cached) {
+            this.records = cached.records;
+            this.hasMore = cached.hasMore;
+        }
+    }
+
+    private SearchPage readPage(String cypherQuery, Map<String, Object> parameters, int offset, int limit, List<Bookmark> bookmarks, boolean useCache) {
+        SearchCache cache = searchCache;
+        SearchCache.Snapshot snapshot = null;
+        if (useCache && cache.isEnabled()) {
+            snapshot = cache.snapshot(cypherQuery, parameters, offset, limit);
+            SearchCache.CachedPage cached = cache.get(snapshot);
+            if (cached != null) return new SearchPage(cached);
+        }
+        SearchPage result;
+        try (Session session = driver.session(getReadSessionConfig(bookmarks))) {
+            // a retried transaction starts over with a fresh page
+            try {
+                result = session.readTransaction(tx -> {
+                    SearchPage page = new SearchPage();
+                    page.hasMore = consume(tx.run(pageQuery(tx, cypherQuery, parameters, offset, limit)), 0, limit, page.records::add);
+                    return page;
+                });
+            } catch (ClientException e) {
+                if (!isUnpageable(e)) throw e;
+                result = session.readTransaction(tx -> {
+                    SearchPage page = new SearchPage();
+                    page.hasMore = consume(tx.run(cypherQuery, parameters), offset, limit, page.records::add);
+                    return page;
+                });
+            }
+        }
+        if (snapshot != null) cache.put(snapshot, result.records, result.hasMore);
+        return result;
+    }
+
+    /**
+     * Streams records offset to offset + limit to the consumer, without holding the result in
+     * memory. Runs as an auto-commit query in a read session, since records that have been
+     * handed on cannot be taken back if a transaction were retried.
+     */
+    private boolean stream(String cypherQuery, int offset, int limit, List<Bookmark> bookmarks, Consumer<JsonObject> consumer) {
+        try (Session session = driver.session(getReadSessionConfig(bookmarks))) {
+            Result result;
+            try {
+                result = session.run(pageQuery(session, cypherQuery, Collections.emptyMap(), offset, limit));
+                // a query that cannot be paged fails before its first record
+                result.hasNext();
+            } catch (ClientException e) {
+                if (!isUnpageable(e)) throw e;
+                return consume(session.run(cypherQuery), offset, limit, consumer);
+            }
+            return consume(result, 0, limit, consumer);
+        }
+    }
+
+    /**
+     * The query cut to the page on the server, with one row more than the page to tell whether
+     * there are more; the whole query if the page is every row.
+     */
+    private Query pageQuery(QueryRunner runner, String cypherQuery, Map<String, Object> parameters, int offset, int limit) {
+        if (offset == 0 && limit == Integer.MAX_VALUE) return new Query(cypherQuery, parameters);
+        List<String> columns = pageColumns.get(cypherQuery);
+        if (columns == null) {
+            Result result = runner.run(new Query("EXPLAIN " + cypherQuery, parameters));
+            columns = result.keys();
+            result.consume();
+            pageColumns.put(cypherQuery, columns);
+        }
+        return pageQuery(cypherQuery, parameters, offset, limit, columns);
+    }
+
+    private CompletionStage<Query> pageQueryAsync(AsyncQueryRunner runner, String cypherQuery, int offset, int limit) {
+        if (offset == 0 && limit == Integer.MAX_VALUE) return CompletableFuture.completedFuture(new Query(cypherQuery));
+        List<String> cached = pageColumns.get(cypherQuery);
+        if (cached != null) return CompletableFuture.completedFuture(pageQuery(cypherQuery, Collections.emptyMap(), offset, limit, cached));
+        return runner.runAsync("EXPLAIN " + cypherQuery)
+                .thenCompose(cursor -> cursor.consumeAsync().thenApply(summary -> {
+                    List<String> columns = cursor.keys();
+                    pageColumns.put(cypherQuery, columns);
+                    return pageQuery(cypherQuery, Collections.emptyMap(), offset, limit, columns);
+                }));
+    }
+
+    // the paging wrapper returns the columns by name in the query's own order, which RETURN * would sort
+    private static Query pageQuery(String cypherQuery, Map<String, Object> parameters, int offset, int limit, List<String> columns) {
+        Map<String, Object> pageParameters = new HashMap<>(parameters);
+        pageParameters.put(SearchContinuation.SKIP_PARAMETER, (long) offset);
+        pageParameters.put(SearchContinuation.LIMIT_PARAMETER, (long) limit + 1);
+        return new Query(SearchContinuation.pagedQuery(cypherQuery, columns), pageParameters);
+    }
+
+    // queries that cannot be a subquery, like a procedure call without YIELD, are paged on the client
+    private static boolean isUnpageable(Throwable e) {
+        return e instanceof ClientException && "Neo.ClientError.Statement.SyntaxError".equals(((ClientException) e).code());
+    }
+
+    // returns whether there are more records
+    private static boolean consume(Result result, int offset, int limit, Consumer<JsonObject> consumer) {
+        int index = 0;
+        while (result.hasNext()) {
+            Record record = result.next();
+            if (index++ < offset) continue;
+            if (index > offset + limit) return true;
+            consumer.accept(RecordSerializer.toJson(record));
+        }
+        return false;
+    }
+
+    /**
+     * Runs a query registered in the design object's neo4jQueries payload, in a read transaction
+     * with the given parameter values. Results are returned as by search, paged if pageSize or
+     * continuationToken is given.
+     */
+    public JsonElement runNamedQuery(String name, JsonObject parameterValues, int pageSize, String continuationToken, List<Bookmark> bookmarks, boolean useCache) throws CordraException {
+        NamedQueries.NamedQuery namedQuery = namedQueries.get(name);
+        if (!namedQuery.isValidated()) {
+            try (Session session = driver.session(getReadSessionConfig(null))) {
+                namedQuery.validate(session, config.namedQueryCheckTimeoutMs);
+            }
+        }
+        namedQuery.checkValid();
+        Map<String, Object> parameters = namedQuery.toParameters(parameterValues);
+        long start = System.nanoTime();
+        try {
+            JsonElement result;
+            if (pageSize > 0 || continuationToken != null) {
+                result = searchPage(namedQuery.getQuery(), parameters, pageSize > 0 ? pageSize : config.searchMaxRows, continuationToken, bookmarks, useCache);
+            } else {
+                result = searchAll(namedQuery.getQuery(), parameters, bookmarks, useCache);
+            }
+            namedQuery.recordLatency(System.nanoTime() - start);
+            return result;
+        } catch (CordraException | RuntimeException e) {
+            namedQuery.recordError();
+            throw e;
+        }
+    }
+
+    public JsonObject getNamedQueries() {
+        return namedQueries.toJson();
     }
 
     public JsonElement reindexAll(boolean includeRelationships) throws CordraException {
@@ -144,25 +747,255 @@ public class Neo4jCordraObjectIndexer {
     }
 
     public JsonElement reindexQueryResults(String cordraQuery, boolean includeRelationships) throws CordraException {
-        long count = 0;
+        ReindexOptions options = ReindexOptions.fromConfig(config);
+        options.includeRelationships = includeRelationships;
+        return reindexQueryResults(cordraQuery, options);
+    }
+
+    public JsonElement reindexQueryResults(String cordraQuery, ReindexOptions options) throws CordraException {
+        checkIndexesForBulkWrite();
+        ReindexStats stats = new ReindexStats();
         try (SearchResults<CordraObject> results = cordra.search(cordraQuery)) {
-            count = reindex(results, includeRelationships);
+            reindexObjects(results, options, stats);
         }
-        JsonObject json = new JsonObject();
-        json.addProperty("reindexCount", count);
-        return json;
+        return stats.toJson();
+    }
+
+    /**
+     * Reindexes the objects, then merges any external relationships deferred until all of them
+     * were written.
+     */
+    void reindexObjects(Iterable<CordraObject> objects, ReindexOptions options, ReindexStats stats) throws CordraException {
+        try (ExternalEdgeBuffer deferredEdges = options.isDeferringRelationships() ? new ExternalEdgeBuffer(options.deferredEdgesInMemory) : null) {
+            if (options.isPipelined()) {
+                new ReindexPipeline(this, options, deferredEdges, stats).run(objects);
+            } else if (options.batchSize > 1) {
+                reindexBatched(objects, options, deferredEdges, stats);
+            } else {
+                reindex(objects, options, deferredEdges, stats);
+            }
+            if (deferredEdges != null) {
+                writeDeferredRelationships(deferredEdges, options.deferredEdgeBatchSize, stats);
+            }
+        } catch (IOException e) {
+            throw new InternalErrorCordraException("Error buffering relationships", e);
+        }
+    }
+
+    /**
+     * Starts reindexing the query results as a background job, checkpointed after every segment
+     * of reindexJobSegmentSize objects so that it can be paused, resumed, or picked up again after
+     * a restart.
+     */
+    public JsonElement startReindexJob(String cordraQuery, ReindexOptions options) throws CordraException {
+        checkIndexesForBulkWrite();
+        return reindexJobs.start(cordraQuery, options, config.reindexJobSegmentSize).toJson();
+    }
+
+    public JsonElement getReindexJobStatus(String jobId) throws CordraException {
+        if (jobId != null) {
+            return reindexJobs.get(jobId).toJson();
+        }
+        JsonArray jobs = new JsonArray();
+        for (ReindexJob job : reindexJobs.list()) {
+            jobs.add(job.toJson());
+        }
+        JsonObject result = new JsonObject();
+        result.add("jobs", jobs);
+        return result;
+    }
+
+    public JsonElement pauseReindexJob(String jobId) throws CordraException {
+        return reindexJobs.pause(jobId).toJson();
+    }
+
+    public JsonElement resumeReindexJob(String jobId) throws CordraException {
+        checkIndexesForBulkWrite();
+        return reindexJobs.resume(jobId).toJson();
     }
 
-    private long reindex(SearchResults<CordraObject> results, boolean includeRelationships) throws CordraException {
-        long count = 0;
+    public JsonElement cancelReindexJob(String jobId) throws CordraException {
+        return reindexJobs.cancel(jobId).toJson();
+    }
+
+    /**
+     * Exports to the given subdirectory of the configured export directory, which must be empty or
+     * not exist yet.
+     */
+    public JsonElement exportCsv(String cordraQuery, String subdirectory) throws CordraException {
+        Path directory = CsvExporter.resolveDirectory(Util.resolveDataPath(config.exportDirectory), subdirectory);
+        try {
+            long start = System.nanoTime();
+            long failedCount = 0;
+            JsonObject stats;
+            try (CsvExporter exporter = new CsvExporter(directory, config.exportMaxOpenFiles);
+                 SearchResults<CordraObject> results = cordra.search(cordraQuery)) {
+                for (CordraObject co : results) {
+                    if (!shouldIndexType(co.type)) continue;
+                    try {
+                        exporter.add(project(co, true).projection);
+                    } catch (CordraException | RuntimeException e) {
+                        logger.error("Error exporting " + co.id, e);
+                        failedCount++;
+                    }
+                }
+                stats = exporter.finish();
+            }
+            stats.addProperty("failedCount", failedCount);
+            stats.addProperty("elapsedMs", TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+            return stats;
+        } catch (DirectoryNotEmptyException e) {
+            throw new BadRequestCordraException("Export directory " + subdirectory + " is not empty");
+        } catch (IOException e) {
+            throw new InternalErrorCordraException("Error writing CSV export", e);
+        }
+    }
+
+    private void reindex(Iterable<CordraObject> results, ReindexOptions options, ExternalEdgeBuffer deferredEdges, ReindexStats stats) throws CordraException {
+        for (CordraObject co : results) {
+            if (!shouldIndexType(co.type)) continue;
+            writeBulkUpdate(project(co, options.includeRelationships, deferredEdges).projection);
+            stats.objectWritten();
+        }
+    }
+
+    private void reindexBatched(Iterable<CordraObject> results, ReindexOptions options, ExternalEdgeBuffer deferredEdges, ReindexStats stats) throws CordraException {
+        List<ProjectedObject> batch = new ArrayList<>(options.batchSize);
         for (CordraObject co : results) {
-            Map<String, JsonElement> pointerToSchemaMap = hooks.getPointerToSchemaMap(co);
-            if (shouldIndexType(co.type)) {
-                update(co, pointerToSchemaMap, includeRelationships);
-                count++;
+            if (!shouldIndexType(co.type)) continue;
+            batch.add(project(co, options.includeRelationships, deferredEdges));
+            if (batch.size() >= options.batchSize) {
+                writeBatch(batch, stats);
+                batch = new ArrayList<>(options.batchSize);
+            }
+        }
+        if (!batch.isEmpty()) {
+            writeBatch(batch, stats);
+        }
+    }
+
+    ProjectedObject project(CordraObject co, boolean includeRelationships) throws CordraException {
+        long start = System.nanoTime();
+        Map<String, JsonElement> pointerToSchemaMap = hooks.getPointerToSchemaMap(co);
+        indexerStats.recordPhase(IndexerStats.SCHEMA_LOOKUP, System.nanoTime() - start);
+        GraphProjection projection = projectGraph(co, pointerToSchemaMap, includeRelationships);
+        return new ProjectedObject(co, pointerToSchemaMap, projection);
+    }
+
+    private GraphProjection projectGraph(CordraObject co, Map<String, JsonElement> pointerToSchemaMap, boolean includeRelationships) {
+        long start = System.nanoTime();
+        MappingPlan plan = getMappingPlan(co.type, pointerToSchemaMap);
+        long denestStart = System.nanoTime();
+        indexerStats.recordPhase(IndexerStats.SCHEMA_LOOKUP, denestStart - start);
+        GraphProjection projection = GraphProjection.project(co, plan, pointerToSchemaMap, includeRelationships, config.incrementalUpdate);
+        indexerStats.recordPhase(IndexerStats.DENEST, System.nanoTime() - denestStart);
+        return projection;
+    }
+
+    // records the time since start under the phase and returns the current time
+    private long recordPhase(String phase, long start) {
+        long now = System.nanoTime();
+        indexerStats.recordPhase(phase, now - start);
+        return now;
+    }
+
+    /**
+     * Projects an object; if deferredEdges is not null its external relationships are moved into
+     * the buffer instead of being written with the object's graph.
+     */
+    ProjectedObject project(CordraObject co, boolean includeRelationships, ExternalEdgeBuffer deferredEdges) throws CordraException {
+        ProjectedObject projectedObject = project(co, includeRelationships);
+        if (deferredEdges != null) {
+            try {
+                deferredEdges.addAll(projectedObject.projection);
+            } catch (IOException e) {
+                throw new InternalErrorCordraException("Error buffering relationships of " + co.id, e);
+            }
+            projectedObject.projection.externalRelationships.clear();
+        }
+        return projectedObject;
+    }
+
+    void writeBatch(List<ProjectedObject> batch, ReindexStats stats) {
+        List<GraphProjection> projections = new ArrayList<>(batch.size());
+        for (ProjectedObject projectedObject : batch) {
+            projections.add(projectedObject.projection);
+        }
+        long buildStart = System.nanoTime();
+        List<Query> queries = templates.batchUpdateQueries(projections);
+        long start = recordPhase(IndexerStats.STATEMENT_BUILD, buildStart);
+        try {
+            writeQueries(queries);
+            long nanos = System.nanoTime() - start;
+            indexerStats.recordPhase(IndexerStats.BATCH_TRANSACTION, nanos);
+            projections.forEach(this::objectWritten);
+            stats.batchWritten(batch.size(), nanos);
+        } catch (Exception e) {
+            logger.warn("Batch of {} objects failed, falling back to per-object writes", batch.size(), e);
+            for (ProjectedObject projectedObject : batch) {
+                try {
+                    writeBulkUpdate(projectedObject.projection);
+                    stats.fallbackWritten();
+                } catch (Exception ex) {
+                    logger.error("Error reindexing " + projectedObject.co.id, ex);
+                    stats.failed();
+                }
+            }
+        }
+    }
+
+    private void writeDeferredRelationships(ExternalEdgeBuffer deferredEdges, int batchSize, ReindexStats stats) throws IOException {
+        stats.relationshipsSpilled(deferredEdges.getSpilledCount());
+        deferredEdges.forEachBatch(Math.max(1, batchSize), batch -> {
+            try {
+                try {
+                    writeQueries(templates.deferredRelationshipQueries(batch));
+                } finally {
+                    searchCache.invalidateAll();
+                }
+                stats.relationshipsWritten(batch.size());
+            } catch (Exception e) {
+                logger.error("Error merging batch of " + batch.size() + " relationships", e);
+                stats.relationshipsFailed(batch.size());
+                if (config.incrementalUpdate) clearSourceHashes(batch);
+            }
+        });
+    }
+
+    // the stored hashes cover the relationships that failed, so without this updates would skip them
+    private void clearSourceHashes(List<ExternalEdgeBuffer.Edge> batch) {
+        try {
+            writeQueries(templates.clearSourceHashesQueries(batch));
+        } catch (Exception e) {
+            logger.error("Error clearing content hashes after failed relationships; reindex the objects they come from", e);
+        }
+    }
+
+    // only used for bulk writes
+    private void writeQueries(List<Query> queries) {
+        writeScheduler.bulk(() -> {
+            try (Session session = driver.session(getSessionConfig())) {
+                session.writeTransaction(tx -> {
+                    for (Query query : queries) {
+                        logQuery(query, config.verbose);
+                        tx.run(query).consume();
+                    }
+                    return null;
+                });
+                recordBookmark(session);
             }
+        });
+    }
+
+    static class ProjectedObject {
+        final CordraObject co;
+        final Map<String, JsonElement> pointerToSchemaMap;
+        final GraphProjection projection;
+        ProjectedObject(CordraObject co, Map<String, JsonElement> pointerToSchemaMap, GraphProjection projection) {
+            this.co = co;
+            this.pointerToSchemaMap = pointerToSchemaMap;
+            this.projection = projection;
         }
-        return count;
     }
 
     public JsonElement reindexId(String id, boolean includeRelationships) throws CordraException {
@@ -175,366 +1008,544 @@ public class Neo4jCordraObjectIndexer {
     }
 
     public void delete(CordraObject co) {
-        var statement = buildDeleteStatement(co.id).build();
-
-        String cypherQuery = Renderer
-                .getRenderer(Configuration.prettyPrinting())
-                .render(statement);
-        logQuery(cypherQuery, config.verbose);
+        long start = System.nanoTime();
+        Query query = CypherTemplates.deleteQuery(co.id);
+        logQuery(query, config.verbose);
 
+        WriteScheduler scheduler = writeScheduler;
+        long liveStart = scheduler.beginLive();
+        Throwable error = null;
         try (Session session = driver.session(getSessionConfig())) {
             session.writeTransaction(tx -> {
-                tx.run(cypherQuery);
+                tx.run(query);
                 return null;
             });
+            recordBookmark(session);
+        } catch (RuntimeException e) {
+            error = e;
+            throw e;
+        } finally {
+            scheduler.endLive(liveStart, error);
         }
-    }
-
-    private static StatementBuilder.OngoingUpdate buildDeleteStatement(String id) {
-        Node rootNode = Cypher.node("CordraObject")
-                .named("root")
-                .withProperties("_id", Cypher.literalOf(id));
-
-        Node internalNode = Cypher.node("_CordraObject")
-                .named("internal");
-
-        Relationship internalRelationships = rootNode.relationshipTo(internalNode).unbounded();
-        return Cypher.match(rootNode)
-                .optionalMatch(internalRelationships)
-                .detachDelete(internalNode)
-                .with(rootNode)
-                .detachDelete(rootNode);
+        searchCache.invalidateType(co.type);
+        recordPhase(IndexerStats.TRANSACTION, start);
+        indexerStats.recordOperation("delete", co.id, System.nanoTime() - start, config.slowOperationMs);
     }
 
     public Value update(CordraObject co, Map<String, JsonElement> pointerToSchemaMap, boolean includeRelationships) {
         if (!shouldIndexType(co.type)) return null;
 
-        /*
-          MATCH (root:CordraObject {_id: 'test/93ba2d8d68a54657ef55'})
-          SET root = $props
-          OPTIONAL MATCH (root) -[*]-> (internal:`_CordraObject`)
-          DETACH DELETE internal
-          WITH root
-          OPTIONAL MATCH (root) -[*]-> (external:CordraObject)
-          DELETE e
-          // build graph from here as if it were a create
-         */
-
-        // denest Json into non-nested objects and relationships
-        Json denester = new Json(co.content);
-        denester.denest();
-        var pointerToObjectMap = denester.getPointerToObjectMap();
-        addBasicProperties(pointerToObjectMap, pointerToSchemaMap, co);
-
-        var sourceToTargetWithRelationship = denester.getSourceToTargetWithRelationship();
+        long start = System.nanoTime();
+        GraphProjection projection = projectGraph(co, pointerToSchemaMap, includeRelationships);
+        WriteScheduler scheduler = writeScheduler;
+        long liveStart = scheduler.beginLive();
+        Value resultValue;
+        Throwable error = null;
+        try {
+            resultValue = writeUpdate(projection);
+        } catch (RuntimeException e) {
+            error = e;
+            throw e;
+        } finally {
+            scheduler.endLive(liveStart, error);
+        }
+        indexerStats.recordOperation("update", co.id, System.nanoTime() - start, config.slowOperationMs);
+        return resultValue;
+    }
 
-        // populate external references and use relationship name from schema - if asked
-        Map<String, List<ExternalRelative>> sourceToExternalTargetWithRelationship = includeRelationships ? deriveExternalRelationships(co.content, pointerToSchemaMap) : new HashMap<>();
+    Value writeBulkUpdate(GraphProjection projection) {
+        return writeScheduler.bulk(() -> writeUpdate(projection));
+    }
 
-        // use relationship name from schema for internal references
-        updateInternalRelationshipNames(sourceToTargetWithRelationship, pointerToSchemaMap);
+    Value writeUpdate(GraphProjection projection) {
+        if (config.incrementalUpdate) {
+            return writeIncrementalUpdate(projection);
+        }
+        long buildStart = System.nanoTime();
+        Query query = templates.updateQuery(projection);
+        long start = recordPhase(IndexerStats.STATEMENT_BUILD, buildStart);
+        logQuery(query, config.verbose);
 
-        // execute the Cypher query as shown in the example comment above
-        ImmutablePair<StatementBuilder.OngoingUpdate, Node> updateAndRoot = buildUpdateStatement(co.id, co.type, pointerToObjectMap);
+        Value resultValue;
+        try (Session session = driver.session(getSessionConfig())) {
+            resultValue = session.writeTransaction(tx -> runForFirstValue(tx, query));
+            recordBookmark(session);
+        }
+        recordPhase(IndexerStats.TRANSACTION, start);
+        objectWritten(projection);
+        return resultValue;
+    }
 
-        // now build the graph as if it were a create
-        var statement = buildGraph(co.id, updateAndRoot.left, updateAndRoot.right, pointerToObjectMap, pointerToSchemaMap, sourceToTargetWithRelationship, sourceToExternalTargetWithRelationship);
+    private Value runForFirstValue(Transaction tx, Query query) {
+        return firstValue(tx.run(query).list());
+    }
 
-        String cypherQuery = Renderer
-                .getRenderer(Configuration.prettyPrinting())
-                .render(statement);
-        logQuery(cypherQuery, config.verbose);
+    private static Value firstValue(List<Record> records) {
+        Value firstResult = null;
+        int i = 0;
+        for (Record rec : records) {
+            if (i++ == 0) {
+                firstResult = rec.get(0);
+                if (!logger.isTraceEnabled()) break;
+            }
+            logger.trace("Result: {}", rec.get(0));
+        }
+        return firstResult; // TODO: for some reason, result.single().get(0) returns duplicates of the same Node with cypher-dsl, although Cypher query applied directly on Neo4j returns only one Node.
+    }
 
+    /**
+     * Compares the stored content hashes with the projection's and writes only what changed;
+     * returns null without writing if the whole graph is unchanged.
+     */
+    private Value writeIncrementalUpdate(GraphProjection projection) {
+        Query storedGraphQuery = CypherTemplates.storedGraphQuery(projection.id);
+        logQuery(storedGraphQuery, config.verbose);
+        IncrementalUpdate[] update = new IncrementalUpdate[1];
+        long start = System.nanoTime();
         Value resultValue;
         try (Session session = driver.session(getSessionConfig())) {
             resultValue = session.writeTransaction(tx -> {
-                Result result = tx.run(cypherQuery);
-                List<Record> records = result.list();
-                Value firstResult = null;
-                int i = 0;
-                for (Record rec : records) {
-                    if (i++ == 0) {
-                        firstResult = rec.get(0);
-                        if (!config.verbose) break;
-                    }
-                    System.out.println();
-                    System.out.println(rec.get(0).toString());
+                Result storedResult = tx.run(storedGraphQuery);
+                update[0] = planIncrementalUpdate(projection, storedResult.hasNext() ? storedResult.next() : null);
+                List<Query> queries = update[0].queries;
+                if (queries.isEmpty()) return null;
+                for (int i = 0; i < queries.size() - 1; i++) {
+                    tx.run(queries.get(i)).consume();
                 }
-                return firstResult; // TODO: for some reason, result.single().get(0) returns duplicates of the same Node with cypher-dsl, although Cypher query applied directly on Neo4j returns only one Node.
+                return runForFirstValue(tx, queries.get(queries.size() - 1));
             });
+            recordBookmark(session);
         }
+        recordPhase(IndexerStats.TRANSACTION, start);
+        incrementalUpdateWritten(projection, update[0]);
         return resultValue;
     }
 
-    private static ImmutablePair<StatementBuilder.OngoingUpdate, Node> buildUpdateStatement(String id, String type, Map<String, JsonObject> pointerToObjectMap) {
-        JsonObject rootObject = pointerToObjectMap.get("");
-        Node rootNode = Cypher.node(type,"CordraObject")
-                .named("root")
-                .withProperties("_id", Cypher.literalOf(id));
-
-        Node internalNode = Cypher.node("_CordraObject")
-                .named("internal");
-
-        Node externalNode = Cypher.node("CordraObject")
-                .named("external");
-
-        Relationship internalRelationships = rootNode.relationshipTo(internalNode).unbounded();
-        Relationship externalRelationships = rootNode.relationshipTo(externalNode);
-        var update = Cypher.merge(rootNode)
-                .set(rootNode, Cypher.mapOf(keysAndValues(rootObject)))
-                .with(rootNode)
-                .optionalMatch(internalRelationships)
-                .detachDelete(internalNode)
-                .with(rootNode)
-                .optionalMatch(externalRelationships)
-                .delete(externalRelationships);
-
-        return new ImmutablePair<>(update, rootNode);
+    /**
+     * What an incremental update runs, decided from the stored graph. The result of the last query
+     * is the update's result.
+     */
+    private static final class IncrementalUpdate {
+        String outcome;
+        GraphDiff diff;
+        List<Query> queries = Collections.emptyList();
     }
 
-    public Value create(CordraObject co, Map<String, JsonElement> pointerToSchemaMap) {
-        if (!shouldIndexType(co.type)) return null;
+    // stored is the row of the stored graph query, or null if the object is not stored yet
+    private IncrementalUpdate planIncrementalUpdate(GraphProjection projection, Record stored) {
+        IncrementalUpdate update = new IncrementalUpdate();
+        if (stored == null) {
+            update.outcome = "full";
+            update.queries = List.of(templates.updateQuery(projection));
+        } else if (isUnchanged(projection, stored)) {
+            update.outcome = "skipped";
+        } else {
+            update.outcome = "incremental";
+            long buildStart = System.nanoTime();
+            update.diff = GraphDiff.compute(projection, stored);
+            update.queries = templates.incrementalUpdateQueries(projection, update.diff);
+            recordPhase(IndexerStats.STATEMENT_BUILD, buildStart);
+        }
+        for (Query query : update.queries) {
+            logQuery(query, config.verbose);
+        }
+        return update;
+    }
 
-        // denest Json into non-nested objects and relationships
-        Json denester = new Json(co.content);
-        denester.denest();
-        var pointerToObjectMap = denester.getPointerToObjectMap();
-        addBasicProperties(pointerToObjectMap, pointerToSchemaMap, co);
+    private void incrementalUpdateWritten(GraphProjection projection, IncrementalUpdate update) {
+        countUpdate(update.outcome);
+        if (update.diff != null) {
+            indexerStats.objectWritten(update.diff.writtenNodes().size(), update.diff.countWrittenRelationships(projection));
+            searchCache.invalidate(projection);
+        } else if (!"skipped".equals(update.outcome)) {
+            objectWritten(projection);
+        }
+    }
 
-        var sourceToTargetWithRelationship = denester.getSourceToTargetWithRelationship();
+    private void objectWritten(GraphProjection projection) {
+        indexerStats.objectWritten(projection);
+        searchCache.invalidate(projection);
+    }
 
-        // populate external references and use relationship name from schema
-        var sourceToExternalTargetWithRelationship = deriveExternalRelationships(co.content, pointerToSchemaMap);
+    private static boolean isUnchanged(GraphProjection projection, Record stored) {
+        Value storedGraphHash = stored.get("graphHash");
+        return !storedGraphHash.isNull() && projection.graphHash.equals(storedGraphHash.asString());
+    }
 
-        // use relationship name from schema for internal references
-        updateInternalRelationshipNames(sourceToTargetWithRelationship, pointerToSchemaMap);
+    private void countUpdate(String outcome) {
+        switch (outcome) {
+        case "skipped":
+            skippedUpdates.incrementAndGet();
+            break;
+        case "incremental":
+            incrementalUpdates.incrementAndGet();
+            break;
+        default:
+            fullUpdates.incrementAndGet();
+        }
+    }
 
-        ImmutablePair<StatementBuilder.OngoingUpdate, Node> updateAndRoot = buildCreateStatement(pointerToObjectMap);
+    public JsonObject getUpdateStats() {
+        JsonObject stats = new JsonObject();
+        stats.addProperty("incrementalUpdate", config.incrementalUpdate);
+        stats.addProperty("skipped", skippedUpdates.get());
+        stats.addProperty("incremental", incrementalUpdates.get());
+        stats.addProperty("full", fullUpdates.get());
+        return stats;
+    }
 
-        var statement = buildGraph(co.id, updateAndRoot.left, updateAndRoot.right, pointerToObjectMap, pointerToSchemaMap, sourceToTargetWithRelationship, sourceToExternalTargetWithRelationship);
+    public Value create(CordraObject co, Map<String, JsonElement> pointerToSchemaMap) {
+        if (!shouldIndexType(co.type)) return null;
 
-        String cypherQuery = Renderer
-                .getRenderer(Configuration.prettyPrinting())
-                .render(statement);
-        logQuery(cypherQuery, config.verbose);
+        long operationStart = System.nanoTime();
+        GraphProjection projection = projectGraph(co, pointerToSchemaMap, true);
+        long buildStart = System.nanoTime();
+        Query query = templates.createQuery(projection);
+        long start = recordPhase(IndexerStats.STATEMENT_BUILD, buildStart);
+        logQuery(query, config.verbose);
 
+        WriteScheduler scheduler = writeScheduler;
+        long liveStart = scheduler.beginLive();
         Value resultValue;
+        Throwable error = null;
         try (Session session = driver.session(getSessionConfig())) {
             resultValue = session.writeTransaction(tx -> {
-                Result result = tx.run(cypherQuery);
+                Result result = tx.run(query);
                 return result.single().get(0);
             });
+            recordBookmark(session);
+        } catch (RuntimeException e) {
+            error = e;
+            throw e;
+        } finally {
+            scheduler.endLive(liveStart, error);
         }
+        recordPhase(IndexerStats.TRANSACTION, start);
+        objectWritten(projection);
+        indexerStats.recordOperation("create", co.id, System.nanoTime() - operationStart, config.slowOperationMs);
         return resultValue;
     }
 
-    private static ImmutablePair<StatementBuilder.OngoingUpdate, Node> buildCreateStatement(Map<String, JsonObject> pointerToObjectMap) {
-        JsonObject rootObject = pointerToObjectMap.get("");
-        Node rootNode = Cypher.node(rootObject.get("_type").getAsString(), "CordraObject")
-                .named("root")
-                .withProperties(keysAndValues(rootObject));
-
-        // Starting point for building a Cypher statement
-        return new ImmutablePair<>(Cypher.merge(rootNode), rootNode);
+    /**
+     * Non-blocking variant of {@link #create}. Like the other async methods, the caller's thread
+     * only builds the queries; the driver's I/O threads run them, and at most asyncMaxInFlight
+     * operations run at once, with the rest queued (up to asyncMaxPending) by the limiter.
+     */
+    public CompletionStage<Value> createAsync(CordraObject co, Map<String, JsonElement> pointerToSchemaMap) {
+        if (!shouldIndexType(co.type)) return CompletableFuture.completedFuture(null);
+
+        long start = System.nanoTime();
+        GraphProjection projection = projectGraph(co, pointerToSchemaMap, true);
+        long buildStart = System.nanoTime();
+        Query query = templates.createQuery(projection);
+        recordPhase(IndexerStats.STATEMENT_BUILD, buildStart);
+        logQuery(query, config.verbose);
+        CompletionStage<Value> write = writeAsync(tx -> tx.runAsync(query)
+                .thenCompose(ResultCursor::singleAsync)
+                .thenApply(record -> record.get(0)));
+        return recordAsyncOperation("create", co.id, start, write.whenComplete((value, error) -> {
+            if (error == null) objectWritten(projection);
+        }));
     }
 
-    private static void addBasicProperties(Map<String, JsonObject> pointerToObjectMap, Map<String, JsonElement> pointerToSchemaMap, CordraObject co) {
-        for (Map.Entry<String, JsonObject> entry : pointerToObjectMap.entrySet()) {
-            String pointer = entry.getKey();
-            JsonObject object = entry.getValue();
-            if (pointer.equals("")) {
-                object.addProperty("_id", co.id);
-                object.addProperty("_type", co.type);
-            } else {
-                object.addProperty("_id", co.id + ":" + pointer);
-                String label = getLabel(null, pointerToSchemaMap.get(pointer));
-                if (label != null) {
-                    object.addProperty("_type", label);
-                }
-            }
+    public CompletionStage<Value> updateAsync(CordraObject co, Map<String, JsonElement> pointerToSchemaMap, boolean includeRelationships) {
+        if (!shouldIndexType(co.type)) return CompletableFuture.completedFuture(null);
+
+        long start = System.nanoTime();
+        GraphProjection projection = projectGraph(co, pointerToSchemaMap, includeRelationships);
+        if (config.incrementalUpdate) {
+            return recordAsyncOperation("update", co.id, start, writeIncrementalUpdateAsync(projection));
         }
+        long buildStart = System.nanoTime();
+        Query query = templates.updateQuery(projection);
+        recordPhase(IndexerStats.STATEMENT_BUILD, buildStart);
+        logQuery(query, config.verbose);
+        CompletionStage<Value> write = writeAsync(tx -> runForFirstValueAsync(tx, query));
+        return recordAsyncOperation("update", co.id, start, write.whenComplete((value, error) -> {
+            if (error == null) objectWritten(projection);
+        }));
     }
 
-    private static void updateInternalRelationshipNames(Map<String, List<Json.Relative>> sourceToTargetWithRelationship, Map<String, JsonElement> pointerToSchemaMap) {
-        sourceToTargetWithRelationship.forEach((pointer, relatives) -> {
-            relatives.forEach((relative) -> {
-                String property  = relative.relationship;
-                JsonElement subSchemaElement = pointerToSchemaMap.get(pointer + "/" + property);
-                relative.relationship = getRelationshipType(property, subSchemaElement);
-            });
+    public CompletionStage<Void> deleteAsync(CordraObject co) {
+        long start = System.nanoTime();
+        Query query = CypherTemplates.deleteQuery(co.id);
+        logQuery(query, config.verbose);
+        return recordAsyncOperation("delete", co.id, start, writeAsync(tx -> tx.runAsync(query)
+                .thenCompose(ResultCursor::consumeAsync)
+                .thenApply(summary -> (Void) null))
+                .whenComplete((value, error) -> {
+                    if (error == null) searchCache.invalidateType(co.type);
+                }));
+    }
+
+    // async operation times include time spent queued by the limiter
+    private <T> CompletionStage<T> recordAsyncOperation(String operation, String id, long start, CompletionStage<T> stage) {
+        return stage.whenComplete((value, error) -> {
+            if (error == null) indexerStats.recordOperation(operation, id, System.nanoTime() - start, config.slowOperationMs);
         });
     }
 
-    private static Map<String, List<ExternalRelative>> deriveExternalRelationships(JsonElement content, Map<String, JsonElement> pointerToSchemaMap) {
-        Map<String, List<ExternalRelative>> sourceToExternalTargetWithRelationship = new HashMap<>();
-        for (Map.Entry<String, JsonElement> entry : pointerToSchemaMap.entrySet()) {
-            String pointer = entry.getKey();
-            JsonElement value = JsonUtil.getJsonAtPointer(content, pointer);
-            if (value.isJsonPrimitive()) {
-                JsonElement subSchemaElement = pointerToSchemaMap.get(pointer);
-                if (isExternalReference(subSchemaElement)) {
-                    // if the pointer is an array entry, level up for getting property name. E.g., /pets/0 -> /pets
-                    if (JsonUtil.getLastSegmentFromJsonPointer(pointer).matches("^0$|^[1-9]\\d*$")) {
-                        pointer = JsonUtil.getParentJsonPointer(pointer);
+    private CompletionStage<Value> runForFirstValueAsync(AsyncTransaction tx, Query query) {
+        return tx.runAsync(query)
+                .thenCompose(ResultCursor::listAsync)
+                .thenApply(Neo4jCordraObjectIndexer::firstValue);
+    }
+
+    private CompletionStage<Value> writeIncrementalUpdateAsync(GraphProjection projection) {
+        Query storedGraphQuery = CypherTemplates.storedGraphQuery(projection.id);
+        logQuery(storedGraphQuery, config.verbose);
+        IncrementalUpdate[] update = new IncrementalUpdate[1];
+        return writeAsync(tx -> tx.runAsync(storedGraphQuery)
+                .thenCompose(ResultCursor::nextAsync)
+                .thenCompose(stored -> {
+                    update[0] = planIncrementalUpdate(projection, stored);
+                    List<Query> queries = update[0].queries;
+                    if (queries.isEmpty()) return CompletableFuture.completedFuture(null);
+                    CompletionStage<?> previous = CompletableFuture.completedFuture(null);
+                    for (Query query : queries.subList(0, queries.size() - 1)) {
+                        previous = previous.thenCompose(ignored -> tx.runAsync(query).thenCompose(ResultCursor::consumeAsync));
                     }
-                    String property = JsonUtil.getLastSegmentFromJsonPointer(pointer);
-                    String relationship = getRelationshipType(property, subSchemaElement);
-                    String parentPointer = JsonUtil.getParentJsonPointer(pointer);
-                    sourceToExternalTargetWithRelationship.computeIfAbsent(parentPointer, k -> new ArrayList<>()).add(new ExternalRelative(relationship, value.getAsString()));
-                }
+                    Query lastQuery = queries.get(queries.size() - 1);
+                    return previous.thenCompose(ignored -> runForFirstValueAsync(tx, lastQuery));
+                }))
+                .whenComplete((value, error) -> {
+                    if (error == null) incrementalUpdateWritten(projection, update[0]);
+                });
+    }
+
+    public CompletionStage<JsonElement> searchAsync(String cypherQuery, List<Bookmark> bookmarks) {
+        return searchAsync(cypherQuery, bookmarks, true);
+    }
+
+    public CompletionStage<JsonElement> searchAsync(String cypherQuery, List<Bookmark> bookmarks, boolean useCache) {
+        int maxRows = config.searchRejectOverMaxRows ? config.searchMaxRows : Integer.MAX_VALUE;
+        return readPageAsync(cypherQuery, 0, maxRows, bookmarks, useCache).thenCompose(page -> {
+            if (page.hasMore) {
+                return CompletableFuture.failedFuture(new BadRequestCordraException("Query returned more than " + maxRows + " rows; use pageSize to page through the results"));
             }
+            return CompletableFuture.completedFuture(page.records);
+        });
+    }
+
+    public CompletionStage<JsonElement> searchAsync(String cypherQuery, int pageSize, String continuationToken, List<Bookmark> bookmarks) {
+        return searchAsync(cypherQuery, pageSize, continuationToken, bookmarks, true);
+    }
+
+    public CompletionStage<JsonElement> searchAsync(String cypherQuery, int pageSize, String continuationToken, List<Bookmark> bookmarks, boolean useCache) {
+        int offset;
+        try {
+            offset = SearchContinuation.decode(continuationToken, cypherQuery);
+        } catch (BadRequestCordraException e) {
+            return CompletableFuture.failedFuture(e);
         }
-        return sourceToExternalTargetWithRelationship;
+        int limit = Math.min(pageSize, config.searchMaxRows);
+        return readPageAsync(cypherQuery, offset, limit, bookmarks, useCache).thenApply(page -> {
+            JsonObject json = new JsonObject();
+            json.add("results", page.records);
+            if (page.hasMore) {
+                json.addProperty("continuationToken", SearchContinuation.encode(offset + limit, cypherQuery));
+            }
+            return json;
+        });
     }
 
-    private static ResultStatement buildGraph(
-            String id,
-            StatementBuilder.OngoingUpdate ongoingUpdate,
-            Node rootNode,
-            Map<String, JsonObject> pointerToObjectMap,
-            Map<String, JsonElement> pointerToSchemaMap,
-            Map<String, List<Json.Relative>> sourceToTargetWithRelationship,
-            Map<String, List<ExternalRelative>> sourceToExternalTargetWithRelationship) {
+    private CompletionStage<SearchPage> readPageAsync(String cypherQuery, int offset, int limit, List<Bookmark> bookmarks, boolean useCache) {
+        SearchCache cache = searchCache;
+        SearchCache.Snapshot snapshot;
+        if (useCache && cache.isEnabled()) {
+            snapshot = cache.snapshot(cypherQuery, Collections.emptyMap(), offset, limit);
+            SearchCache.CachedPage cached = cache.get(snapshot);
+            if (cached != null) return CompletableFuture.completedFuture(new SearchPage(cached));
+        } else {
+            snapshot = null;
+        }
+        SessionConfig sessionConfig = getReadSessionConfig(bookmarks);
+        CompletionStage<SearchPage> read = asyncLimiter.submit(() -> {
+            AsyncSession session = driver.asyncSession(sessionConfig);
+            CompletionStage<SearchPage> page = session.readTransactionAsync(tx -> pageQueryAsync(tx, cypherQuery, offset, limit)
+                    .thenCompose(tx::runAsync)
+                    .thenCompose(cursor -> new AsyncPageReader(cursor, 0, limit).read()))
+                    .<CompletionStage<SearchPage>>handle((value, error) -> {
+                        if (error == null) return CompletableFuture.completedFuture(value);
+                        Throwable cause = error instanceof CompletionException ? error.getCause() : error;
+                        if (!isUnpageable(cause)) return CompletableFuture.failedFuture(cause);
+                        return session.readTransactionAsync(tx -> tx.runAsync(cypherQuery)
+                                .thenCompose(cursor -> new AsyncPageReader(cursor, offset, limit).read()));
+                    })
+                    .thenCompose(Function.identity());
+            return closeAfter(session, page);
+        });
+        if (snapshot == null) return read;
+        return read.whenComplete((page, error) -> {
+            if (error == null) cache.put(snapshot, page.records, page.hasMore);
+        });
+    }
 
-        Map<String, Node> pointerToNodeMap = new HashMap<>();
-        pointerToNodeMap.put("", rootNode);
+    // async writes all come from the hooks, so they are in the live lane
+    private <T> CompletionStage<T> writeAsync(AsyncTransactionWork<CompletionStage<T>> work) {
+        SessionConfig sessionConfig = getSessionConfig();
+        WriteScheduler scheduler = writeScheduler;
+        return asyncLimiter.submit(() -> {
+            long liveStart = scheduler.beginLive();
+            AsyncSession session = driver.asyncSession(sessionConfig);
+            CompletionStage<T> result = session.writeTransactionAsync(work).thenApply(value -> {
+                recordBookmark(session.lastBookmark());
+                return value;
+            });
+            return closeAfter(session, result).whenComplete((value, error) -> scheduler.endLive(liveStart, error));
+        });
+    }
 
-        // Iterate through the list of child nodes
-        int i = 0;
-        for (Map.Entry<String, JsonObject> entry : pointerToObjectMap.entrySet()) {
-            String pointer = entry.getKey();
-            if (!pointer.equals("")) {
-                JsonObject childObject = entry.getValue();
-                Node childNode = null;
-                String label = getLabel(null, pointerToSchemaMap.get(pointer));
-                if (label == null) {
-                     childNode = Cypher.node("_CordraObject")
-                             .named("child" + i++)
-                             .withProperties(keysAndValues(childObject));
-
-                } else {
-                    childNode = Cypher.node(label, "_CordraObject")
-                            .named("child" + i++)
-                            .withProperties(keysAndValues(childObject));
-                }
-                pointerToNodeMap.put(pointer, childNode);
-                ongoingUpdate = ongoingUpdate.merge(childNode);
-            }
+    // the session is closed whether or not the work succeeded, before the result is passed on
+    private static <T> CompletionStage<T> closeAfter(AsyncSession session, CompletionStage<T> stage) {
+        return stage
+                .handle((value, error) -> session.closeAsync().thenCompose(ignored ->
+                        error == null ? CompletableFuture.completedFuture(value) : CompletableFuture.<T>failedFuture(error)))
+                .thenCompose(Function.identity());
+    }
+
+    /**
+     * Reads records offset to offset + limit from a cursor. Records the driver has already fetched
+     * are taken in a loop rather than by chaining stages, so a long page cannot overflow the stack.
+     */
+    private static class AsyncPageReader {
+        private final ResultCursor cursor;
+        private final int offset;
+        private final int limit;
+        private final SearchPage page = new SearchPage();
+        private final CompletableFuture<SearchPage> future = new CompletableFuture<>();
+        private int index;
+
+        AsyncPageReader(ResultCursor cursor, int offset, int limit) {
+            this.cursor = cursor;
+            this.offset = offset;
+            this.limit = limit;
         }
 
-        // Iterate through the internal relationships
-        for (Map.Entry<String, List<Json.Relative>> entry : sourceToTargetWithRelationship.entrySet()) {
-            String sourcePointer = entry.getKey();
-            Node source = pointerToNodeMap.get(sourcePointer);
-            List<Json.Relative> relatives = entry.getValue();
-            for (Json.Relative relative: relatives) {
-                Node target = pointerToNodeMap.get(relative.targetPointer);
-                String relationship = relative.relationship;
-                ongoingUpdate = ongoingUpdate.merge(source.relationshipTo(target, relationship));
+        CompletionStage<SearchPage> read() {
+            readNext();
+            return future;
+        }
+
+        private void readNext() {
+            while (true) {
+                CompletableFuture<Record> next = cursor.nextAsync().toCompletableFuture();
+                if (!next.isDone()) {
+                    next.whenComplete((record, error) -> {
+                        if (accept(record, error)) readNext();
+                    });
+                    return;
+                }
+                Record record;
+                try {
+                    record = next.join();
+                } catch (CompletionException e) {
+                    accept(null, e.getCause());
+                    return;
+                }
+                if (!accept(record, null)) return;
             }
         }
 
-        // Iterate through the external relationships
-        i = 0;
-        for (Map.Entry<String, List<ExternalRelative>> entry : sourceToExternalTargetWithRelationship.entrySet()) {
-            String sourcePointer = entry.getKey();
-            Node source = pointerToNodeMap.get(sourcePointer);
-            Node sourceRenamed = source.named("source" + i);
-            List<ExternalRelative> relatives = entry.getValue();
-            if (relatives.size() > 0) {
-                ongoingUpdate = ongoingUpdate
-                        .merge(sourceRenamed);
+        // returns whether to keep reading
+        private boolean accept(Record record, Throwable error) {
+            if (error != null) {
+                future.completeExceptionally(error);
+                return false;
+            }
+            if (record == null) {
+                future.complete(page);
+                return false;
             }
-            for (ExternalRelative relative: relatives) {
-                Node target = Cypher.node("CordraObject")
-                        .named("target" + i)
-                        .withProperties("_id", Cypher.literalOf(relative.reference));
-                ongoingUpdate = ongoingUpdate
-                        .merge(target)
-                        .merge(sourceRenamed.relationshipTo(target, relative.relationship));
-                i++;
+            if (index++ < offset) return true;
+            if (index > offset + limit) {
+                page.hasMore = true;
+                future.complete(page);
+                return false;
             }
+            page.records.add(RecordSerializer.toJson(record));
+            return true;
         }
+    }
 
-        return ongoingUpdate
-                .merge(Cypher
-                        .node("CordraObject")
-                        .named("finishedRoot")
-                        .withProperties("_id", Cypher.literalOf(id)))
-                .returning("finishedRoot")
-                .build();
+    public boolean isAsyncEnabled() {
+        return config.asyncExecution;
     }
 
-    private static class ExternalRelative {
-        String relationship;
-        String reference;
-        public ExternalRelative(String relationship, String reference) {
-            this.relationship = relationship;
-            this.reference = reference;
-        }
+    public JsonObject getAsyncStats() {
+        JsonObject stats = asyncLimiter.getStats();
+        stats.addProperty("enabled", config.asyncExecution);
+        return stats;
     }
 
-    private static boolean isExternalReference(JsonElement subSchemaElement) {
-        if (subSchemaElement != null && subSchemaElement.isJsonObject()) {
-            JsonObject subSchema = subSchemaElement.getAsJsonObject();
-            JsonElement handleReferenceElement = JsonUtil.getJsonAtPointer(subSchema, "/cordra/type/handleReference");
-            return handleReferenceElement != null;
-        }
-        return false;
+    public boolean isWriteBehindEnabled() {
+        return writeBehindQueue != null;
     }
 
-    private static String getRelationshipType(String defaultName, JsonElement subSchemaElement) {
-        if (subSchemaElement != null && subSchemaElement.isJsonObject()) {
-            JsonObject subSchema = subSchemaElement.getAsJsonObject();
-            JsonElement nameElement = JsonUtil.getJsonAtPointer(subSchema, "/cordra/ext/neo4j/relationshipType");
-            return nameElement == null ? defaultName : nameElement.getAsString();
+    public boolean enqueueWrite(WriteBehindQueue.Operation operation, CordraObject co, Map<String, JsonElement> pointerToSchemaMap) throws InterruptedException {
+        if (!shouldIndexType(co.type)) return true;
+        WriteBehindQueue queue = writeBehindQueue;
+        if (queue == null) {
+            // write-behind was turned off by a reload since the caller checked
+            WriteBehindQueue.apply(this, operation, co, pointerToSchemaMap);
+            return true;
         }
-        return defaultName;
+        return queue.submit(operation, co, pointerToSchemaMap);
     }
 
-    private static String getLabel(String defaultName, JsonElement subSchemaElement) {
-        if (subSchemaElement != null && subSchemaElement.isJsonObject()) {
-            JsonObject subSchema = subSchemaElement.getAsJsonObject();
-            JsonElement nameElement = JsonUtil.getJsonAtPointer(subSchema, "/cordra/ext/neo4j/nodeLabel");
-            return nameElement == null ? defaultName : nameElement.getAsString();
+    public JsonObject getWriteBehindStats() {
+        WriteBehindQueue queue = writeBehindQueue;
+        if (queue == null) {
+            JsonObject stats = new JsonObject();
+            stats.addProperty("enabled", false);
+            return stats;
         }
-        return defaultName;
+        JsonObject stats = queue.getStats();
+        stats.addProperty("enabled", true);
+        return stats;
     }
 
-    private static Object[] keysAndValues(JsonObject jsonObject) {
-        List<Object> keysAndValuesList = new ArrayList<>();
-        for (Map.Entry<String, JsonElement> entry : jsonObject.entrySet()) {
-            String key = entry.getKey();
-            Object value = getObjectFromPrimitiveOrArray(entry.getValue());
-            keysAndValuesList.add(key);
-            keysAndValuesList.add(Cypher.literalOf(value));
-        }
-        return keysAndValuesList.toArray(new Object[0]);
+    public JsonObject getWriteSchedulerStats() {
+        return writeScheduler.getStats();
     }
 
-    private static Object getObjectFromPrimitiveOrArray(JsonElement jsonElement) {
-        if (jsonElement.isJsonPrimitive()) {
-            return getJsonPrimitiveAsPrimitive(jsonElement.getAsJsonPrimitive());
-        } else if (jsonElement.isJsonArray()) {
-            ArrayList<Object> list = new ArrayList<>();
-            for (JsonElement element : jsonElement.getAsJsonArray()) {
-                if (element.isJsonPrimitive()) list.add(getJsonPrimitiveAsPrimitive(element.getAsJsonPrimitive()));
-            }
-            return list;
-        }
-        return "";
+    public JsonObject getSearchCacheStats() {
+        return searchCache.getStats();
     }
 
-    private static Object getJsonPrimitiveAsPrimitive(JsonPrimitive j) {
-        Gson gson = new Gson();
-        Object result = gson.fromJson(j, Object.class);
-        return result;
+    public JsonObject getTemplateCacheStats() {
+        return templates.getStats();
+    }
+
+    public JsonObject getIndexerStats() {
+        return indexerStats.toJson();
+    }
+
+    public void resetIndexerStats() {
+        indexerStats.reset();
+    }
+
+    /**
+     * Counts and logs a failed index operation on an object, for callers that carry on after it.
+     */
+    public void recordError(String operation, CordraObject co, Throwable e) {
+        indexerStats.error(operation);
+        logger.warn("Neo4j " + operation + " of " + co.id + " failed", e);
     }
 
     private static void logQuery(String query, boolean log) {
         if (log) {
-            System.out.println();
-            System.out.println(query);
+            logger.info("Query: {}", query);
+        } else {
+            logger.debug("Query: {}", query);
+        }
+    }
+
+    private static void logQuery(Query query, boolean log) {
+        if (log) {
+            logger.info("Query: {}\nParameters: {}", query.text(), query.parameters());
+        } else if (logger.isDebugEnabled()) {
+            logger.debug("Query: {}\nParameters: {}", query.text(), query.parameters());
         }
     }
 
@@ -543,6 +1554,12 @@ public class Neo4jCordraObjectIndexer {
             return;
         }
         shutdown = true;
+        if (reindexJobs != null) {
+            reindexJobs.shutdown();
+        }
+        if (writeBehindQueue != null) {
+            writeBehindQueue.shutdown(config.writeBehindShutdownTimeoutMs);
+        }
         if (driver  != null) {
             driver.close();
         }
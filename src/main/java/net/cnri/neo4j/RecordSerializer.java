@@ -0,0 +1,123 @@
+package net.cnri.neo4j;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonNull;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonPrimitive;
+import org.neo4j.driver.Record;
+import org.neo4j.driver.Value;
+import org.neo4j.driver.types.MapAccessor;
+import org.neo4j.driver.types.Node;
+import org.neo4j.driver.types.Path;
+import org.neo4j.driver.types.Point;
+import org.neo4j.driver.types.Relationship;
+import org.neo4j.driver.types.TypeSystem;
+
+import java.util.Base64;
+
+/**
+ * Compact JSON form of query results. Nodes are {id, labels, properties}, relationships are
+ * {id, type, start, end, properties} and paths are {nodes, relationships}; temporal and duration
+ * values are written as their ISO strings.
+ */
+public class RecordSerializer {
+
+    private static final TypeSystem TYPES = TypeSystem.getDefault();
+
+    private RecordSerializer() { }
+
+    public static JsonObject toJson(Record record) {
+        JsonObject json = new JsonObject();
+        int i = 0;
+        for (String key : record.keys()) {
+            json.add(key, toJson(record.get(i++)));
+        }
+        return json;
+    }
+
+    public static JsonElement toJson(Value value) {
+        if (value == null || value.isNull()) {
+            return JsonNull.INSTANCE;
+        } else if (TYPES.NODE().isTypeOf(value)) {
+            return toJson(value.asNode());
+        } else if (TYPES.RELATIONSHIP().isTypeOf(value)) {
+            return toJson(value.asRelationship());
+        } else if (TYPES.PATH().isTypeOf(value)) {
+            return toJson(value.asPath());
+        } else if (TYPES.LIST().isTypeOf(value)) {
+            JsonArray array = new JsonArray();
+            for (Value element : value.values()) {
+                array.add(toJson(element));
+            }
+            return array;
+        } else if (TYPES.MAP().isTypeOf(value)) {
+            return propertiesToJson(value);
+        } else if (TYPES.BOOLEAN().isTypeOf(value)) {
+            return new JsonPrimitive(value.asBoolean());
+        } else if (TYPES.INTEGER().isTypeOf(value)) {
+            return new JsonPrimitive(value.asLong());
+        } else if (TYPES.FLOAT().isTypeOf(value)) {
+            return new JsonPrimitive(value.asDouble());
+        } else if (TYPES.STRING().isTypeOf(value)) {
+            return new JsonPrimitive(value.asString());
+        } else if (TYPES.BYTES().isTypeOf(value)) {
+            return new JsonPrimitive(Base64.getEncoder().encodeToString(value.asByteArray()));
+        } else if (TYPES.POINT().isTypeOf(value)) {
+            Point point = value.asPoint();
+            JsonObject json = new JsonObject();
+            json.addProperty("srid", point.srid());
+            json.addProperty("x", point.x());
+            json.addProperty("y", point.y());
+            if (!Double.isNaN(point.z())) json.addProperty("z", point.z());
+            return json;
+        }
+        // dates, times and durations
+        return new JsonPrimitive(value.asObject().toString());
+    }
+
+    private static JsonObject toJson(Node node) {
+        JsonObject json = new JsonObject();
+        json.addProperty("id", node.id());
+        JsonArray labels = new JsonArray();
+        for (String label : node.labels()) {
+            labels.add(label);
+        }
+        json.add("labels", labels);
+        json.add("properties", propertiesToJson(node));
+        return json;
+    }
+
+    private static JsonObject toJson(Relationship relationship) {
+        JsonObject json = new JsonObject();
+        json.addProperty("id", relationship.id());
+        json.addProperty("type", relationship.type());
+        json.addProperty("start", relationship.startNodeId());
+        json.addProperty("end", relationship.endNodeId());
+        json.add("properties", propertiesToJson(relationship));
+        return json;
+    }
+
+    private static JsonObject toJson(Path path) {
+        JsonObject json = new JsonObject();
+        JsonArray nodes = new JsonArray();
+        for (Node node : path.nodes()) {
+            nodes.add(toJson(node));
+        }
+        JsonArray relationships = new JsonArray();
+        for (Relationship relationship : path.relationships()) {
+            relationships.add(toJson(relationship));
+        }
+        json.add("nodes", nodes);
+        json.add("relationships", relationships);
+        return json;
+    }
+
+    private static JsonObject propertiesToJson(MapAccessor map) {
+        JsonObject json = new JsonObject();
+        for (String key : map.keys()) {
+            json.add(key, toJson(map.get(key)));
+        }
+        return json;
+    }
+}
@@ -0,0 +1,235 @@
+package net.cnri.neo4j;
+
+import com.google.gson.JsonObject;
+import net.cnri.cordra.api.CordraException;
+import net.cnri.cordra.api.CordraObject;
+import net.cnri.cordra.api.QueryParams;
+import net.cnri.cordra.api.SearchResults;
+import net.cnri.cordra.api.SortField;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A reindex of the results of a Cordra query, run in segments of objects sorted by id. After each
+ * segment is written, external relationships included, the last id is saved as the checkpoint; a
+ * resumed job continues with the objects after it. Pause and cancel take effect between segments.
+ */
+public class ReindexJob implements Runnable {
+
+    private static final Logger logger = LoggerFactory.getLogger(ReindexJob.class);
+
+    private static final List<SortField> SORT_BY_ID = Collections.singletonList(new SortField("id"));
+
+    public enum State { QUEUED, RUNNING, PAUSED, CANCELLED, COMPLETED, FAILED }
+
+    /**
+     * What is saved to the job file.
+     */
+    public static class Checkpoint {
+        public String jobId;
+        public String query;
+        public ReindexOptions options;
+        public int segmentSize;
+        public String lastId;
+        public long processedCount;
+        public long reindexedCount;
+        public long failedCount;
+        public long remainingCount = -1;
+        public State state;
+        public String createdAt;
+        public String updatedAt;
+        public String error;
+    }
+
+    private final ReindexJobs jobs;
+    private final Checkpoint checkpoint;
+    private boolean pauseRequested;
+    private boolean cancelRequested;
+    private long runStartNanos;
+    private long runStartProcessedCount;
+
+    ReindexJob(ReindexJobs jobs, Checkpoint checkpoint) {
+        this.jobs = jobs;
+        this.checkpoint = checkpoint;
+    }
+
+    public String getJobId() {
+        return checkpoint.jobId;
+    }
+
+    public synchronized State getState() {
+        return checkpoint.state;
+    }
+
+    @Override
+    public void run() {
+        synchronized (this) {
+            // cancelled while queued
+            if (checkpoint.state != State.QUEUED) return;
+            checkpoint.state = State.RUNNING;
+            runStartNanos = System.nanoTime();
+            runStartProcessedCount = checkpoint.processedCount;
+            save();
+        }
+        logger.info("Reindex job {} running from {}", checkpoint.jobId, checkpoint.lastId == null ? "the start" : checkpoint.lastId);
+        try {
+            while (true) {
+                synchronized (this) {
+                    if (cancelRequested) {
+                        finish(State.CANCELLED, null);
+                        return;
+                    }
+                    if (pauseRequested) {
+                        pauseRequested = false;
+                        finish(State.PAUSED, null);
+                        return;
+                    }
+                }
+                // left as RUNNING in the job file, so the next startup resumes it
+                if (jobs.isShutdown()) return;
+                if (!runSegment()) {
+                    synchronized (this) {
+                        finish(State.COMPLETED, null);
+                    }
+                    return;
+                }
+            }
+        } catch (Exception e) {
+            // the driver was closed under it; left as RUNNING so the next startup resumes it
+            if (jobs.isShutdown()) return;
+            logger.error("Reindex job " + checkpoint.jobId + " failed", e);
+            synchronized (this) {
+                finish(State.FAILED, e.toString());
+            }
+        }
+    }
+
+    // returns false once there is nothing left after the checkpoint
+    private boolean runSegment() throws CordraException {
+        String lastId;
+        synchronized (this) {
+            lastId = checkpoint.lastId;
+        }
+        List<CordraObject> segment = new ArrayList<>(checkpoint.segmentSize);
+        long remaining;
+        try (SearchResults<CordraObject> results = jobs.getCordra().search(segmentQuery(checkpoint.query, lastId), new QueryParams(0, checkpoint.segmentSize, SORT_BY_ID))) {
+            remaining = results.size();
+            for (CordraObject co : results) {
+                segment.add(co);
+            }
+        }
+        if (segment.isEmpty()) return false;
+        ReindexStats stats = new ReindexStats();
+        jobs.getIndexer().reindexObjects(segment, checkpoint.options, stats);
+        synchronized (this) {
+            checkpoint.lastId = segment.get(segment.size() - 1).id;
+            checkpoint.processedCount += segment.size();
+            checkpoint.reindexedCount += stats.getCount();
+            checkpoint.failedCount += stats.getFailedCount();
+            checkpoint.remainingCount = remaining - segment.size();
+            save();
+        }
+        return true;
+    }
+
+    static String segmentQuery(String query, String lastId) {
+        if (lastId == null) return query;
+        return "(" + query + ") AND id:{\"" + lastId.replace("\\", "\\\\").replace("\"", "\\\"") + "\" TO *]";
+    }
+
+    synchronized void queue() {
+        checkpoint.state = State.QUEUED;
+        checkpoint.error = null;
+        save();
+    }
+
+    // returns false if the job is not paused, failed, or about to pause
+    synchronized boolean resume() {
+        if (checkpoint.state == State.RUNNING && pauseRequested) {
+            pauseRequested = false;
+            return true;
+        }
+        if (checkpoint.state == State.PAUSED || checkpoint.state == State.FAILED) {
+            queue();
+            jobs.submit(this);
+            return true;
+        }
+        return false;
+    }
+
+    // for a job that was running when Cordra stopped and cannot be picked up again yet
+    synchronized void pauseInterrupted(String reason) {
+        checkpoint.state = State.PAUSED;
+        checkpoint.error = reason;
+        save();
+    }
+
+    synchronized boolean pause() {
+        if (checkpoint.state == State.QUEUED) {
+            checkpoint.state = State.PAUSED;
+            save();
+            return true;
+        }
+        if (checkpoint.state == State.RUNNING) {
+            pauseRequested = true;
+            return true;
+        }
+        return false;
+    }
+
+    synchronized boolean cancel() {
+        if (checkpoint.state == State.QUEUED || checkpoint.state == State.PAUSED || checkpoint.state == State.FAILED) {
+            checkpoint.state = State.CANCELLED;
+            save();
+            return true;
+        }
+        if (checkpoint.state == State.RUNNING) {
+            cancelRequested = true;
+            return true;
+        }
+        return false;
+    }
+
+    private void finish(State state, String error) {
+        checkpoint.state = state;
+        checkpoint.error = error;
+        save();
+        logger.info("Reindex job {} {} after {} objects", checkpoint.jobId, state.name().toLowerCase(), checkpoint.processedCount);
+    }
+
+    private void save() {
+        checkpoint.updatedAt = Instant.now().toString();
+        jobs.save(checkpoint);
+    }
+
+    public synchronized JsonObject toJson() {
+        JsonObject json = new JsonObject();
+        json.addProperty("jobId", checkpoint.jobId);
+        json.addProperty("query", checkpoint.query);
+        json.addProperty("state", checkpoint.state.name());
+        if (pauseRequested) json.addProperty("pauseRequested", true);
+        if (cancelRequested) json.addProperty("cancelRequested", true);
+        json.addProperty("processedCount", checkpoint.processedCount);
+        json.addProperty("reindexCount", checkpoint.reindexedCount);
+        json.addProperty("failedCount", checkpoint.failedCount);
+        if (checkpoint.remainingCount >= 0) json.addProperty("remainingCount", checkpoint.remainingCount);
+        if (checkpoint.lastId != null) json.addProperty("lastId", checkpoint.lastId);
+        if (checkpoint.state == State.RUNNING) {
+            long elapsedNanos = System.nanoTime() - runStartNanos;
+            double rate = elapsedNanos == 0 ? 0.0 : (checkpoint.processedCount - runStartProcessedCount) * 1e9 / elapsedNanos;
+            json.addProperty("objectsPerSecond", rate);
+            if (rate > 0 && checkpoint.remainingCount >= 0) {
+                json.addProperty("etaSeconds", (long) (checkpoint.remainingCount / rate));
+            }
+        }
+        json.addProperty("createdAt", checkpoint.createdAt);
+        json.addProperty("updatedAt", checkpoint.updatedAt);
+        if (checkpoint.error != null) json.addProperty("error", checkpoint.error);
+        return json;
+    }
+}
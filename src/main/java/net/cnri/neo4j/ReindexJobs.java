@@ -0,0 +1,172 @@
+package net.cnri.neo4j;
+
+import com.google.gson.Gson;
+import net.cnri.cordra.api.BadRequestCordraException;
+import net.cnri.cordra.api.CordraClient;
+import net.cnri.cordra.api.CordraException;
+import net.cnri.cordra.api.NotFoundCordraException;
+import net.cnri.cordra.util.GsonUtility;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * The background reindex jobs, each saved as a JSON file in the job directory. Jobs run one at a
+ * time, in the order they were queued.
+ */
+public class ReindexJobs {
+
+    private static final Logger logger = LoggerFactory.getLogger(ReindexJobs.class);
+
+    private final Neo4jCordraObjectIndexer indexer;
+    private final CordraClient cordra;
+    private final Path directory;
+    private final Map<String, ReindexJob> jobs = new ConcurrentHashMap<>();
+    private final ExecutorService executor;
+    private volatile boolean shutdown;
+
+    public ReindexJobs(Neo4jCordraObjectIndexer indexer, CordraClient cordra, Path directory) {
+        this.indexer = indexer;
+        this.cordra = cordra;
+        this.directory = directory;
+        this.executor = Executors.newSingleThreadExecutor(r -> {
+            Thread thread = new Thread(r, "neo4j-reindex-job");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    Neo4jCordraObjectIndexer getIndexer() {
+        return indexer;
+    }
+
+    CordraClient getCordra() {
+        return cordra;
+    }
+
+    boolean isShutdown() {
+        return shutdown;
+    }
+
+    public ReindexJob start(String query, ReindexOptions options, int segmentSize) {
+        ReindexJob.Checkpoint checkpoint = new ReindexJob.Checkpoint();
+        checkpoint.jobId = UUID.randomUUID().toString();
+        checkpoint.query = query;
+        checkpoint.options = options;
+        checkpoint.segmentSize = Math.max(1, segmentSize);
+        checkpoint.createdAt = Instant.now().toString();
+        ReindexJob job = new ReindexJob(this, checkpoint);
+        jobs.put(checkpoint.jobId, job);
+        job.queue();
+        submit(job);
+        return job;
+    }
+
+    void submit(ReindexJob job) {
+        executor.execute(job);
+    }
+
+    public ReindexJob get(String jobId) throws NotFoundCordraException {
+        ReindexJob job = jobs.get(jobId);
+        if (job == null) {
+            throw new NotFoundCordraException("No reindex job " + jobId);
+        }
+        return job;
+    }
+
+    public List<ReindexJob> list() {
+        return new ArrayList<>(jobs.values());
+    }
+
+    public ReindexJob pause(String jobId) throws CordraException {
+        ReindexJob job = get(jobId);
+        if (!job.pause()) {
+            throw new BadRequestCordraException("Reindex job " + jobId + " is " + job.getState() + " and cannot be paused");
+        }
+        return job;
+    }
+
+    public ReindexJob resume(String jobId) throws CordraException {
+        ReindexJob job = get(jobId);
+        if (!job.resume()) {
+            throw new BadRequestCordraException("Reindex job " + jobId + " is " + job.getState() + " and cannot be resumed");
+        }
+        return job;
+    }
+
+    public ReindexJob cancel(String jobId) throws CordraException {
+        ReindexJob job = get(jobId);
+        if (!job.cancel()) {
+            throw new BadRequestCordraException("Reindex job " + jobId + " is " + job.getState() + " and cannot be cancelled");
+        }
+        return job;
+    }
+
+    /**
+     * Loads the saved jobs and queues again those that were queued or running when Cordra stopped,
+     * or, if pauseReason is not null, pauses them with that reason so they can be resumed later.
+     */
+    public void resumeInterrupted(String pauseReason) {
+        if (!Files.isDirectory(directory)) return;
+        Gson gson = GsonUtility.getGson();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*.json")) {
+            for (Path file : files) {
+                ReindexJob.Checkpoint checkpoint;
+                try {
+                    checkpoint = gson.fromJson(Files.readString(file), ReindexJob.Checkpoint.class);
+                } catch (IOException | RuntimeException e) {
+                    logger.warn("Could not read reindex job file " + file, e);
+                    continue;
+                }
+                if (checkpoint == null || checkpoint.jobId == null || checkpoint.state == null) continue;
+                ReindexJob job = new ReindexJob(this, checkpoint);
+                jobs.put(checkpoint.jobId, job);
+                if (checkpoint.state != ReindexJob.State.QUEUED && checkpoint.state != ReindexJob.State.RUNNING) continue;
+                if (pauseReason != null) {
+                    logger.warn("Not resuming reindex job {}: {}", checkpoint.jobId, pauseReason);
+                    job.pauseInterrupted(pauseReason);
+                } else {
+                    logger.info("Resuming reindex job {} after {}", checkpoint.jobId, checkpoint.lastId);
+                    job.queue();
+                    submit(job);
+                }
+            }
+        } catch (IOException e) {
+            logger.warn("Could not list reindex jobs in " + directory, e);
+        }
+    }
+
+    void save(ReindexJob.Checkpoint checkpoint) {
+        try {
+            Files.createDirectories(directory);
+            Path file = directory.resolve(checkpoint.jobId + ".json");
+            Path temp = directory.resolve(checkpoint.jobId + ".json.tmp");
+            Files.writeString(temp, GsonUtility.getGson().toJson(checkpoint), StandardCharsets.UTF_8);
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            logger.error("Could not save reindex job " + checkpoint.jobId, e);
+        }
+    }
+
+    /**
+     * Running jobs stop after their current segment and stay saved as running.
+     */
+    public void shutdown() {
+        shutdown = true;
+        executor.shutdown();
+    }
+}
@@ -0,0 +1,30 @@
+package net.cnri.neo4j;
+
+public class ReindexOptions {
+    public boolean includeRelationships = true;
+    public int batchSize = 1;
+    public int projectionThreads = 1;
+    public int writerThreads = 1;
+    public boolean deferRelationships = true; // merge external relationships after all nodes are written
+    public int deferredEdgesInMemory = 1_000_000;
+    public int deferredEdgeBatchSize = 5000;
+
+    public static ReindexOptions fromConfig(Neo4jConfig config) {
+        ReindexOptions options = new ReindexOptions();
+        options.batchSize = config.reindexBatchSize;
+        options.projectionThreads = config.reindexProjectionThreads;
+        options.writerThreads = config.reindexWriterThreads;
+        options.deferRelationships = config.reindexDeferRelationships;
+        options.deferredEdgesInMemory = config.deferredEdgesInMemory;
+        options.deferredEdgeBatchSize = config.deferredEdgeBatchSize;
+        return options;
+    }
+
+    public boolean isDeferringRelationships() {
+        return includeRelationships && deferRelationships;
+    }
+
+    public boolean isPipelined() {
+        return projectionThreads > 1 || writerThreads > 1;
+    }
+}
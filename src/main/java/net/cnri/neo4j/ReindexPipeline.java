@@ -0,0 +1,183 @@
+package net.cnri.neo4j;
+
+import net.cnri.cordra.api.CordraException;
+import net.cnri.cordra.api.CordraObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Reindexes in three overlapping stages: the calling thread fetches objects from Cordra, a pool of
+ * projection threads does the CPU-bound schema mapping and denesting, and a set of writer threads
+ * writes to Neo4j. Objects are routed to writers by id, so a root is only ever written by one writer.
+ */
+public class ReindexPipeline {
+
+    private static final Logger logger = LoggerFactory.getLogger(ReindexPipeline.class);
+
+    private static final Object END = new Object();
+
+    private final Neo4jCordraObjectIndexer indexer;
+    private final ReindexOptions options;
+    private final ExternalEdgeBuffer deferredEdges;
+    private final ReindexStats stats;
+    private final BlockingQueue<Object> fetched;
+    private final List<BlockingQueue<Object>> writerQueues = new ArrayList<>();
+    private final AtomicInteger activeProjectors;
+    private ExecutorService executor;
+    private volatile Throwable failure;
+
+    public ReindexPipeline(Neo4jCordraObjectIndexer indexer, ReindexOptions options, ExternalEdgeBuffer deferredEdges, ReindexStats stats) {
+        this.indexer = indexer;
+        this.options = options;
+        this.deferredEdges = deferredEdges;
+        this.stats = stats;
+        int queueCapacity = Math.max(100, 2 * Math.max(1, options.batchSize));
+        this.fetched = new ArrayBlockingQueue<>(queueCapacity);
+        for (int i = 0; i < options.writerThreads; i++) {
+            writerQueues.add(new ArrayBlockingQueue<>(queueCapacity));
+        }
+        this.activeProjectors = new AtomicInteger(options.projectionThreads);
+    }
+
+    public void run(Iterable<CordraObject> results) throws CordraException {
+        executor = Executors.newFixedThreadPool(options.projectionThreads + options.writerThreads, r -> {
+            Thread thread = new Thread(r, "neo4j-reindex");
+            thread.setDaemon(true);
+            return thread;
+        });
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int i = 0; i < options.projectionThreads; i++) {
+                futures.add(executor.submit(this::project));
+            }
+            for (BlockingQueue<Object> writerQueue : writerQueues) {
+                futures.add(executor.submit(() -> write(writerQueue)));
+            }
+            try {
+                for (CordraObject co : results) {
+                    if (failure != null) break;
+                    if (!indexer.shouldIndexType(co.type)) continue;
+                    if (!put(fetched, co)) break;
+                }
+            } catch (RuntimeException | Error e) {
+                fail(e);
+                throw e;
+            } finally {
+                for (int i = 0; i < options.projectionThreads; i++) {
+                    if (!put(fetched, END)) break;
+                }
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new CordraException("Interrupted during reindex", e);
+        } catch (ExecutionException e) {
+            throw new CordraException("Error during reindex", e.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+        if (failure != null) {
+            throw new CordraException("Error during reindex", failure);
+        }
+    }
+
+    /**
+     * Records the first failure and cancels every stage, so that none is left blocked on a queue
+     * that a failed stage no longer takes from.
+     */
+    private synchronized void fail(Throwable e) {
+        if (failure != null) return;
+        logger.error("Reindex failed", e);
+        failure = e;
+        executor.shutdownNow();
+    }
+
+    // returns false instead of waiting for space once the reindex has failed
+    private boolean put(BlockingQueue<Object> queue, Object next) throws InterruptedException {
+        while (failure == null) {
+            if (queue.offer(next, 100, TimeUnit.MILLISECONDS)) return true;
+        }
+        return false;
+    }
+
+    private void project() {
+        try {
+            while (failure == null) {
+                Object next = fetched.take();
+                if (next == END) break;
+                CordraObject co = (CordraObject) next;
+                Neo4jCordraObjectIndexer.ProjectedObject projectedObject;
+                try {
+                    projectedObject = indexer.project(co, options.includeRelationships, deferredEdges);
+                } catch (Exception e) {
+                    logger.error("Error projecting " + co.id, e);
+                    stats.failed();
+                    continue;
+                }
+                if (!put(writerQueues.get(Math.floorMod(co.id.hashCode(), writerQueues.size())), projectedObject)) break;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (Throwable e) {
+            fail(e);
+        } finally {
+            if (activeProjectors.decrementAndGet() == 0) {
+                for (BlockingQueue<Object> writerQueue : writerQueues) {
+                    try {
+                        if (!put(writerQueue, END)) break;
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        break;
+                    }
+                }
+            }
+        }
+    }
+
+    private void write(BlockingQueue<Object> writerQueue) {
+        int batchSize = Math.max(1, options.batchSize);
+        List<Neo4jCordraObjectIndexer.ProjectedObject> batch = new ArrayList<>(batchSize);
+        try {
+            while (failure == null) {
+                Object next = writerQueue.take();
+                if (next == END) break;
+                batch.add((Neo4jCordraObjectIndexer.ProjectedObject) next);
+                if (batch.size() >= batchSize) {
+                    flush(batch);
+                    batch = new ArrayList<>(batchSize);
+                }
+            }
+            if (!batch.isEmpty() && failure == null) {
+                flush(batch);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (Throwable e) {
+            // an Error such as OutOfMemoryError or a RuntimeException from the batch write
+            fail(e);
+        }
+    }
+
+    private void flush(List<Neo4jCordraObjectIndexer.ProjectedObject> batch) {
+        if (options.batchSize > 1) {
+            indexer.writeBatch(batch, stats);
+            return;
+        }
+        for (Neo4jCordraObjectIndexer.ProjectedObject projectedObject : batch) {
+            try {
+                indexer.writeBulkUpdate(projectedObject.projection);
+                stats.objectWritten();
+            } catch (Exception e) {
+                logger.error("Error reindexing " + projectedObject.co.id, e);
+                stats.failed();
+            }
+        }
+    }
+}
@@ -0,0 +1,86 @@
+package net.cnri.neo4j;
+
+import com.google.gson.JsonObject;
+
+import java.util.concurrent.TimeUnit;
+
+public class ReindexStats {
+    private final long startNanos = System.nanoTime();
+    private long count;
+    private long batchCount;
+    private long fallbackCount;
+    private long failedCount;
+    private long minBatchNanos = Long.MAX_VALUE;
+    private long maxBatchNanos;
+    private long totalBatchNanos;
+    private long relationshipCount;
+    private long relationshipFailedCount;
+    private long relationshipSpilledCount;
+    private boolean deferredRelationships;
+
+    public synchronized void objectWritten() {
+        count++;
+    }
+
+    public synchronized void batchWritten(int size, long nanos) {
+        count += size;
+        batchCount++;
+        totalBatchNanos += nanos;
+        minBatchNanos = Math.min(minBatchNanos, nanos);
+        maxBatchNanos = Math.max(maxBatchNanos, nanos);
+    }
+
+    public synchronized void fallbackWritten() {
+        count++;
+        fallbackCount++;
+    }
+
+    public synchronized void failed() {
+        failedCount++;
+    }
+
+    public synchronized void relationshipsSpilled(long count) {
+        deferredRelationships = true;
+        relationshipSpilledCount += count;
+    }
+
+    public synchronized void relationshipsWritten(int count) {
+        relationshipCount += count;
+    }
+
+    public synchronized void relationshipsFailed(int count) {
+        relationshipFailedCount += count;
+    }
+
+    public synchronized long getCount() {
+        return count;
+    }
+
+    public synchronized long getFailedCount() {
+        return failedCount;
+    }
+
+    public synchronized JsonObject toJson() {
+        long elapsedNanos = System.nanoTime() - startNanos;
+        JsonObject json = new JsonObject();
+        json.addProperty("reindexCount", count);
+        json.addProperty("failedCount", failedCount);
+        json.addProperty("elapsedMs", TimeUnit.NANOSECONDS.toMillis(elapsedNanos));
+        json.addProperty("objectsPerSecond", elapsedNanos == 0 ? 0.0 : count * 1e9 / elapsedNanos);
+        if (batchCount > 0) {
+            json.addProperty("batchCount", batchCount);
+            json.addProperty("fallbackCount", fallbackCount);
+            JsonObject latency = new JsonObject();
+            latency.addProperty("min", minBatchNanos / 1e6);
+            latency.addProperty("avg", totalBatchNanos / 1e6 / batchCount);
+            latency.addProperty("max", maxBatchNanos / 1e6);
+            json.add("batchLatencyMs", latency);
+        }
+        if (deferredRelationships) {
+            json.addProperty("relationshipCount", relationshipCount);
+            json.addProperty("relationshipFailedCount", relationshipFailedCount);
+            json.addProperty("relationshipSpilledCount", relationshipSpilledCount);
+        }
+        return json;
+    }
+}
@@ -0,0 +1,294 @@
+package net.cnri.neo4j;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * LRU cache of search pages, bounded by entry count, estimated size and age. Invalidation is by
+ * generation counters: every write bumps the counter of each label it touches, and an entry is
+ * only served if none of the counters of the labels its query mentions have moved since the
+ * query started. A query is scoped to its labels only if every node pattern in it has a label and
+ * it has no variable-length relationships or procedure calls; anything else depends on all
+ * writes. This only sees writes made through this indexer; writes from elsewhere show up once the
+ * entry expires.
+ */
+public class SearchCache {
+
+    private static final Pattern LABEL = Pattern.compile("[:|&]\\s*(\\w+|`[^`]+`)");
+    private static final Pattern UNLABELED_NODE = Pattern.compile("(?<![\\w`])\\(\\s*(\\w+|`[^`]+`)?\\s*[){]");
+    private static final Pattern VARIABLE_LENGTH = Pattern.compile("\\[[^\\]]*\\*");
+    private static final Pattern CALL = Pattern.compile("\\bCALL\\b", Pattern.CASE_INSENSITIVE);
+
+    private final int maxSize;
+    private final long maxBytes;
+    private final long ttlNanos;
+    private final Map<Key, Entry> entries;
+    private final Map<String, AtomicLong> generations = new ConcurrentHashMap<>();
+    private final Map<String, Set<String>> labelsByType = new ConcurrentHashMap<>();
+    // bumped by every write; what unscoped queries depend on
+    private final AtomicLong anyWriteGeneration = new AtomicLong();
+    // bumped when the labels written are not known; every entry depends on it
+    private final AtomicLong allGeneration = new AtomicLong();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong stale = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private final AtomicLong expirations = new AtomicLong();
+    private long bytes;
+
+    public SearchCache(int maxSize, long maxBytes, long ttlMs) {
+        this.maxSize = maxSize;
+        this.maxBytes = maxBytes;
+        this.ttlNanos = TimeUnit.MILLISECONDS.toNanos(ttlMs);
+        this.entries = new LinkedHashMap<>(16, 0.75f, true);
+    }
+
+    public boolean isEnabled() {
+        return maxSize > 0;
+    }
+
+    static final class Key {
+        final String query;
+        final Map<String, Object> parameters;
+        final int offset;
+        final int limit;
+
+        Key(String query, Map<String, Object> parameters, int offset, int limit) {
+            this.query = query;
+            this.parameters = parameters;
+            this.offset = offset;
+            this.limit = limit;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof Key)) return false;
+            Key key = (Key) o;
+            return offset == key.offset && limit == key.limit && query.equals(key.query) && parameters.equals(key.parameters);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(query, parameters, offset, limit);
+        }
+    }
+
+    public static final class CachedPage {
+        public final JsonArray records;
+        public final boolean hasMore;
+
+        CachedPage(JsonArray records, boolean hasMore) {
+            this.records = records;
+            this.hasMore = hasMore;
+        }
+    }
+
+    private static final class Entry {
+        final JsonArray records;
+        final boolean hasMore;
+        final long[] generations;
+        final long createdNanos;
+        final long bytes;
+
+        Entry(JsonArray records, boolean hasMore, long[] generations, long bytes) {
+            this.records = records;
+            this.hasMore = hasMore;
+            this.generations = generations;
+            this.createdNanos = System.nanoTime();
+            this.bytes = bytes;
+        }
+    }
+
+    /**
+     * What a query depends on, and the generations seen before it ran. Take it before running the
+     * query, so that a write that commits while the query runs makes the stored entry stale.
+     */
+    public final class Snapshot {
+        final Key key;
+        final List<String> labels;
+        final long[] generations;
+
+        Snapshot(Key key, List<String> labels) {
+            this.key = key;
+            this.labels = labels;
+            this.generations = currentGenerations(labels);
+        }
+    }
+
+    public Snapshot snapshot(String query, Map<String, Object> parameters, int offset, int limit) {
+        return new Snapshot(new Key(query, parameters, offset, limit), dependencies(query));
+    }
+
+    // null labels are the unscoped dependency on every write
+    static List<String> dependencies(String query) {
+        Set<String> labels = new LinkedHashSet<>();
+        Matcher matcher = LABEL.matcher(query);
+        while (matcher.find()) {
+            String label = matcher.group(1);
+            if (label.startsWith("`")) label = label.substring(1, label.length() - 1);
+            labels.add(label);
+        }
+        if (labels.isEmpty() || UNLABELED_NODE.matcher(query).find() || VARIABLE_LENGTH.matcher(query).find() || CALL.matcher(query).find()) {
+            labels.add(null);
+        }
+        return new ArrayList<>(labels);
+    }
+
+    private long[] currentGenerations(List<String> labels) {
+        long[] result = new long[labels.size() + 1];
+        result[0] = allGeneration.get();
+        for (int i = 0; i < labels.size(); i++) {
+            result[i + 1] = generation(labels.get(i));
+        }
+        return result;
+    }
+
+    private long generation(String label) {
+        if (label == null) return anyWriteGeneration.get();
+        AtomicLong generation = generations.get(label);
+        return generation == null ? 0 : generation.get();
+    }
+
+    /**
+     * Returns the cached page, or null. Records are copied, so callers may change them.
+     */
+    public CachedPage get(Snapshot snapshot) {
+        Entry entry;
+        synchronized (entries) {
+            entry = entries.get(snapshot.key);
+            if (entry != null && System.nanoTime() - entry.createdNanos > ttlNanos) {
+                removeEntry(snapshot.key, entry);
+                expirations.incrementAndGet();
+                entry = null;
+            } else if (entry != null && !Arrays.equals(entry.generations, snapshot.generations)) {
+                removeEntry(snapshot.key, entry);
+                stale.incrementAndGet();
+                entry = null;
+            }
+        }
+        if (entry == null) {
+            misses.incrementAndGet();
+            return null;
+        }
+        hits.incrementAndGet();
+        return new CachedPage(entry.records.deepCopy(), entry.hasMore);
+    }
+
+    public void put(Snapshot snapshot, JsonArray records, boolean hasMore) {
+        // written to since the snapshot; the records may already be out of date
+        if (!Arrays.equals(snapshot.generations, currentGenerations(snapshot.labels))) return;
+        long entryBytes = estimateBytes(snapshot.key, records);
+        if (entryBytes > maxBytes) return;
+        Entry entry = new Entry(records.deepCopy(), hasMore, snapshot.generations, entryBytes);
+        synchronized (entries) {
+            Entry previous = entries.put(snapshot.key, entry);
+            if (previous != null) bytes -= previous.bytes;
+            bytes += entryBytes;
+            evictIfNeeded();
+        }
+    }
+
+    // UTF-16 chars of the query, parameters and serialized records, plus a rough per-entry overhead
+    private static long estimateBytes(Key key, JsonArray records) {
+        return 2L * (key.query.length() + key.parameters.toString().length() + records.toString().length()) + 256;
+    }
+
+    private void evictIfNeeded() {
+        Iterator<Entry> iterator = entries.values().iterator();
+        while ((entries.size() > maxSize || bytes > maxBytes) && iterator.hasNext()) {
+            Entry eldest = iterator.next();
+            iterator.remove();
+            bytes -= eldest.bytes;
+            evictions.incrementAndGet();
+        }
+    }
+
+    private void removeEntry(Key key, Entry entry) {
+        entries.remove(key);
+        bytes -= entry.bytes;
+    }
+
+    /**
+     * Records a write of the projected graph: its nodes, and the relationships from them.
+     */
+    public void invalidate(GraphProjection projection) {
+        Set<String> labels = new LinkedHashSet<>();
+        labels.add("CordraObject");
+        labels.add("_CordraObject");
+        if (projection.type != null) labels.add(projection.type);
+        for (GraphProjection.ProjectedNode node : projection.nodes) {
+            if (node.label != null) labels.add(node.label);
+        }
+        invalidate(projection.type, labels);
+    }
+
+    /**
+     * Records a write of an object of the given type touching nodes with the given labels.
+     */
+    public void invalidate(String type, Collection<String> labels) {
+        if (type != null) {
+            labelsByType.computeIfAbsent(type, k -> ConcurrentHashMap.newKeySet()).addAll(labels);
+        }
+        for (String label : labels) {
+            generations.computeIfAbsent(label, k -> new AtomicLong()).incrementAndGet();
+        }
+        anyWriteGeneration.incrementAndGet();
+    }
+
+    /**
+     * Records the removal of an object of the given type, using the labels seen in writes of that
+     * type; if there have been none, the labels of its nodes are not known and everything is
+     * invalidated.
+     */
+    public void invalidateType(String type) {
+        Set<String> labels = type == null ? null : labelsByType.get(type);
+        if (labels == null) {
+            invalidateAll();
+        } else {
+            invalidate(type, new ArrayList<>(labels));
+        }
+    }
+
+    public void invalidateAll() {
+        allGeneration.incrementAndGet();
+        anyWriteGeneration.incrementAndGet();
+    }
+
+    public JsonObject getStats() {
+        JsonObject stats = new JsonObject();
+        long hitCount = hits.get();
+        long missCount = misses.get();
+        synchronized (entries) {
+            stats.addProperty("size", entries.size());
+            stats.addProperty("estimatedBytes", bytes);
+        }
+        stats.addProperty("maxSize", maxSize);
+        stats.addProperty("maxBytes", maxBytes);
+        stats.addProperty("ttlMs", TimeUnit.NANOSECONDS.toMillis(ttlNanos));
+        stats.addProperty("hits", hitCount);
+        stats.addProperty("misses", missCount);
+        stats.addProperty("hitRate", hitCount + missCount == 0 ? 0.0 : (double) hitCount / (hitCount + missCount));
+        stats.addProperty("staleMisses", stale.get());
+        stats.addProperty("expirations", expirations.get());
+        stats.addProperty("evictions", evictions.get());
+        stats.addProperty("trackedLabels", generations.size());
+        return stats;
+    }
+}
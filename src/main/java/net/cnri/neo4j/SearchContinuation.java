@@ -0,0 +1,64 @@
+package net.cnri.neo4j;
+
+import net.cnri.cordra.api.BadRequestCordraException;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.List;
+
+/**
+ * Opaque search continuation tokens: the offset of the next row, tied to the query it was issued for.
+ * Pages are cut on the server by wrapping the query, so each page only transfers its own rows. The
+ * wrapper adds no ordering of its own: pages are stable only for queries with an ORDER BY on unique
+ * values, and only while the rows before them do not change; otherwise rows can repeat or be missed
+ * between pages.
+ */
+public class SearchContinuation {
+
+    public static final String SKIP_PARAMETER = "_pageSkip";
+    public static final String LIMIT_PARAMETER = "_pageLimit";
+
+    private SearchContinuation() { }
+
+    /**
+     * The query as a subquery, skipping SKIP_PARAMETER rows and returning at most LIMIT_PARAMETER of
+     * its columns, in the given order. RETURN * would list them sorted by name instead, so it is
+     * only used if the columns are not known.
+     */
+    public static String pagedQuery(String cypherQuery, List<String> columns) {
+        String query = cypherQuery.strip();
+        while (query.endsWith(";")) {
+            query = query.substring(0, query.length() - 1).strip();
+        }
+        StringBuilder sb = new StringBuilder("CALL {\n").append(query).append("\n}\nRETURN ");
+        if (columns == null || columns.isEmpty()) {
+            sb.append('*');
+        } else {
+            for (int i = 0; i < columns.size(); i++) {
+                if (i > 0) sb.append(", ");
+                sb.append('`').append(columns.get(i).replace("`", "``")).append('`');
+            }
+        }
+        return sb.append(" SKIP $").append(SKIP_PARAMETER).append(" LIMIT $").append(LIMIT_PARAMETER).toString();
+    }
+
+    public static String encode(int offset, String cypherQuery) {
+        String token = offset + ":" + Integer.toHexString(cypherQuery.hashCode());
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(token.getBytes(StandardCharsets.UTF_8));
+    }
+
+    public static int decode(String continuationToken, String cypherQuery) throws BadRequestCordraException {
+        if (continuationToken == null || continuationToken.isEmpty()) return 0;
+        try {
+            String token = new String(Base64.getUrlDecoder().decode(continuationToken), StandardCharsets.UTF_8);
+            int colon = token.indexOf(':');
+            if (colon > 0 && token.substring(colon + 1).equals(Integer.toHexString(cypherQuery.hashCode()))) {
+                int offset = Integer.parseInt(token.substring(0, colon));
+                if (offset >= 0) return offset;
+            }
+        } catch (IllegalArgumentException e) {
+            // fall through
+        }
+        throw new BadRequestCordraException("Invalid continuation token for this query");
+    }
+}
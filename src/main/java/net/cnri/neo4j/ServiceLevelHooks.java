@@ -1,5 +1,6 @@
 package net.cnri.neo4j;
 
+import com.google.gson.JsonArray;
 import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
 import net.cnri.cordra.*;
@@ -8,8 +9,10 @@ import net.cnri.cordra.api.CordraException;
 import net.cnri.cordra.api.CordraObject;
 import net.cnri.cordra.util.GsonUtility;
 import net.cnri.cordra.util.JsonUtil;
+import org.neo4j.driver.Bookmark;
 
-import java.util.Map;
+import java.util.*;
+import java.util.concurrent.CompletionStage;
 
 @CordraServiceHooks
 public class ServiceLevelHooks implements CordraTypeInterface {
@@ -20,7 +23,26 @@ public class ServiceLevelHooks implements CordraTypeInterface {
     public void afterCreateOrUpdate(CordraObject obj, HooksContext context) throws CordraException {
         Map<String, JsonElement> pointerToSchemaMap = context.pointerToSchemaMap;
         Neo4jCordraObjectIndexer neo4j = Neo4jCordraObjectIndexer.getInstance();
+        if ("Schema".equals(obj.type)) {
+            neo4j.clearMappingPlans();
+            if (neo4j.getConfig().createIndexes) {
+                try {
+                    neo4j.ensureIndexes();
+                } catch (Exception e) {
+                    neo4j.recordError("ensureIndexes", obj, e);
+                }
+            }
+        }
+        if (neo4j.isWriteBehindEnabled()) {
+            enqueueWrite(neo4j, context.isNew ? WriteBehindQueue.Operation.CREATE : WriteBehindQueue.Operation.UPDATE, obj, pointerToSchemaMap);
+            return;
+        }
         boolean includeRelationships = true;
+        if (neo4j.isAsyncEnabled()) {
+            CompletionStage<?> write = context.isNew ? neo4j.createAsync(obj, pointerToSchemaMap) : neo4j.updateAsync(obj, pointerToSchemaMap, includeRelationships);
+            recordFailure(neo4j, context.isNew ? "create" : "update", write, obj);
+            return;
+        }
         try {
             if (context.isNew) {
                 neo4j.create(obj, pointerToSchemaMap); //TODO boolean includeRelationships
@@ -28,7 +50,7 @@ public class ServiceLevelHooks implements CordraTypeInterface {
                 neo4j.update(obj, pointerToSchemaMap, includeRelationships);
             }
         } catch (Exception e) {
-            //no-op
+            neo4j.recordError(context.isNew ? "create" : "update", obj, e);
         }
     }
 
@@ -40,13 +62,89 @@ public class ServiceLevelHooks implements CordraTypeInterface {
     @Override
     public void afterDelete(CordraObject obj, HooksContext context) throws CordraException {
         Neo4jCordraObjectIndexer neo4j = Neo4jCordraObjectIndexer.getInstance();
+        if ("Schema".equals(obj.type)) {
+            neo4j.clearMappingPlans();
+        }
+        if (neo4j.isWriteBehindEnabled()) {
+            enqueueWrite(neo4j, WriteBehindQueue.Operation.DELETE, obj, null);
+            return;
+        }
+        if (neo4j.isAsyncEnabled()) {
+            recordFailure(neo4j, "delete", neo4j.deleteAsync(obj), obj);
+            return;
+        }
         try {
             neo4j.delete(obj);
         } catch (Exception e) {
-            //no-op
+            neo4j.recordError("delete", obj, e);
         }
     }
 
+    private static void enqueueWrite(Neo4jCordraObjectIndexer neo4j, WriteBehindQueue.Operation operation, CordraObject obj, Map<String, JsonElement> pointerToSchemaMap) {
+        try {
+            neo4j.enqueueWrite(operation, obj, pointerToSchemaMap);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (Exception e) {
+            neo4j.recordError("enqueue", obj, e);
+        }
+    }
+
+    private static void recordFailure(Neo4jCordraObjectIndexer neo4j, String operation, CompletionStage<?> write, CordraObject obj) {
+        write.whenComplete((result, error) -> {
+            if (error != null) neo4j.recordError(operation, obj, error);
+        });
+    }
+
+    @CordraMethod
+    public static JsonElement getNeo4jIndexerStats(@SuppressWarnings("unused") HooksContext context) throws Exception {
+        return Neo4jCordraObjectIndexer.getInstance().getIndexerStats();
+    }
+
+    @CordraMethod
+    public static JsonElement resetNeo4jIndexerStats(@SuppressWarnings("unused") HooksContext context) throws Exception {
+        Neo4jCordraObjectIndexer.getInstance().resetIndexerStats();
+        JsonElement result = new JsonObject();
+        return result;
+    }
+
+    @CordraMethod
+    public static JsonElement getNeo4jAsyncStats(@SuppressWarnings("unused") HooksContext context) throws Exception {
+        return Neo4jCordraObjectIndexer.getInstance().getAsyncStats();
+    }
+
+    @CordraMethod
+    public static JsonElement getNeo4jIndexStatus(@SuppressWarnings("unused") HooksContext context) throws Exception {
+        return Neo4jCordraObjectIndexer.getInstance().getIndexStatus();
+    }
+
+    @CordraMethod
+    public static JsonElement ensureNeo4jIndexes(@SuppressWarnings("unused") HooksContext context) throws Exception {
+        return Neo4jCordraObjectIndexer.getInstance().ensureIndexes();
+    }
+
+    @CordraMethod
+    public static JsonElement getNeo4jMappingPlanStats(@SuppressWarnings("unused") HooksContext context) throws Exception {
+        return Neo4jCordraObjectIndexer.getInstance().getMappingPlanStats();
+    }
+
+    @CordraMethod
+    public static JsonElement clearNeo4jMappingPlans(@SuppressWarnings("unused") HooksContext context) throws Exception {
+        Neo4jCordraObjectIndexer.getInstance().clearMappingPlans();
+        JsonElement result = new JsonObject();
+        return result;
+    }
+
+    @CordraMethod
+    public static JsonElement getNeo4jUpdateStats(@SuppressWarnings("unused") HooksContext context) throws Exception {
+        return Neo4jCordraObjectIndexer.getInstance().getUpdateStats();
+    }
+
+    @CordraMethod
+    public static JsonElement getNeo4jWriteBehindStats(@SuppressWarnings("unused") HooksContext context) throws Exception {
+        return Neo4jCordraObjectIndexer.getInstance().getWriteBehindStats();
+    }
+
     @CordraMethod
     public static JsonElement reloadNeo4jConfig(@SuppressWarnings("unused") HooksContext context) throws Exception {
         Neo4jConfig config = Neo4jCordraObjectIndexer.getInstance().loadConfigFromDesign();
@@ -55,10 +153,39 @@ public class ServiceLevelHooks implements CordraTypeInterface {
     }
 
     @CordraMethod
-    public static JsonElement deleteAllInNeo4j(@SuppressWarnings("unused") HooksContext context) throws Exception {
-        Neo4jCordraObjectIndexer.getInstance().deleteAll();
-        JsonElement result = new JsonObject();
-        return result;
+    public static JsonElement getNeo4jWriteSchedulerStats(@SuppressWarnings("unused") HooksContext context) throws Exception {
+        return Neo4jCordraObjectIndexer.getInstance().getWriteSchedulerStats();
+    }
+
+    @CordraMethod
+    public static JsonElement getNeo4jSearchCacheStats(@SuppressWarnings("unused") HooksContext context) throws Exception {
+        return Neo4jCordraObjectIndexer.getInstance().getSearchCacheStats();
+    }
+
+    @CordraMethod
+    public static JsonElement getNeo4jTemplateCacheStats(@SuppressWarnings("unused") HooksContext context) throws Exception {
+        return Neo4jCordraObjectIndexer.getInstance().getTemplateCacheStats();
+    }
+
+    @CordraMethod
+    public static JsonElement deleteAllInNeo4j(HooksContext context) throws Exception {
+        JsonObject attributes = context.attributes;
+        Neo4jCordraObjectIndexer indexer = Neo4jCordraObjectIndexer.getInstance();
+        int batchSize = Math.max(1, getIntProperty(attributes, "batchSize", indexer.getConfig().deleteBatchSize));
+        if (attributes != null && attributes.has("type")) {
+            return indexer.deleteAllOfType(attributes.get("type").getAsString(), batchSize);
+        }
+        if (attributes != null && attributes.has("query")) {
+            return indexer.deleteQueryResults(attributes.get("query").getAsString(), batchSize);
+        }
+        return indexer.deleteAll(batchSize);
+    }
+
+    @CordraMethod
+    public static JsonElement backfillNeo4jOwners(HooksContext context) throws Exception {
+        Neo4jCordraObjectIndexer indexer = Neo4jCordraObjectIndexer.getInstance();
+        int batchSize = Math.max(1, getIntProperty(context.attributes, "batchSize", indexer.getConfig().deleteBatchSize));
+        return indexer.backfillOwners(batchSize);
     }
 
     @CordraMethod
@@ -81,20 +208,97 @@ public class ServiceLevelHooks implements CordraTypeInterface {
             throw new Exception("Missing query attribute");
         }
         String query = attributes.get("query").getAsString();
-        return Neo4jCordraObjectIndexer.getInstance().search(query);
+        int pageSize = getIntProperty(attributes, "pageSize", 0);
+        String continuationToken = attributes.has("continuationToken") ? attributes.get("continuationToken").getAsString() : null;
+        Neo4jCordraObjectIndexer indexer = Neo4jCordraObjectIndexer.getInstance();
+        List<Bookmark> bookmarks = getBookmarks(indexer, attributes);
+        // the cache only knows about this node's writes, so explicit bookmarks bypass it
+        boolean useCache = JsonUtil.getBooleanProperty(attributes, "useCache", true) && !attributes.has("bookmarks");
+        if (JsonUtil.getBooleanProperty(attributes, "stream", false)) {
+            DirectIo directIo = context.getDirectIo();
+            directIo.setOutputMediaType("application/x-ndjson");
+            indexer.searchToWriter(query, pageSize, continuationToken, bookmarks, directIo.getOutputAsWriter());
+            return null;
+        }
+        if (pageSize > 0 || continuationToken != null) {
+            if (pageSize <= 0) pageSize = indexer.getConfig().searchMaxRows;
+            return indexer.search(query, pageSize, continuationToken, bookmarks, useCache);
+        }
+        return indexer.search(query, bookmarks, useCache);
+    }
+
+    @CordraMethod
+    public static JsonElement runNamedNeo4jQuery(HooksContext context) throws Exception {
+        JsonObject attributes = context.attributes;
+        if (!attributes.has("name")) {
+            throw new Exception("Missing name attribute");
+        }
+        String name = attributes.get("name").getAsString();
+        JsonElement parameters = attributes.get("parameters");
+        if (parameters != null && !parameters.isJsonObject()) {
+            throw new Exception("parameters attribute must be an object");
+        }
+        int pageSize = getIntProperty(attributes, "pageSize", 0);
+        String continuationToken = attributes.has("continuationToken") ? attributes.get("continuationToken").getAsString() : null;
+        Neo4jCordraObjectIndexer indexer = Neo4jCordraObjectIndexer.getInstance();
+        List<Bookmark> bookmarks = getBookmarks(indexer, attributes);
+        boolean useCache = JsonUtil.getBooleanProperty(attributes, "useCache", true) && !attributes.has("bookmarks");
+        return indexer.runNamedQuery(name, parameters == null ? null : parameters.getAsJsonObject(), pageSize, continuationToken, bookmarks, useCache);
+    }
+
+    @CordraMethod
+    public static JsonElement getNeo4jNamedQueries(@SuppressWarnings("unused") HooksContext context) throws Exception {
+        return Neo4jCordraObjectIndexer.getInstance().getNamedQueries();
+    }
+
+    @CordraMethod
+    public static JsonElement getNeo4jBookmark(@SuppressWarnings("unused") HooksContext context) throws Exception {
+        Bookmark bookmark = Neo4jCordraObjectIndexer.getInstance().getLastWriteBookmark();
+        JsonObject result = new JsonObject();
+        JsonArray values = new JsonArray();
+        if (bookmark != null) {
+            for (String value : bookmark.values()) {
+                values.add(value);
+            }
+        }
+        result.add("bookmarks", values);
+        return result;
+    }
+
+    private static List<Bookmark> getBookmarks(Neo4jCordraObjectIndexer indexer, JsonObject attributes) {
+        List<Bookmark> bookmarks = new ArrayList<>();
+        JsonElement bookmarksElement = attributes.get("bookmarks");
+        if (bookmarksElement != null && bookmarksElement.isJsonArray()) {
+            Set<String> values = new HashSet<>();
+            for (JsonElement value : bookmarksElement.getAsJsonArray()) {
+                values.add(value.getAsString());
+            }
+            bookmarks.add(Bookmark.from(values));
+        } else if (bookmarksElement != null && bookmarksElement.isJsonPrimitive()) {
+            bookmarks.add(Bookmark.from(Collections.singleton(bookmarksElement.getAsString())));
+        }
+        if (JsonUtil.getBooleanProperty(attributes, "readYourWrites", indexer.getConfig().searchReadYourWrites)) {
+            Bookmark lastWriteBookmark = indexer.getLastWriteBookmark();
+            if (lastWriteBookmark != null) bookmarks.add(lastWriteBookmark);
+        }
+        return bookmarks;
     }
 
     @CordraMethod
     public static JsonElement reindexAllInNeo4j(HooksContext context) throws Exception {
         JsonObject attributes = context.attributes;
-        boolean includeRelationships = JsonUtil.getBooleanProperty(attributes, "includeRelationships", true);
-        return Neo4jCordraObjectIndexer.getInstance().reindexAll(includeRelationships);
+        Neo4jCordraObjectIndexer indexer = Neo4jCordraObjectIndexer.getInstance();
+        return indexer.reindexQueryResults("*:*", getReindexOptions(indexer, attributes));
     }
 
     @CordraMethod
-    public static JsonElement reindexAllInNeo4jTwoPass(@SuppressWarnings("unused") HooksContext context) throws Exception {
-        Neo4jCordraObjectIndexer.getInstance().reindexAll(false);
-        return Neo4jCordraObjectIndexer.getInstance().reindexAll(true);
+    public static JsonElement reindexAllInNeo4jTwoPass(HooksContext context) throws Exception {
+        JsonObject attributes = context.attributes;
+        Neo4jCordraObjectIndexer indexer = Neo4jCordraObjectIndexer.getInstance();
+        ReindexOptions options = getReindexOptions(indexer, attributes);
+        options.includeRelationships = true;
+        options.deferRelationships = true;
+        return indexer.reindexQueryResults("*:*", options);
     }
 
     @CordraMethod
@@ -104,8 +308,8 @@ public class ServiceLevelHooks implements CordraTypeInterface {
             throw new Exception("Missing query attribute");
         }
         String query = attributes.get("query").getAsString();
-        boolean includeRelationships = JsonUtil.getBooleanProperty(attributes, "includeRelationships", true);
-        return Neo4jCordraObjectIndexer.getInstance().reindexQueryResults(query, includeRelationships);
+        Neo4jCordraObjectIndexer indexer = Neo4jCordraObjectIndexer.getInstance();
+        return indexer.reindexQueryResults(query, getReindexOptions(indexer, attributes));
     }
 
     @CordraMethod
@@ -115,8 +319,59 @@ public class ServiceLevelHooks implements CordraTypeInterface {
             throw new Exception("Missing query attribute");
         }
         String query = attributes.get("query").getAsString();
-        Neo4jCordraObjectIndexer.getInstance().reindexQueryResults(query, false);
-        return Neo4jCordraObjectIndexer.getInstance().reindexQueryResults(query, true);
+        Neo4jCordraObjectIndexer indexer = Neo4jCordraObjectIndexer.getInstance();
+        ReindexOptions options = getReindexOptions(indexer, attributes);
+        options.includeRelationships = true;
+        options.deferRelationships = true;
+        return indexer.reindexQueryResults(query, options);
+    }
+
+    @CordraMethod
+    public static JsonElement startNeo4jReindexJob(HooksContext context) throws Exception {
+        JsonObject attributes = context.attributes;
+        String query = attributes != null && attributes.has("query") ? attributes.get("query").getAsString() : "*:*";
+        Neo4jCordraObjectIndexer indexer = Neo4jCordraObjectIndexer.getInstance();
+        return indexer.startReindexJob(query, getReindexOptions(indexer, attributes));
+    }
+
+    @CordraMethod
+    public static JsonElement getNeo4jReindexJobStatus(HooksContext context) throws Exception {
+        JsonObject attributes = context.attributes;
+        String jobId = attributes != null && attributes.has("jobId") ? attributes.get("jobId").getAsString() : null;
+        return Neo4jCordraObjectIndexer.getInstance().getReindexJobStatus(jobId);
+    }
+
+    @CordraMethod
+    public static JsonElement pauseNeo4jReindexJob(HooksContext context) throws Exception {
+        return Neo4jCordraObjectIndexer.getInstance().pauseReindexJob(getJobId(context.attributes));
+    }
+
+    @CordraMethod
+    public static JsonElement resumeNeo4jReindexJob(HooksContext context) throws Exception {
+        return Neo4jCordraObjectIndexer.getInstance().resumeReindexJob(getJobId(context.attributes));
+    }
+
+    @CordraMethod
+    public static JsonElement cancelNeo4jReindexJob(HooksContext context) throws Exception {
+        return Neo4jCordraObjectIndexer.getInstance().cancelReindexJob(getJobId(context.attributes));
+    }
+
+    private static String getJobId(JsonObject attributes) throws Exception {
+        if (attributes == null || !attributes.has("jobId")) {
+            throw new Exception("Missing jobId attribute");
+        }
+        return attributes.get("jobId").getAsString();
+    }
+
+    @CordraMethod
+    public static JsonElement exportNeo4jCsv(HooksContext context) throws Exception {
+        JsonObject attributes = context.attributes;
+        if (!attributes.has("directory")) {
+            throw new Exception("Missing directory attribute");
+        }
+        String query = attributes.has("query") ? attributes.get("query").getAsString() : "*:*";
+        String directory = attributes.get("directory").getAsString();
+        return Neo4jCordraObjectIndexer.getInstance().exportCsv(query, directory);
     }
 
     @CordraMethod
@@ -129,4 +384,19 @@ public class ServiceLevelHooks implements CordraTypeInterface {
         boolean includeRelationships = JsonUtil.getBooleanProperty(attributes, "includeRelationships", true);
         return Neo4jCordraObjectIndexer.getInstance().reindexId(id, includeRelationships);
     }
+
+    private static ReindexOptions getReindexOptions(Neo4jCordraObjectIndexer indexer, JsonObject attributes) {
+        ReindexOptions options = ReindexOptions.fromConfig(indexer.getConfig());
+        options.includeRelationships = JsonUtil.getBooleanProperty(attributes, "includeRelationships", true);
+        options.batchSize = getIntProperty(attributes, "batchSize", options.batchSize);
+        options.projectionThreads = Math.max(1, getIntProperty(attributes, "projectionThreads", options.projectionThreads));
+        options.writerThreads = Math.max(1, getIntProperty(attributes, "writerThreads", options.writerThreads));
+        options.deferRelationships = JsonUtil.getBooleanProperty(attributes, "deferRelationships", options.deferRelationships);
+        return options;
+    }
+
+    private static int getIntProperty(JsonObject attributes, String name, int defaultValue) {
+        if (attributes == null || !attributes.has(name)) return defaultValue;
+        return attributes.get(name).getAsInt();
+    }
 }
@@ -2,8 +2,22 @@ package net.cnri.neo4j;
 
 import net.cnri.cordra.api.*;
 
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
 public class Util {
 
+    /**
+     * Resolves a configured path. Relative paths are taken from Cordra's data directory, the
+     * cordra.data system property, rather than from the working directory.
+     */
+    public static Path resolveDataPath(String path) {
+        Path resolved = Paths.get(path);
+        String dataDirectory = System.getProperty("cordra.data");
+        if (resolved.isAbsolute() || dataDirectory == null) return resolved;
+        return Paths.get(dataDirectory).resolve(resolved);
+    }
+
     public static void ensureNoInboundReferences(CordraObject co, CordraClient cordra) throws CordraException {
         String query = "internal.pointsAt:" + co.id;
         try (SearchResults<String> results = cordra.searchHandles(query)) {
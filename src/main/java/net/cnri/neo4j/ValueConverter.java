@@ -0,0 +1,129 @@
+package net.cnri.neo4j;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonPrimitive;
+import org.neo4j.driver.Value;
+import org.neo4j.driver.Values;
+
+import java.time.LocalDate;
+import java.time.LocalTime;
+import java.time.OffsetDateTime;
+import java.time.OffsetTime;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Converts JSON property values to driver values. Integral numbers become longs and strings with a
+ * date, date-time or time schema format become temporal values; anything that does not parse is kept
+ * as it is in the JSON. Neo4j only stores homogeneous lists, so arrays of mixed primitives become
+ * lists of strings, except that integers and decimals mix into a list of doubles.
+ */
+public class ValueConverter {
+
+    private ValueConverter() { }
+
+    public static Value toValue(JsonPrimitive primitive, MappingPlan.PointerMapping mapping) {
+        return Values.value(toObject(primitive, mapping));
+    }
+
+    /**
+     * Converts the primitive elements of an array; object elements are skipped.
+     */
+    public static Value toValue(JsonArray array, MappingPlan.PointerMapping itemsMapping) {
+        List<Object> objects = new ArrayList<>(array.size());
+        Class<?> commonClass = null;
+        boolean allNumbers = true;
+        for (JsonElement element : array) {
+            if (!element.isJsonPrimitive()) continue;
+            Object object = toObject(element.getAsJsonPrimitive(), itemsMapping);
+            objects.add(object);
+            allNumbers &= object instanceof Number;
+            if (commonClass == null) commonClass = object.getClass();
+            else if (commonClass != object.getClass()) commonClass = Object.class;
+        }
+        if (commonClass == Long.class) {
+            long[] longs = new long[objects.size()];
+            for (int i = 0; i < longs.length; i++) longs[i] = (Long) objects.get(i);
+            return Values.value(longs);
+        } else if (allNumbers) {
+            double[] doubles = new double[objects.size()];
+            for (int i = 0; i < doubles.length; i++) doubles[i] = ((Number) objects.get(i)).doubleValue();
+            return Values.value(doubles);
+        } else if (commonClass == Boolean.class) {
+            boolean[] booleans = new boolean[objects.size()];
+            for (int i = 0; i < booleans.length; i++) booleans[i] = (Boolean) objects.get(i);
+            return Values.value(booleans);
+        } else if (commonClass != Object.class) {
+            return Values.value(objects);
+        }
+        List<Object> strings = new ArrayList<>(objects.size());
+        for (JsonElement element : array) {
+            if (element.isJsonPrimitive()) strings.add(element.getAsString());
+        }
+        return Values.value(strings);
+    }
+
+    private static Object toObject(JsonPrimitive primitive, MappingPlan.PointerMapping mapping) {
+        if (primitive.isBoolean()) {
+            return primitive.getAsBoolean();
+        } else if (primitive.isNumber()) {
+            String number = primitive.getAsString();
+            if (isIntegral(number) || "integer".equals(mapping.valueType)) {
+                Long longValue = toLong(number);
+                if (longValue != null) return longValue;
+            }
+            return primitive.getAsDouble();
+        } else {
+            String string = primitive.getAsString();
+            if (mapping.format != null) {
+                Object temporal = toTemporal(string, mapping.format);
+                if (temporal != null) return temporal;
+            }
+            return string;
+        }
+    }
+
+    private static boolean isIntegral(String number) {
+        for (int i = 0; i < number.length(); i++) {
+            char c = number.charAt(i);
+            if (c == '.' || c == 'e' || c == 'E') return false;
+        }
+        return true;
+    }
+
+    private static Long toLong(String number) {
+        try {
+            return Long.valueOf(number);
+        } catch (NumberFormatException e) {
+            try {
+                double d = Double.parseDouble(number);
+                if (d == Math.rint(d) && Math.abs(d) < 0x1p63) return (long) d;
+            } catch (NumberFormatException ex) {
+                // fall through
+            }
+            return null;
+        }
+    }
+
+    private static Object toTemporal(String string, String format) {
+        try {
+            switch (format) {
+            case "date":
+                return LocalDate.parse(string);
+            case "date-time":
+                return OffsetDateTime.parse(string);
+            case "time":
+                if (string.endsWith("Z") || string.indexOf('+') >= 0 || string.lastIndexOf('-') > 0) {
+                    return OffsetTime.parse(string);
+                }
+                return LocalTime.parse(string);
+            default:
+                return null;
+            }
+        } catch (DateTimeParseException e) {
+            return null;
+        }
+    }
+}
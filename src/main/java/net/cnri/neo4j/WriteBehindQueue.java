@@ -0,0 +1,350 @@
+package net.cnri.neo4j;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import net.cnri.cordra.api.CordraObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Bounded queue of pending Neo4j writes, applied by a small worker pool off the Cordra request thread.
+ * There is at most one pending write per object id: a newer write for the same id replaces the queued
+ * one, and an id is never written by two workers at the same time.
+ * <p>
+ * On a config reload the queue is retired rather than shut down, so that writes for an object are
+ * still applied in order across the switch to its successor.
+ */
+public class WriteBehindQueue {
+
+    private static final Logger logger = LoggerFactory.getLogger(WriteBehindQueue.class);
+
+    public enum Operation { CREATE, UPDATE, DELETE }
+
+    private static class PendingWrite {
+        final Operation operation;
+        final CordraObject co;
+        final Map<String, JsonElement> pointerToSchemaMap;
+        final long enqueuedNanos;
+
+        PendingWrite(Operation operation, CordraObject co, Map<String, JsonElement> pointerToSchemaMap, long enqueuedNanos) {
+            this.operation = operation;
+            this.co = co;
+            this.pointerToSchemaMap = pointerToSchemaMap;
+            this.enqueuedNanos = enqueuedNanos;
+        }
+    }
+
+    interface Writer {
+        void write(Operation operation, CordraObject co, Map<String, JsonElement> pointerToSchemaMap) throws Exception;
+    }
+
+    private final Writer writer;
+    private final int capacity;
+    private final long offerTimeoutMs;
+    private final ExecutorService workers;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notFull = lock.newCondition();
+    private final Condition writable = lock.newCondition();
+    private final Condition idle = lock.newCondition();
+    private final LinkedHashMap<String, PendingWrite> pending = new LinkedHashMap<>();
+    private final Set<String> inFlight = new HashSet<>();
+    // ids still being written by the queue this one took over from
+    private final Set<String> predecessorInFlight = new HashSet<>();
+    private boolean shutdown = false;
+    private boolean retired = false;
+    private WriteBehindQueue successor;
+
+    private long enqueued;
+    private long coalesced;
+    private long dropped;
+    private long completed;
+    private long failed;
+    private long lastLagNanos;
+    private long maxLagNanos;
+
+    public WriteBehindQueue(Neo4jCordraObjectIndexer indexer, int capacity, int threads, long offerTimeoutMs) {
+        this((operation, co, pointerToSchemaMap) -> apply(indexer, operation, co, pointerToSchemaMap), capacity, threads, offerTimeoutMs);
+    }
+
+    WriteBehindQueue(Writer writer, int capacity, int threads, long offerTimeoutMs) {
+        this.writer = writer;
+        this.capacity = capacity;
+        this.offerTimeoutMs = offerTimeoutMs;
+        AtomicInteger threadCount = new AtomicInteger();
+        this.workers = Executors.newFixedThreadPool(threads, r -> {
+            Thread thread = new Thread(r, "neo4j-write-behind-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        for (int i = 0; i < threads; i++) {
+            workers.execute(this::runWorker);
+        }
+    }
+
+    /**
+     * Queues a write, blocking for up to the offer timeout while the queue is full.
+     * Returns false if the write was dropped. Once the queue is retired the write goes to its
+     * successor, or is applied right away if there is none.
+     */
+    public boolean submit(Operation operation, CordraObject co, Map<String, JsonElement> pointerToSchemaMap) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(offerTimeoutMs);
+        WriteBehindQueue next;
+        lock.lock();
+        try {
+            PendingWrite existing = pending.get(co.id);
+            while (existing == null && pending.size() >= capacity && !shutdown && !retired) {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    dropped++;
+                    logger.warn("Neo4j write-behind queue full, dropping {} of {}", operation, co.id);
+                    return false;
+                }
+                notFull.awaitNanos(remaining);
+                existing = pending.get(co.id);
+            }
+            if (!retired) {
+                if (shutdown) {
+                    dropped++;
+                    logger.warn("Neo4j write-behind queue shut down, dropping {} of {}", operation, co.id);
+                    return false;
+                }
+                enqueue(operation, co, pointerToSchemaMap, existing, System.nanoTime());
+                return true;
+            }
+            next = successor;
+        } finally {
+            lock.unlock();
+        }
+        if (next != null) {
+            return next.submit(operation, co, pointerToSchemaMap);
+        }
+        try {
+            writer.write(operation, co, pointerToSchemaMap);
+            return true;
+        } catch (Exception e) {
+            logger.error("Error applying Neo4j " + operation + " of " + co.id, e);
+            return false;
+        }
+    }
+
+    // called with the lock held
+    private void enqueue(Operation operation, CordraObject co, Map<String, JsonElement> pointerToSchemaMap, PendingWrite existing, long enqueuedNanos) {
+        enqueued++;
+        if (existing == null) {
+            pending.put(co.id, new PendingWrite(operation, co, pointerToSchemaMap, enqueuedNanos));
+        } else {
+            coalesced++;
+            // keep the queue position and age of the oldest unapplied change
+            pending.put(co.id, new PendingWrite(coalesce(existing.operation, operation), co, pointerToSchemaMap, existing.enqueuedNanos));
+        }
+        writable.signal();
+    }
+
+    static Operation coalesce(Operation older, Operation newer) {
+        if (newer == Operation.DELETE) return Operation.DELETE;
+        if (older == Operation.CREATE && newer == Operation.CREATE) return Operation.CREATE;
+        // an update rebuilds the whole graph from the latest version, which also covers a create
+        return Operation.UPDATE;
+    }
+
+    private PendingWrite take() throws InterruptedException {
+        lock.lock();
+        try {
+            while (true) {
+                for (Iterator<Map.Entry<String, PendingWrite>> iter = pending.entrySet().iterator(); iter.hasNext(); ) {
+                    Map.Entry<String, PendingWrite> entry = iter.next();
+                    if (!inFlight.contains(entry.getKey()) && !predecessorInFlight.contains(entry.getKey())) {
+                        iter.remove();
+                        inFlight.add(entry.getKey());
+                        notFull.signal();
+                        return entry.getValue();
+                    }
+                }
+                if (shutdown && pending.isEmpty()) return null;
+                writable.await();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void done(PendingWrite write, boolean success) {
+        WriteBehindQueue next;
+        lock.lock();
+        try {
+            inFlight.remove(write.co.id);
+            if (success) completed++;
+            else failed++;
+            lastLagNanos = System.nanoTime() - write.enqueuedNanos;
+            maxLagNanos = Math.max(maxLagNanos, lastLagNanos);
+            // a newer write for the same id may have been waiting on this one
+            writable.signalAll();
+            if (pending.isEmpty() && inFlight.isEmpty()) idle.signalAll();
+            next = successor;
+        } finally {
+            lock.unlock();
+        }
+        if (next != null) next.predecessorDone(write.co.id);
+    }
+
+    private void predecessorDone(String id) {
+        WriteBehindQueue next;
+        lock.lock();
+        try {
+            predecessorInFlight.remove(id);
+            writable.signalAll();
+            next = successor;
+        } finally {
+            lock.unlock();
+        }
+        // after another reload the id was handed on too
+        if (next != null) next.predecessorDone(id);
+    }
+
+    /**
+     * Stops using this queue after a config reload. With a successor, the pending writes move to it
+     * at once, it holds back writes for ids this queue is still writing, and writes submitted here
+     * from then on are passed to it. Without one, writes are still queued until the queue has
+     * drained, for up to timeoutMs, and are applied right away after that.
+     */
+    public void retire(WriteBehindQueue successor, long timeoutMs) {
+        lock.lock();
+        try {
+            if (successor == null) {
+                long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+                while (!pending.isEmpty() || !inFlight.isEmpty()) {
+                    long remaining = deadline - System.nanoTime();
+                    if (remaining <= 0) {
+                        logger.warn("Neo4j write-behind queue did not drain within {} ms; {} writes still pending", timeoutMs, pending.size() + inFlight.size());
+                        break;
+                    }
+                    try {
+                        idle.awaitNanos(remaining);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        break;
+                    }
+                }
+            } else {
+                // the successor is locked inside this lock and never the other way round, and
+                // nothing is passed to it before it has the pending writes
+                Set<String> writing = new HashSet<>(inFlight);
+                writing.addAll(predecessorInFlight);
+                successor.takeOver(pending.values(), writing);
+                pending.clear();
+            }
+            this.successor = successor;
+            retired = true;
+            shutdown = true;
+            writable.signalAll();
+            notFull.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        // the workers finish what they hold and exit
+        workers.shutdown();
+    }
+
+    private void takeOver(Collection<PendingWrite> writes, Set<String> writing) {
+        lock.lock();
+        try {
+            for (PendingWrite write : writes) {
+                enqueue(write.operation, write.co, write.pointerToSchemaMap, pending.get(write.co.id), write.enqueuedNanos);
+            }
+            predecessorInFlight.addAll(writing);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void runWorker() {
+        while (true) {
+            PendingWrite write;
+            try {
+                write = take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            if (write == null) return;
+            boolean success = false;
+            try {
+                writer.write(write.operation, write.co, write.pointerToSchemaMap);
+                success = true;
+            } catch (Exception e) {
+                logger.error("Error applying Neo4j " + write.operation + " of " + write.co.id, e);
+            } finally {
+                done(write, success);
+            }
+        }
+    }
+
+    static void apply(Neo4jCordraObjectIndexer indexer, Operation operation, CordraObject co, Map<String, JsonElement> pointerToSchemaMap) {
+        switch (operation) {
+        case CREATE:
+            indexer.create(co, pointerToSchemaMap);
+            break;
+        case UPDATE:
+            indexer.update(co, pointerToSchemaMap, true);
+            break;
+        case DELETE:
+            indexer.delete(co);
+            break;
+        }
+    }
+
+    public JsonObject getStats() {
+        lock.lock();
+        try {
+            JsonObject stats = new JsonObject();
+            stats.addProperty("depth", pending.size());
+            stats.addProperty("inFlight", inFlight.size());
+            stats.addProperty("capacity", capacity);
+            stats.addProperty("enqueued", enqueued);
+            stats.addProperty("coalesced", coalesced);
+            stats.addProperty("dropped", dropped);
+            stats.addProperty("completed", completed);
+            stats.addProperty("failed", failed);
+            long oldestLagNanos = pending.isEmpty() ? 0 : System.nanoTime() - pending.values().iterator().next().enqueuedNanos;
+            stats.addProperty("oldestPendingLagMs", TimeUnit.NANOSECONDS.toMillis(oldestLagNanos));
+            stats.addProperty("lastLagMs", TimeUnit.NANOSECONDS.toMillis(lastLagNanos));
+            stats.addProperty("maxLagMs", TimeUnit.NANOSECONDS.toMillis(maxLagNanos));
+            return stats;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Stops accepting writes and waits up to the given time for the pending ones to be applied.
+     */
+    public void shutdown(long timeoutMs) {
+        lock.lock();
+        try {
+            shutdown = true;
+            writable.signalAll();
+            notFull.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        workers.shutdown();
+        try {
+            if (!workers.awaitTermination(timeoutMs, TimeUnit.MILLISECONDS)) {
+                logger.warn("Neo4j write-behind queue did not drain within {} ms", timeoutMs);
+                workers.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            workers.shutdownNow();
+        }
+    }
+}
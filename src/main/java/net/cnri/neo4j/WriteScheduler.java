@@ -0,0 +1,206 @@
+package net.cnri.neo4j;
+
+import com.google.gson.JsonObject;
+import org.neo4j.driver.exceptions.ClientException;
+
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * Two lanes of writes to Neo4j. Live writes from the hooks are never held back; they are only
+ * counted and timed. Bulk writes from reindexing and bulk deletes wait for one of a limited number
+ * of slots, and while live writes are in flight they also wait, up to bulkYieldToLiveMs, for those
+ * to finish. The limit adapts AIMD-style: it grows by one per limit's worth of bulk writes that
+ * finish under the bulk latency target, and halves when a bulk write fails or misses that target,
+ * or a live write fails or misses the live latency target. Client errors, such as a constraint
+ * violation, say nothing about load and are not counted as failures. Once the limit is at its
+ * minimum, further misses add a growing pause before each bulk write instead, which shrinks again
+ * as writes come in under target.
+ */
+public class WriteScheduler {
+
+    // at most one decrease per interval, so one slow spell does not collapse the limit
+    private static final long DECREASE_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(1);
+    private static final long DELAY_STEP_MS = 10;
+
+    private final int minConcurrency;
+    private final int maxConcurrency;
+    private final long liveTargetNanos;
+    private final long bulkTargetNanos;
+    private final long maxDelayMs;
+    private final long yieldToLiveNanos;
+
+    private final LatencyHistogram liveLatency = new LatencyHistogram();
+    private final LatencyHistogram bulkLatency = new LatencyHistogram();
+    private final LatencyHistogram bulkWait = new LatencyHistogram();
+
+    private double limit;
+    private long delayMs;
+    private int liveInFlight;
+    private int bulkInFlight;
+    private long lastDecreaseNanos;
+    private long increases;
+    private long decreases;
+    private long liveMisses;
+    private long bulkMisses;
+    private long liveFailures;
+    private long bulkFailures;
+    private long bulkYields;
+
+    public WriteScheduler(Neo4jConfig config) {
+        this.minConcurrency = Math.max(1, config.bulkMinConcurrency);
+        this.maxConcurrency = Math.max(minConcurrency, config.bulkMaxConcurrency);
+        this.liveTargetNanos = TimeUnit.MILLISECONDS.toNanos(config.liveLatencyTargetMs);
+        this.bulkTargetNanos = TimeUnit.MILLISECONDS.toNanos(config.bulkLatencyTargetMs);
+        this.maxDelayMs = Math.max(0, config.bulkMaxDelayMs);
+        this.yieldToLiveNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, config.bulkYieldToLiveMs));
+        this.limit = minConcurrency;
+        this.lastDecreaseNanos = System.nanoTime() - DECREASE_INTERVAL_NANOS;
+    }
+
+    public long beginLive() {
+        synchronized (this) {
+            liveInFlight++;
+        }
+        return System.nanoTime();
+    }
+
+    public void endLive(long start, Throwable error) {
+        long nanos = System.nanoTime() - start;
+        liveLatency.record(nanos);
+        synchronized (this) {
+            liveInFlight--;
+            if (isCongestion(error)) {
+                liveFailures++;
+                decrease();
+            } else if (nanos > liveTargetNanos) {
+                liveMisses++;
+                decrease();
+            }
+            if (liveInFlight == 0) notifyAll();
+        }
+    }
+
+    public void bulk(Runnable write) {
+        bulk(() -> {
+            write.run();
+            return null;
+        });
+    }
+
+    public <T> T bulk(Supplier<T> write) {
+        long waitStart = System.nanoTime();
+        long delay;
+        synchronized (this) {
+            try {
+                awaitBulkSlot(waitStart);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted waiting to write to Neo4j", e);
+            }
+            bulkInFlight++;
+            delay = delayMs;
+        }
+        long start = System.nanoTime();
+        Throwable error = null;
+        try {
+            if (delay > 0) {
+                Thread.sleep(delay);
+                start = System.nanoTime();
+            }
+            bulkWait.record(start - waitStart);
+            return write.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted waiting to write to Neo4j", e);
+        } catch (RuntimeException | Error e) {
+            error = e;
+            throw e;
+        } finally {
+            long nanos = System.nanoTime() - start;
+            bulkLatency.record(nanos);
+            synchronized (this) {
+                bulkInFlight--;
+                if (isCongestion(error)) {
+                    bulkFailures++;
+                    decrease();
+                } else if (nanos > bulkTargetNanos) {
+                    bulkMisses++;
+                    decrease();
+                } else {
+                    increase();
+                }
+                notifyAll();
+            }
+        }
+    }
+
+    // live writes go first, but only for so long, so that steady live traffic cannot starve bulk writes
+    private void awaitBulkSlot(long waitStart) throws InterruptedException {
+        long yieldDeadline = waitStart + yieldToLiveNanos;
+        boolean yielded = false;
+        while (true) {
+            if (bulkInFlight >= (int) limit) {
+                wait();
+                continue;
+            }
+            long remaining = yieldDeadline - System.nanoTime();
+            if (liveInFlight == 0 || remaining <= 0) break;
+            if (!yielded) {
+                yielded = true;
+                bulkYields++;
+            }
+            TimeUnit.NANOSECONDS.timedWait(this, remaining);
+        }
+    }
+
+    static boolean isCongestion(Throwable error) {
+        if (error instanceof CompletionException && error.getCause() != null) error = error.getCause();
+        return error != null && !(error instanceof ClientException);
+    }
+
+    private void increase() {
+        if (delayMs > 0) {
+            delayMs = Math.max(0, delayMs - DELAY_STEP_MS);
+            return;
+        }
+        if (limit < maxConcurrency) {
+            limit = Math.min(maxConcurrency, limit + 1 / limit);
+            increases++;
+        }
+    }
+
+    private void decrease() {
+        long now = System.nanoTime();
+        if (now - lastDecreaseNanos < DECREASE_INTERVAL_NANOS) return;
+        lastDecreaseNanos = now;
+        decreases++;
+        if (limit > minConcurrency) {
+            limit = Math.max(minConcurrency, limit / 2);
+        } else {
+            delayMs = Math.min(maxDelayMs, Math.max(DELAY_STEP_MS, delayMs * 2));
+        }
+    }
+
+    public JsonObject getStats() {
+        JsonObject json = new JsonObject();
+        synchronized (this) {
+            json.addProperty("bulkConcurrencyLimit", (int) limit);
+            json.addProperty("bulkDelayMs", delayMs);
+            json.addProperty("liveInFlight", liveInFlight);
+            json.addProperty("bulkInFlight", bulkInFlight);
+            json.addProperty("increases", increases);
+            json.addProperty("decreases", decreases);
+            json.addProperty("liveTargetMisses", liveMisses);
+            json.addProperty("bulkTargetMisses", bulkMisses);
+            json.addProperty("liveFailures", liveFailures);
+            json.addProperty("bulkFailures", bulkFailures);
+            json.addProperty("bulkYieldsToLive", bulkYields);
+        }
+        json.add("liveLatency", liveLatency.toJson());
+        json.add("bulkLatency", bulkLatency.toJson());
+        json.add("bulkWait", bulkWait.toJson());
+        return json;
+    }
+}
@@ -0,0 +1,190 @@
+package net.cnri.neo4j.moviesdb;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import joptsimple.OptionException;
+import joptsimple.OptionParser;
+import joptsimple.OptionSet;
+import net.cnri.cordra.api.CordraObject;
+import net.cnri.cordra.util.GsonUtility;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.function.Consumer;
+
+/**
+ * Generates Movie and Person objects shaped like the bundled movies data, at any size. Movies come
+ * first and people after, so every reference points at an object generated earlier. A share of
+ * all relationships goes to a few hub movies and hub people, giving them very high in-degree.
+ * Output is one Cordra object per line.
+ */
+public class CorpusGenerator {
+
+    private static final String[] MOVIE_RELATIONSHIPS = { "ACTED_IN", "DIRECTED", "PRODUCED", "WROTE", "REVIEWED" };
+
+    public int movies = 1000;
+    public int people = 10000;
+    public int fanOut = 5; // average relationships from each person
+    public int hubs = 10; // hub movies, and as many hub people
+    public double hubShare = 0.3; // fraction of relationships that point at a hub
+    public int depth = 0; // levels of nested objects in each person
+    public int arraySize = 3; // primitive array elements in each object
+    public long seed = 42;
+
+    public static void addOptions(OptionParser parser) {
+        parser.accepts("movies", "Number of movies").withRequiredArg().ofType(Integer.class).defaultsTo(1000);
+        parser.accepts("people", "Number of people").withRequiredArg().ofType(Integer.class).defaultsTo(10000);
+        parser.accepts("fan-out", "Average relationships per person").withRequiredArg().ofType(Integer.class).defaultsTo(5);
+        parser.accepts("hubs", "Number of hub movies and hub people").withRequiredArg().ofType(Integer.class).defaultsTo(10);
+        parser.accepts("hub-share", "Fraction of relationships pointing at a hub").withRequiredArg().ofType(Double.class).defaultsTo(0.3);
+        parser.accepts("depth", "Levels of nested objects in each person").withRequiredArg().ofType(Integer.class).defaultsTo(0);
+        parser.accepts("array-size", "Primitive array elements in each object").withRequiredArg().ofType(Integer.class).defaultsTo(3);
+        parser.accepts("seed", "Random seed").withRequiredArg().ofType(Long.class).defaultsTo(42L);
+    }
+
+    public static CorpusGenerator fromOptions(OptionSet options) {
+        CorpusGenerator generator = new CorpusGenerator();
+        generator.movies = Math.max(1, (Integer)options.valueOf("movies"));
+        generator.people = Math.max(0, (Integer)options.valueOf("people"));
+        generator.fanOut = Math.max(0, (Integer)options.valueOf("fan-out"));
+        generator.hubs = Math.max(1, (Integer)options.valueOf("hubs"));
+        generator.hubShare = (Double)options.valueOf("hub-share");
+        generator.depth = Math.max(0, (Integer)options.valueOf("depth"));
+        generator.arraySize = Math.max(0, (Integer)options.valueOf("array-size"));
+        generator.seed = (Long)options.valueOf("seed");
+        return generator;
+    }
+
+    public long size() {
+        return (long) movies + people;
+    }
+
+    public void forEach(Consumer<CordraObject> consumer) {
+        Random random = new Random(seed);
+        for (int i = 0; i < movies; i++) {
+            consumer.accept(movie(i, random));
+        }
+        for (int i = 0; i < people; i++) {
+            consumer.accept(person(i, random));
+        }
+    }
+
+    private CordraObject movie(int i, Random random) {
+        JsonObject content = new JsonObject();
+        content.addProperty("title", "Movie " + i);
+        content.addProperty("tagline", "Tagline of movie " + i);
+        content.addProperty("released", 1920 + random.nextInt(105));
+        content.addProperty("votes", random.nextInt(10000));
+        content.add("keywords", words("keyword", random));
+        return cordraObject(movieId(i), "Movie", content);
+    }
+
+    private CordraObject person(int i, Random random) {
+        JsonObject content = new JsonObject();
+        content.addProperty("name", "Person " + i);
+        content.addProperty("born", 1900 + random.nextInt(110));
+        content.add("aliases", words("alias", random));
+        // vary the count around the average, so not every person has the same shape
+        int relationships = fanOut == 0 ? 0 : random.nextInt(2 * fanOut + 1);
+        Map<String, Set<String>> targets = new TreeMap<>();
+        for (int r = 0; r < relationships; r++) {
+            if (i > 0 && random.nextInt(MOVIE_RELATIONSHIPS.length + 1) == 0) {
+                targets.computeIfAbsent("FOLLOWS", k -> new LinkedHashSet<>()).add(personId(pick(random, i)));
+            } else {
+                String type = MOVIE_RELATIONSHIPS[random.nextInt(MOVIE_RELATIONSHIPS.length)];
+                targets.computeIfAbsent(type, k -> new LinkedHashSet<>()).add(movieId(pick(random, movies)));
+            }
+        }
+        for (Map.Entry<String, Set<String>> entry : targets.entrySet()) {
+            JsonArray array = new JsonArray();
+            entry.getValue().forEach(array::add);
+            content.add(entry.getKey(), array);
+        }
+        if (depth > 0) {
+            content.add("career", career(depth, random));
+        }
+        return cordraObject(personId(i), "Person", content);
+    }
+
+    private JsonObject career(int levels, Random random) {
+        JsonObject career = new JsonObject();
+        career.addProperty("agency", "Agency " + random.nextInt(100));
+        career.addProperty("since", 1950 + random.nextInt(75));
+        career.add("credits", words("credit", random));
+        if (levels > 1) {
+            career.add("previous", career(levels - 1, random));
+        }
+        return career;
+    }
+
+    // one of the first n, with hubShare of the picks going to the first hubs
+    private int pick(Random random, int n) {
+        if (random.nextDouble() < hubShare) {
+            return random.nextInt(Math.min(hubs, n));
+        }
+        return random.nextInt(n);
+    }
+
+    private JsonArray words(String prefix, Random random) {
+        JsonArray array = new JsonArray();
+        for (int i = 0; i < arraySize; i++) {
+            array.add(prefix + " " + random.nextInt(1000));
+        }
+        return array;
+    }
+
+    private static CordraObject cordraObject(String id, String type, JsonObject content) {
+        CordraObject co = new CordraObject();
+        co.id = id;
+        co.type = type;
+        co.content = content;
+        return co;
+    }
+
+    static String movieId(int i) {
+        return MoviesImporter.getId("gen-movie-" + i);
+    }
+
+    static String personId(int i) {
+        return MoviesImporter.getId("gen-person-" + i);
+    }
+
+    public static void main(String[] args) throws Exception {
+        OptionParser parser = new OptionParser();
+        parser.acceptsAll(Arrays.asList("h", "help")).forHelp();
+        parser.acceptsAll(Arrays.asList("o", "output"), "Output file; standard output if omitted").withRequiredArg();
+        addOptions(parser);
+        OptionSet options;
+        try {
+            options = parser.parse(args);
+        } catch (OptionException e) {
+            System.out.println("Error parsing options: " + e.getMessage());
+            parser.printHelpOn(System.out);
+            System.exit(1);
+            return;
+        }
+        if (options.has("h")) {
+            System.out.println("This tool generates a synthetic movies corpus, one Cordra object per line.");
+            parser.printHelpOn(System.out);
+            System.exit(1);
+            return;
+        }
+        CorpusGenerator generator = fromOptions(options);
+        String output = (String)options.valueOf("output");
+        Gson gson = GsonUtility.getGson();
+        try (Writer writer = output == null
+                ? new BufferedWriter(new OutputStreamWriter(System.out, StandardCharsets.UTF_8))
+                : new BufferedWriter(new OutputStreamWriter(new FileOutputStream(output), StandardCharsets.UTF_8))) {
+            generator.forEach(co -> {
+                try {
+                    writer.write(gson.toJson(co));
+                    writer.write('\n');
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        }
+    }
+}
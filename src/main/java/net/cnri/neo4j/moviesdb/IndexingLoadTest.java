@@ -0,0 +1,164 @@
+package net.cnri.neo4j.moviesdb;
+
+import com.google.gson.Gson;
+import joptsimple.OptionException;
+import joptsimple.OptionParser;
+import joptsimple.OptionSet;
+import net.cnri.cordra.api.CordraClient;
+import net.cnri.cordra.api.CordraObject;
+import net.cnri.cordra.api.TokenUsingHttpCordraClient;
+import net.cnri.cordra.util.GsonUtility;
+import net.cnri.neo4j.LatencyHistogram;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * Creates a generated corpus through a Cordra instance with the Neo4j hooks installed, and reports
+ * throughput and create latency as it goes. Latency is measured at the client, so it covers the
+ * synchronous indexing in the hooks; getNeo4jIndexerStats on the server gives the indexer's own
+ * breakdown and its heap use.
+ */
+public class IndexingLoadTest {
+
+    public static void main(String[] args) throws Exception {
+        OptionParser parser = new OptionParser();
+        parser.acceptsAll(Arrays.asList("h", "help")).forHelp();
+        parser.acceptsAll(Arrays.asList("b", "base-uri")).withRequiredArg().required();
+        parser.acceptsAll(Arrays.asList("u", "username")).withRequiredArg().required();
+        parser.acceptsAll(Arrays.asList("p", "password"), "Can be entered as standard input").withRequiredArg();
+        parser.accepts("parallelism", "Number of concurrent Cordra requests").withRequiredArg().ofType(Integer.class).defaultsTo(8);
+        parser.accepts("report-seconds", "Seconds between progress reports").withRequiredArg().ofType(Integer.class).defaultsTo(10);
+        parser.acceptsAll(Arrays.asList("i", "input"), "Corpus file written by CorpusGenerator; generated on the fly if omitted").withRequiredArg();
+        CorpusGenerator.addOptions(parser);
+        OptionSet options;
+        try {
+            options = parser.parse(args);
+        } catch (OptionException e) {
+            System.out.println("Error parsing options: " + e.getMessage());
+            System.out.println("This tool will load a synthetic corpus into Cordra and report indexing throughput.");
+            parser.printHelpOn(System.out);
+            System.exit(1);
+            return;
+        }
+        if (options.has("h")) {
+            System.out.println("This tool will load a synthetic corpus into Cordra and report indexing throughput.");
+            parser.printHelpOn(System.out);
+            System.exit(1);
+            return;
+        }
+        String baseUri = (String)options.valueOf("base-uri");
+        String username = (String)options.valueOf("username");
+        String password = (String)options.valueOf("password");
+        int parallelism = Math.max(1, (Integer)options.valueOf("parallelism"));
+        int reportSeconds = Math.max(1, (Integer)options.valueOf("report-seconds"));
+        String input = (String)options.valueOf("input");
+        if (password == null) {
+            System.out.print("Password: ");
+            try (
+                InputStreamReader isr = new InputStreamReader(System.in, StandardCharsets.UTF_8);
+                BufferedReader reader = new BufferedReader(isr);
+            ) {
+                password = reader.readLine();
+            }
+        }
+        CorpusGenerator generator = CorpusGenerator.fromOptions(options);
+        try (CordraClient cordra = new TokenUsingHttpCordraClient(baseUri, username, password)) {
+            LoadRun run = new LoadRun(cordra, parallelism);
+            ScheduledExecutorService reporter = Executors.newSingleThreadScheduledExecutor();
+            reporter.scheduleAtFixedRate(run::report, reportSeconds, reportSeconds, TimeUnit.SECONDS);
+            try {
+                if (input == null) {
+                    generator.forEach(run::submit);
+                } else {
+                    forEachLine(input, run::submit);
+                }
+                run.finish();
+            } finally {
+                reporter.shutdownNow();
+            }
+            run.report();
+            run.summary();
+        }
+    }
+
+    private static void forEachLine(String filename, Consumer<CordraObject> consumer) throws IOException {
+        Gson gson = GsonUtility.getGson();
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(filename), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.isBlank()) continue;
+                consumer.accept(gson.fromJson(line, CordraObject.class));
+            }
+        }
+    }
+
+    private static class LoadRun {
+        private final CordraClient cordra;
+        private final ExecutorService executor;
+        private final Semaphore permits;
+        private final LatencyHistogram total = new LatencyHistogram();
+        private final LatencyHistogram window = new LatencyHistogram();
+        private final AtomicLong failed = new AtomicLong();
+        private final long startNanos = System.nanoTime();
+        private long lastReportNanos = startNanos;
+        private long lastReportCount;
+
+        LoadRun(CordraClient cordra, int parallelism) {
+            this.cordra = cordra;
+            this.executor = Executors.newFixedThreadPool(parallelism);
+            this.permits = new Semaphore(parallelism * 2);
+        }
+
+        void submit(CordraObject co) {
+            permits.acquireUninterruptibly();
+            executor.execute(() -> {
+                long start = System.nanoTime();
+                try {
+                    cordra.create(co);
+                    long nanos = System.nanoTime() - start;
+                    total.record(nanos);
+                    window.record(nanos);
+                } catch (Exception e) {
+                    failed.incrementAndGet();
+                    System.out.println("Error on " + co.id + ": " + e);
+                } finally {
+                    permits.release();
+                }
+            });
+        }
+
+        void finish() throws InterruptedException {
+            executor.shutdown();
+            executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        }
+
+        synchronized void report() {
+            long now = System.nanoTime();
+            long count = total.getCount();
+            double windowSeconds = (now - lastReportNanos) / 1e9;
+            double rate = windowSeconds == 0 ? 0.0 : (count - lastReportCount) / windowSeconds;
+            Runtime runtime = Runtime.getRuntime();
+            System.out.println(String.format("%8.1fs %10d objects %8.1f objects/s  window %s  heap %dMB",
+                    (now - startNanos) / 1e9, count, rate, window.toJson(), (runtime.totalMemory() - runtime.freeMemory()) >> 20));
+            window.reset();
+            lastReportNanos = now;
+            lastReportCount = count;
+        }
+
+        void summary() {
+            double seconds = (System.nanoTime() - startNanos) / 1e9;
+            long count = total.getCount();
+            System.out.println(String.format("Created %d objects, %d failed, in %.1fs: %.1f objects/s, latency %s",
+                    count, failed.get(), seconds, count / seconds, total.toJson()));
+        }
+    }
+}
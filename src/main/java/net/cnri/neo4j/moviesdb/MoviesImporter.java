@@ -3,6 +3,7 @@ package net.cnri.neo4j.moviesdb;
 import com.google.gson.JsonArray;
 import com.google.gson.JsonObject;
 import com.google.gson.JsonParser;
+import com.google.gson.stream.JsonReader;
 
 import joptsimple.OptionException;
 import joptsimple.OptionParser;
@@ -11,24 +12,29 @@ import net.cnri.cordra.api.CordraClient;
 import net.cnri.cordra.api.CordraException;
 import net.cnri.cordra.api.CordraObject;
 import net.cnri.cordra.api.TokenUsingHttpCordraClient;
-import net.cnri.cordra.util.GsonUtility;
 
 import java.io.*;
 import java.nio.charset.StandardCharsets;
-import java.util.Arrays;
-import java.util.stream.Collectors;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
 
 public class MoviesImporter {
 
     private static String baseUri;
     private static String username;
     private static String password;
+    private static int parallelism;
 
     public static void main(String[] args) throws Exception {
         OptionSet options = parseOptions(args);
         extractOptions(options);
-        JsonArray records = loadRecordsJson();
-        JsonArray relationships = loadRelationshipsJson();
+        // source id -> relationship type -> target ids
+        Map<String, Map<String, List<String>>> relationships = loadRelationshipsBySource();
         try (CordraClient cordra = new TokenUsingHttpCordraClient(baseUri, username, password)) {
 //        while (true) {
 //            try (SearchResults<String> results = cordra.searchHandles("type:Movie type:Person")) {
@@ -42,7 +48,7 @@ public class MoviesImporter {
 //                }
 //            }
 //        }
-            createCordraObjectsFor(records, cordra);
+            createCordraObjects(cordra);
             createRelationshipsFor(relationships, cordra);
         }
     }
@@ -53,6 +59,7 @@ public class MoviesImporter {
         parser.acceptsAll(Arrays.asList("b", "base-uri")).withRequiredArg().required();
         parser.acceptsAll(Arrays.asList("u", "username")).withRequiredArg().required();
         parser.acceptsAll(Arrays.asList("p", "password"), "Can be entered as standard input").withRequiredArg();
+        parser.accepts("parallelism", "Number of concurrent Cordra requests").withRequiredArg().ofType(Integer.class).defaultsTo(8);
 
         OptionSet options;
         try {
@@ -77,6 +84,7 @@ public class MoviesImporter {
         baseUri = (String)options.valueOf("base-uri");
         username = (String)options.valueOf("username");
         password = (String)options.valueOf("password");
+        parallelism = Math.max(1, (Integer)options.valueOf("parallelism"));
         if (password == null) {
             System.out.print("Password: ");
             try (
@@ -88,22 +96,25 @@ public class MoviesImporter {
         }
     }
 
-    private static void createRelationshipsFor(JsonArray relationships, CordraClient cordra) throws CordraException {
-        for (int i = 0; i < relationships.size(); i++) {
-            JsonObject item = relationships.get(i).getAsJsonObject();
-            JsonObject r = item.get("r").getAsJsonObject();
-            String type = r.get("type").getAsString();
-            JsonObject a = item.get("a").getAsJsonObject();
-            JsonObject b = item.get("b").getAsJsonObject();
-            String from = a.get("identity").getAsString();
-            String to = b.get("identity").getAsString();
-            String fromId = getId(from);
-            String toId   = getId(to);
-            CordraObject fromCo = cordra.get(fromId);
-            addRelationship(fromCo, type, toId);
-            System.out.println(fromId + " - [" + type + "] ->" + toId);
-            fromCo = cordra.update(fromCo);
+    /**
+     * Applies all relationships of a source object in one update, so each object is fetched,
+     * updated and reindexed once rather than once per relationship.
+     */
+    private static void createRelationshipsFor(Map<String, Map<String, List<String>>> relationships, CordraClient cordra) throws InterruptedException {
+        ParallelRequests requests = new ParallelRequests(parallelism);
+        for (Map.Entry<String, Map<String, List<String>>> entry : relationships.entrySet()) {
+            String fromId = entry.getKey();
+            requests.submit(fromId, () -> {
+                CordraObject fromCo = cordra.get(fromId);
+                for (Map.Entry<String, List<String>> typeAndTargets : entry.getValue().entrySet()) {
+                    for (String toId : typeAndTargets.getValue()) {
+                        addRelationship(fromCo, typeAndTargets.getKey(), toId);
+                    }
+                }
+                cordra.update(fromCo);
+            });
         }
+        requests.finish("Updated with relationships");
     }
 
     public static void addRelationship(CordraObject co, String type, String toId) {
@@ -118,13 +129,13 @@ public class MoviesImporter {
         relationships.add(toId);
     }
 
-    public static void createCordraObjectsFor(JsonArray records, CordraClient cordra) throws CordraException {
-        for (int i = 0; i < records.size(); i++) {
-            JsonObject o = records.get(i).getAsJsonObject();
+    private static void createCordraObjects(CordraClient cordra) throws IOException, InterruptedException {
+        ParallelRequests requests = new ParallelRequests(parallelism);
+        forEachElement("/moviesdb/records.json", o -> {
             CordraObject co = fromNeo4jResult(o);
-            cordra.create(co);
-            System.out.println(GsonUtility.getGson().toJson(co));
-        }
+            requests.submit(co.id, () -> cordra.create(co));
+        });
+        requests.finish("Created");
     }
 
     public static String getId(String suffix) {
@@ -144,27 +155,76 @@ public class MoviesImporter {
         return co;
     }
 
-    private static JsonArray loadRelationshipsJson() throws IOException {
-        String json = loadResource("/moviesdb/relationships.json");
-        return JsonParser.parseString(json).getAsJsonArray();
-    }
-
-    private static JsonArray loadRecordsJson() throws IOException {
-        String json = loadResource("/moviesdb/records.json");
-        return JsonParser.parseString(json).getAsJsonArray();
+    private static Map<String, Map<String, List<String>>> loadRelationshipsBySource() throws IOException {
+        Map<String, Map<String, List<String>>> relationships = new LinkedHashMap<>();
+        forEachElement("/moviesdb/relationships.json", item -> {
+            String type = item.get("r").getAsJsonObject().get("type").getAsString();
+            String fromId = getId(item.get("a").getAsJsonObject().get("identity").getAsString());
+            String toId = getId(item.get("b").getAsJsonObject().get("identity").getAsString());
+            relationships.computeIfAbsent(fromId, k -> new LinkedHashMap<>())
+                    .computeIfAbsent(type, k -> new ArrayList<>())
+                    .add(toId);
+        });
+        return relationships;
     }
 
-    private static String loadResource(String filename) throws IOException {
-        String result = null;
+    // streams the elements of a JSON array resource without reading the whole file into memory
+    private static void forEachElement(String filename, Consumer<JsonObject> consumer) throws IOException {
         try (
             InputStream in = MoviesImporter.class.getResourceAsStream(filename);
             InputStreamReader isr = new InputStreamReader(in, StandardCharsets.UTF_8);
             BufferedReader br = new BufferedReader(isr);
+            JsonReader reader = new JsonReader(br);
         ) {
-            result = br
-                    .lines()
-                    .collect(Collectors.joining("\n"));
+            // the bundled files start with a byte order mark
+            br.mark(1);
+            if (br.read() != '\uFEFF') br.reset();
+            reader.beginArray();
+            while (reader.hasNext()) {
+                consumer.accept(JsonParser.parseReader(reader).getAsJsonObject());
+            }
+            reader.endArray();
+        }
+    }
+
+    private interface CordraRequest {
+        void run() throws CordraException;
+    }
+
+    /**
+     * Runs requests on a fixed number of threads; submit blocks while that many are already
+     * waiting, so the input is never read far ahead of the requests.
+     */
+    private static class ParallelRequests {
+        private final ExecutorService executor;
+        private final Semaphore permits;
+        private final AtomicInteger succeeded = new AtomicInteger();
+        private final AtomicInteger failed = new AtomicInteger();
+
+        ParallelRequests(int parallelism) {
+            this.executor = Executors.newFixedThreadPool(parallelism);
+            this.permits = new Semaphore(parallelism * 2);
+        }
+
+        void submit(String id, CordraRequest request) {
+            permits.acquireUninterruptibly();
+            executor.execute(() -> {
+                try {
+                    request.run();
+                    succeeded.incrementAndGet();
+                } catch (Exception e) {
+                    failed.incrementAndGet();
+                    System.out.println("Error on " + id + ": " + e);
+                } finally {
+                    permits.release();
+                }
+            });
+        }
+
+        void finish(String description) throws InterruptedException {
+            executor.shutdown();
+            executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+            System.out.println(description + " " + succeeded.get() + " objects, " + failed.get() + " failed");
         }
-        return result;
     }
 }
@@ -0,0 +1,205 @@
+package com.exhypothesi.json;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.google.gson.JsonPrimitive;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class JsonTest {
+
+    private static final String DOCUMENT = "{"
+            + "\"title\": \"The Matrix\","
+            + "\"released\": 1999,"
+            + "\"rating\": 8.7,"
+            + "\"budget\": 63000000000000000000,"
+            + "\"sequel\": null,"
+            + "\"tags\": [\"action\", 1, 2.5, true, null],"
+            + "\"empty\": [],"
+            + "\"matrix\": [[1, 2], [{\"lost\": true}], 3],"
+            + "\"studio\": {\"name\": \"Warner\", \"address\": {\"city\": \"Burbank\", \"zip\": null}},"
+            + "\"cast\": ["
+            + "  {\"name\": \"Keanu\", \"roles\": [\"Neo\"], \"agent\": {\"name\": \"A\"}},"
+            + "  \"uncredited\","
+            + "  {\"name\": \"Carrie-Anne\", \"born\": -1967, \"roles\": []}"
+            + "],"
+            + "\"crew\": [{}, {\"nested\": [{\"deep\": [0, -0.0, 1e300]}]}]"
+            + "}";
+
+    @Test
+    void mapModeMatchesOriginalDenester() {
+        JsonElement document = JsonParser.parseString(DOCUMENT);
+        Json json = new Json(document);
+        json.denest();
+
+        ReferenceDenester reference = new ReferenceDenester();
+        reference.denest(document, "", null, "");
+
+        assertEquals(reference.objects, new TreeMap<>(json.getPointerToObjectMap()));
+        assertEquals(reference.edges, edges(json.getSourceToTargetWithRelationship()));
+    }
+
+    @Test
+    void visitorModeProducesTheSameGraphAsMapMode() {
+        JsonElement document = JsonParser.parseString(DOCUMENT);
+        Json json = new Json(document);
+        json.denest();
+
+        GraphCollector collector = new GraphCollector();
+        Json.denest(document, collector);
+
+        assertEquals(new TreeMap<>(json.getPointerToObjectMap()), collector.objects);
+        assertEquals(edges(json.getSourceToTargetWithRelationship()), collector.edges);
+    }
+
+    @Test
+    void nullsAndNestedArraysAreDroppedAndNumbersKept() {
+        Json json = new Json(JsonParser.parseString(DOCUMENT));
+        json.denest();
+        Map<String, JsonObject> objects = json.getPointerToObjectMap();
+
+        JsonObject root = objects.get("");
+        assertFalse(root.has("sequel"));
+        assertFalse(root.has("empty"));
+        assertEquals(JsonParser.parseString("[3]"), root.get("matrix"));
+        assertEquals(JsonParser.parseString("[\"action\", 1, 2.5, true]"), root.get("tags"));
+        assertEquals(new JsonPrimitive(1999), root.get("released"));
+        assertEquals("63000000000000000000", root.get("budget").getAsString());
+        assertFalse(objects.containsKey("/matrix/1/0"));
+        assertFalse(objects.get("/studio/address").has("zip"));
+        assertEquals(new JsonPrimitive(-1967), objects.get("/cast/2").get("born"));
+        assertFalse(objects.get("/cast/2").has("roles"));
+        assertTrue(objects.containsKey("/crew/0"));
+        assertEquals(JsonParser.parseString("[0, -0.0, 1e300]"), objects.get("/crew/1/nested/0").get("deep"));
+    }
+
+    @Test
+    void visitorPointersAreReportedRelativeToTheirSource() {
+        List<String> events = new ArrayList<>();
+        Json.denest(JsonParser.parseString("{\"a\": {\"b\": [{\"c\": 1}]}}"), new Json.Visitor() {
+            @Override
+            public void beginObject(CharSequence pointer, int sourcePointerLength, String relationship) {
+                String source = sourcePointerLength < 0 ? null : pointer.subSequence(0, sourcePointerLength).toString();
+                events.add("begin " + pointer + " from " + source + " via " + relationship);
+            }
+
+            @Override
+            public void primitiveProperty(String key, JsonPrimitive value) {
+                events.add(key + "=" + value);
+            }
+
+            @Override
+            public void arrayProperty(String key, JsonArray array) {
+                events.add(key + "=" + array);
+            }
+
+            @Override
+            public void endObject(CharSequence pointer) {
+                events.add("end " + pointer);
+            }
+        });
+        assertEquals(List.of(
+                "begin  from null via null",
+                "begin /a from  via a",
+                "begin /a/b/0 from /a via b",
+                "c=1",
+                "end /a/b/0",
+                "end /a",
+                "end "), events);
+    }
+
+    private static TreeMap<String, List<String>> edges(Map<String, List<Json.Relative>> relatives) {
+        TreeMap<String, List<String>> edges = new TreeMap<>();
+        relatives.forEach((source, targets) -> {
+            List<String> list = new ArrayList<>();
+            for (Json.Relative relative : targets) {
+                list.add(relative.relationship + "->" + relative.targetPointer);
+            }
+            edges.put(source, list);
+        });
+        return edges;
+    }
+
+    // builds the graph from the events alone, copying the pointers as the Visitor contract requires
+    private static class GraphCollector implements Json.Visitor {
+        final TreeMap<String, JsonObject> objects = new TreeMap<>();
+        final TreeMap<String, List<String>> edges = new TreeMap<>();
+        private final List<JsonObject> stack = new ArrayList<>();
+
+        @Override
+        public void beginObject(CharSequence pointer, int sourcePointerLength, String relationship) {
+            stack.add(new JsonObject());
+            if (sourcePointerLength >= 0) {
+                String source = pointer.subSequence(0, sourcePointerLength).toString();
+                edges.computeIfAbsent(source, k -> new ArrayList<>()).add(relationship + "->" + pointer);
+            }
+        }
+
+        @Override
+        public void primitiveProperty(String key, JsonPrimitive value) {
+            stack.get(stack.size() - 1).add(key, value);
+        }
+
+        @Override
+        public void arrayProperty(String key, JsonArray array) {
+            JsonArray primitives = new JsonArray();
+            for (JsonElement element : array) {
+                if (element.isJsonPrimitive()) primitives.add(element);
+            }
+            stack.get(stack.size() - 1).add(key, primitives);
+        }
+
+        @Override
+        public void endObject(CharSequence pointer) {
+            objects.put(pointer.toString(), stack.remove(stack.size() - 1));
+        }
+    }
+
+    // the recursive, string-concatenating denester that the streaming walk replaced
+    private static class ReferenceDenester {
+        final TreeMap<String, JsonObject> objects = new TreeMap<>();
+        final TreeMap<String, List<String>> edges = new TreeMap<>();
+        private final Map<String, List<String>> unordered = new HashMap<>();
+
+        void denest(JsonElement element, String jsonPointer, String sourceJsonPointer, String relationship) {
+            if (!element.isJsonObject()) return;
+            JsonObject target = new JsonObject();
+            for (Map.Entry<String, JsonElement> entry : element.getAsJsonObject().entrySet()) {
+                JsonElement value = entry.getValue();
+                if (value.isJsonPrimitive()) {
+                    target.add(entry.getKey(), value);
+                } else if (value.isJsonArray()) {
+                    JsonArray array = new JsonArray();
+                    int index = 0;
+                    for (JsonElement arrayElement : value.getAsJsonArray()) {
+                        if (arrayElement.isJsonPrimitive()) {
+                            array.add(arrayElement);
+                        } else if (arrayElement.isJsonObject()) {
+                            denest(arrayElement, jsonPointer + "/" + entry.getKey() + "/" + index, jsonPointer, entry.getKey());
+                        }
+                        index++;
+                    }
+                    if (array.size() > 0) target.add(entry.getKey(), array);
+                } else {
+                    denest(value, jsonPointer + "/" + entry.getKey(), jsonPointer, entry.getKey());
+                }
+            }
+            objects.put(jsonPointer, target);
+            if (sourceJsonPointer != null) {
+                unordered.computeIfAbsent(sourceJsonPointer, k -> new ArrayList<>()).add(relationship + "->" + jsonPointer);
+                edges.put(sourceJsonPointer, unordered.get(sourceJsonPointer));
+            }
+        }
+    }
+}
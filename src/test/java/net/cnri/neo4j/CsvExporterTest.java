@@ -0,0 +1,111 @@
+package net.cnri.neo4j;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import net.cnri.cordra.api.BadRequestCordraException;
+import net.cnri.cordra.api.CordraObject;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.neo4j.driver.Values;
+
+import java.io.IOException;
+import java.nio.file.DirectoryNotEmptyException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.LocalDate;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class CsvExporterTest {
+
+    private static final JsonElement SCHEMA = JsonParser.parseString("{\"type\": \"object\", \"properties\": {"
+            + "\"released\": {\"type\": \"string\", \"format\": \"date\"},"
+            + "\"director\": {\"type\": \"string\", \"cordra\": {\"type\": {\"handleReference\": {}}}}}}");
+
+    private Path directory;
+
+    @BeforeEach
+    void createDirectory() throws IOException {
+        directory = Files.createTempDirectory("csv-export");
+    }
+
+    @AfterEach
+    void deleteDirectory() throws IOException {
+        try (Stream<Path> paths = Files.walk(directory)) {
+            for (Path path : (Iterable<Path>) paths.sorted(Comparator.reverseOrder())::iterator) {
+                Files.delete(path);
+            }
+        }
+    }
+
+    @Test
+    void propertiesAreTypedForImport() {
+        assertEquals("string", CsvExporter.csvType("test/1"));
+        assertEquals("long", CsvExporter.csvType(Values.value(1999L)));
+        assertEquals("double", CsvExporter.csvType(Values.value(8.7)));
+        assertEquals("boolean", CsvExporter.csvType(Values.value(true)));
+        assertEquals("date", CsvExporter.csvType(Values.value(LocalDate.of(1999, 3, 31))));
+        assertEquals("long[]", CsvExporter.csvType(Values.value(new long[] { 1, 2 })));
+        assertEquals("string[]", CsvExporter.csvType(Values.value(List.of())));
+        assertNull(CsvExporter.csvType(Values.NULL));
+    }
+
+    @Test
+    void writesQuotedRowsHeadersAndImportArguments() throws IOException {
+        CordraObject co = new CordraObject();
+        co.id = "test/1";
+        co.type = "Movie";
+        co.content = JsonParser.parseString("{\"title\": \"The \\\"Matrix\\\", part 1\", \"released\": \"1999-03-31\","
+                + " \"tags\": [\"action\", \"sci-fi\"], \"director\": \"test/2\"}");
+        GraphProjection projection = GraphProjection.project(co, MappingPlan.compile(SCHEMA), null, true, new Neo4jConfig().incrementalUpdate);
+
+        JsonObject stats;
+        try (CsvExporter exporter = new CsvExporter(directory, 4)) {
+            exporter.add(projection);
+            stats = exporter.finish();
+        }
+        assertEquals(1, stats.get("objectCount").getAsLong());
+        assertEquals(1, stats.get("nodeCount").getAsLong());
+        assertEquals(1, stats.get("relationshipCount").getAsLong());
+
+        // columns in key order, with _id as the import ID, and no content hashes by default
+        String header = Files.readString(directory.resolve("nodes-0-header.csv"));
+        assertTrue(header.startsWith("_id:ID,_type:string,director:string,released:date,tags:string[],title:string"), header);
+        String row = Files.readString(directory.resolve("nodes-0.csv"));
+        assertTrue(row.startsWith("\"test/1\",\"Movie\",\"test/2\",1999-03-31,\"action" + CsvExporter.ARRAY_DELIMITER + "sci-fi\",\"The \"\"Matrix\"\", part 1\"\n"), row);
+        assertEquals("\"test/1\",\"test/2\",\"director\"\n", Files.readString(directory.resolve("relationships.csv")));
+        assertEquals("\"test/2\"\n", Files.readString(directory.resolve("stub-nodes.csv")));
+
+        List<String> args = Files.readAllLines(directory.resolve("import.args"));
+        assertTrue(args.get(0).startsWith("--nodes=Movie:CordraObject="), args.get(0));
+        assertTrue(args.contains("--skip-duplicate-nodes=true"));
+    }
+
+    @Test
+    void refusesADirectoryThatIsNotEmpty() throws IOException {
+        Files.writeString(directory.resolve("nodes-0.csv"), "\"stale\"\n");
+        assertThrows(DirectoryNotEmptyException.class, () -> new CsvExporter(directory, 4));
+    }
+
+    @Test
+    void directoriesMustStayUnderTheExportRoot() throws Exception {
+        Path root = Paths.get("exports").toAbsolutePath();
+        assertEquals(root.resolve("run-1"), CsvExporter.resolveDirectory(root, "run-1"));
+        assertEquals(root.resolve("2024/run-1"), CsvExporter.resolveDirectory(root, "2024/./run-1"));
+        assertThrows(BadRequestCordraException.class, () -> CsvExporter.resolveDirectory(root, "/tmp/x"));
+        assertThrows(BadRequestCordraException.class, () -> CsvExporter.resolveDirectory(root, "../x"));
+        assertThrows(BadRequestCordraException.class, () -> CsvExporter.resolveDirectory(root, "a/../../x"));
+        assertThrows(BadRequestCordraException.class, () -> CsvExporter.resolveDirectory(root, "a/.."));
+        assertThrows(BadRequestCordraException.class, () -> CsvExporter.resolveDirectory(root, ""));
+        assertThrows(BadRequestCordraException.class, () -> CsvExporter.resolveDirectory(root, "."));
+    }
+}
@@ -0,0 +1,124 @@
+package net.cnri.neo4j;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonParser;
+import net.cnri.cordra.api.CordraObject;
+import org.junit.jupiter.api.Test;
+import org.neo4j.driver.Query;
+
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class CypherTemplatesTest {
+
+    private static final JsonElement SCHEMA = JsonParser.parseString("{\"type\": \"object\", \"properties\": {"
+            + "\"director\": {\"type\": \"string\", \"cordra\": {\"type\": {\"handleReference\": {}}}},"
+            + "\"studio\": {\"type\": \"object\", \"cordra\": {\"ext\": {\"neo4j\": {\"nodeLabel\": \"Studio\"}}}}}}");
+
+    @Test
+    void sameShapedObjectsShareAShapeKey() {
+        GraphProjection matrix = project("test/1", "{\"title\": \"The Matrix\", \"director\": \"test/9\", \"studio\": {\"name\": \"Warner\"}}");
+        GraphProjection speed = project("test/2", "{\"title\": \"Speed\", \"director\": \"test/8\", \"studio\": {\"name\": \"Fox\"}}");
+        assertEquals(CypherTemplates.shapeKey("create", matrix), CypherTemplates.shapeKey("create", speed));
+        assertNotEquals(CypherTemplates.shapeKey("create", matrix), CypherTemplates.shapeKey("update", matrix));
+    }
+
+    @Test
+    void propertyKeysLabelsAndRelationshipsChangeTheShape() {
+        GraphProjection base = project("test/1", "{\"title\": \"The Matrix\", \"studio\": {\"name\": \"Warner\"}}");
+        String key = CypherTemplates.shapeKey("create", base);
+        assertNotEquals(key, CypherTemplates.shapeKey("create", project("test/1", "{\"name\": \"The Matrix\", \"studio\": {\"name\": \"Warner\"}}")));
+        assertNotEquals(key, CypherTemplates.shapeKey("create", project("test/1", "{\"title\": \"The Matrix\", \"company\": {\"name\": \"Warner\"}}")));
+        assertNotEquals(key, CypherTemplates.shapeKey("create", project("test/1", "{\"title\": \"The Matrix\", \"studio\": {\"name\": \"Warner\"}, \"director\": \"test/9\"}")));
+    }
+
+    @Test
+    void updatesIgnoreRootPropertyKeys() {
+        // the root's properties are one map parameter in an update
+        GraphProjection matrix = project("test/1", "{\"title\": \"The Matrix\"}");
+        GraphProjection renamed = project("test/1", "{\"name\": \"The Matrix\", \"year\": 1999}");
+        assertEquals(CypherTemplates.shapeKey("update", matrix), CypherTemplates.shapeKey("update", renamed));
+        assertNotEquals(CypherTemplates.shapeKey("create", matrix), CypherTemplates.shapeKey("create", renamed));
+    }
+
+    @Test
+    void keyPartsCannotRunTogether() {
+        GraphProjection ab = project("test/1", "{\"ab\": 1, \"c\": 2}");
+        GraphProjection a = project("test/1", "{\"a\": 1, \"bc\": 2}");
+        assertNotEquals(CypherTemplates.shapeKey("create", ab), CypherTemplates.shapeKey("create", a));
+    }
+
+    @Test
+    void parametersAreNumberedByNodeAndPropertyPosition() {
+        GraphProjection projection = project("test/1", "{\"title\": \"The Matrix\", \"director\": \"test/9\", \"studio\": {\"name\": \"Warner\"}}");
+        Map<String, Object> create = CypherTemplates.parameters(projection, true);
+        assertEquals("test/1", create.get("id"));
+        int j = 0;
+        for (Object value : projection.getRoot().properties.values()) {
+            assertSame(value, create.get("n0_" + j++));
+        }
+        j = 0;
+        for (Object value : projection.nodes.get(1).properties.values()) {
+            assertSame(value, create.get("n1_" + j++));
+        }
+        assertEquals("test/9", create.get("t0"));
+        assertFalse(create.containsKey("root"));
+
+        Map<String, Object> update = CypherTemplates.parameters(projection, false);
+        assertSame(projection.getRoot().properties, update.get("root"));
+        assertFalse(update.containsKey("n0_0"));
+        assertTrue(update.containsKey("n1_0"));
+    }
+
+    @Test
+    void deleteBatchesReuseOneTemplatePerLabel() {
+        CypherTemplates templates = new CypherTemplates(10, new IndexerStats());
+        Query first = templates.deleteLabelBatchQuery("Movie", 100);
+        Query second = templates.deleteLabelBatchQuery("Movie", 5);
+        templates.deleteLabelBatchQuery("Person", 100);
+        assertEquals(first.text(), second.text());
+        assertEquals(5, second.parameters().get("limit").asInt());
+        assertEquals(1, templates.getStats().get("hits").getAsInt());
+        assertEquals(2, templates.getStats().get("misses").getAsInt());
+    }
+
+    @Test
+    void objectsAreDeletedByOwnerThenByRoot() {
+        CypherTemplates templates = new CypherTemplates(10, new IndexerStats());
+        List<String> ids = List.of("test/1", "test/2");
+        List<Query> queries = templates.deleteObjectsQueries(ids);
+        assertEquals(2, queries.size());
+        for (Query query : queries) {
+            assertEquals(ids, query.parameters().get("rows").asList());
+        }
+        templates.deleteObjectsQueries(List.of("test/3"));
+        assertEquals(2, templates.getStats().get("size").getAsInt());
+    }
+
+    @Test
+    void failedDeferredEdgesClearTheHashesOfTheirSources() {
+        CypherTemplates templates = new CypherTemplates(10, new IndexerStats());
+        List<Query> queries = templates.clearSourceHashesQueries(List.of(
+                new ExternalEdgeBuffer.Edge("test/1", true, "director", "test/9"),
+                new ExternalEdgeBuffer.Edge("test/1", true, "writer", "test/8"),
+                new ExternalEdgeBuffer.Edge("test/2:/studio", false, "owner", "test/7")));
+        assertEquals(2, queries.size());
+        assertEquals(List.of("test/1"), queries.get(0).parameters().get("rows").asList());
+        assertEquals(List.of("test/2:/studio"), queries.get(1).parameters().get("rows").asList());
+        assertEquals(1, templates.clearSourceHashesQueries(List.of(new ExternalEdgeBuffer.Edge("test/3", true, "director", "test/9"))).size());
+    }
+
+    private static GraphProjection project(String id, String content) {
+        CordraObject co = new CordraObject();
+        co.id = id;
+        co.type = "Movie";
+        co.content = JsonParser.parseString(content);
+        return GraphProjection.project(co, MappingPlan.compile(SCHEMA), null, true, false);
+    }
+}
@@ -0,0 +1,30 @@
+package net.cnri.neo4j;
+
+import com.google.gson.JsonObject;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+
+class DeleteStatsTest {
+
+    @Test
+    void batchesAddUp() {
+        DeleteStats stats = new DeleteStats("type Movie");
+        stats.batchDeleted(100, 350, 420);
+        stats.batchDeleted(7, 20, 31);
+        JsonObject json = stats.toJson();
+        assertEquals("type Movie", json.get("target").getAsString());
+        assertEquals(107, json.get("objectCount").getAsInt());
+        assertEquals(370, json.get("nodeCount").getAsInt());
+        assertEquals(451, json.get("relationshipCount").getAsInt());
+        assertEquals(2, json.get("batchCount").getAsInt());
+    }
+
+    @Test
+    void labelDeletesHaveNoObjectCount() {
+        DeleteStats stats = new DeleteStats("all objects");
+        stats.batchDeleted(0, 1000, 10);
+        assertFalse(stats.toJson().has("objectCount"));
+    }
+}
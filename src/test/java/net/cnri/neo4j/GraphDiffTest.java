@@ -0,0 +1,155 @@
+package net.cnri.neo4j;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonParser;
+import net.cnri.cordra.api.CordraObject;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class GraphDiffTest {
+
+    private static final JsonElement SCHEMA = JsonParser.parseString("{\"type\": \"object\", \"properties\": {"
+            + "\"studio\": {\"type\": \"object\", \"cordra\": {\"ext\": {\"neo4j\": {\"nodeLabel\": \"Studio\"}}}}}}");
+    private static final String MOVIE = "{\"title\": \"The Matrix\", \"studio\": {\"name\": \"Warner\"},"
+            + " \"cast\": [{\"name\": \"Keanu\"}, {\"name\": \"Carrie-Anne\"}]}";
+
+    @Test
+    void unchangedGraphHasAnEmptyDiff() {
+        GraphProjection stored = project(MOVIE);
+        GraphDiff diff = GraphDiff.compute(project(MOVIE), stored.getRoot().hash, storedNodes(stored));
+        assertTrue(diff.isEmpty());
+    }
+
+    @Test
+    void changedPropertiesOnlyRewriteTheirNode() {
+        GraphProjection stored = project(MOVIE);
+        GraphProjection rootChanged = project(MOVIE.replace("The Matrix", "The Matrix Reloaded"));
+        GraphDiff diff = GraphDiff.compute(rootChanged, stored.getRoot().hash, storedNodes(stored));
+        assertEquals(List.of(0), diff.changedNodes);
+        assertTrue(diff.addedNodes.isEmpty());
+        assertTrue(diff.removedNodeIds.isEmpty());
+
+        GraphProjection childChanged = project(MOVIE.replace("Keanu", "Keanu Reeves"));
+        diff = GraphDiff.compute(childChanged, stored.getRoot().hash, storedNodes(stored));
+        assertEquals(List.of(indexOf(childChanged, "/cast/0")), diff.changedNodes);
+        assertTrue(diff.addedNodes.isEmpty());
+        assertTrue(diff.removedNodeIds.isEmpty());
+    }
+
+    @Test
+    void arrayElementsAreAddedAndRemovedByPointer() {
+        GraphProjection stored = project(MOVIE);
+        GraphProjection grown = project(MOVIE.replace("{\"name\": \"Carrie-Anne\"}", "{\"name\": \"Carrie-Anne\"}, {\"name\": \"Laurence\"}"));
+        GraphDiff diff = GraphDiff.compute(grown, stored.getRoot().hash, storedNodes(stored));
+        assertEquals(List.of(indexOf(grown, "/cast/2")), diff.addedNodes);
+        assertTrue(diff.removedNodeIds.isEmpty());
+        // the root's hash covers its relationships, so it changes too
+        assertEquals(List.of(0), diff.changedNodes);
+
+        GraphProjection shrunk = project(MOVIE.replace(", {\"name\": \"Carrie-Anne\"}", ""));
+        diff = GraphDiff.compute(shrunk, stored.getRoot().hash, storedNodes(stored));
+        assertEquals(List.of("test/1:/cast/1"), diff.removedNodeIds);
+        assertTrue(diff.addedNodes.isEmpty());
+    }
+
+    @Test
+    void countsOnlyWhatTheDiffWrites() {
+        GraphProjection stored = project(MOVIE);
+        GraphProjection childChanged = project(MOVIE.replace("Keanu", "Keanu Reeves"));
+        GraphDiff diff = GraphDiff.compute(childChanged, stored.getRoot().hash, storedNodes(stored));
+        assertEquals(1, diff.writtenNodes().size());
+        assertEquals(0, diff.countWrittenRelationships(childChanged));
+
+        // the changed root rewrites its outgoing relationships, one per child
+        GraphProjection grown = project(MOVIE.replace("{\"name\": \"Carrie-Anne\"}", "{\"name\": \"Carrie-Anne\"}, {\"name\": \"Laurence\"}"));
+        diff = GraphDiff.compute(grown, stored.getRoot().hash, storedNodes(stored));
+        assertEquals(2, diff.writtenNodes().size());
+        assertEquals(4, diff.countWrittenRelationships(grown));
+    }
+
+    @Test
+    void nodeWithAnotherLabelIsReplaced() {
+        GraphProjection projection = project(MOVIE);
+        List<Map<String, Object>> stored = storedNodes(projection);
+        for (Map<String, Object> node : stored) {
+            if ("Studio".equals(node.get("_type"))) node.put("_type", "Company");
+        }
+        GraphDiff diff = GraphDiff.compute(projection, projection.getRoot().hash, stored);
+        assertEquals(List.of("test/1:/studio"), diff.removedNodeIds);
+        assertEquals(List.of(indexOf(projection, "/studio")), diff.addedNodes);
+        assertTrue(diff.changedNodes.isEmpty());
+        // its incoming relationship went with it
+        assertEquals(1, diff.countWrittenRelationships(projection));
+    }
+
+    @Test
+    void graphStoredWithoutHashesIsRewrittenEverywhere() {
+        GraphProjection projection = project(MOVIE);
+        List<Map<String, Object>> stored = storedNodes(projection);
+        for (Map<String, Object> node : stored) {
+            node.remove(GraphProjection.HASH_PROPERTY);
+        }
+        GraphDiff diff = GraphDiff.compute(projection, null, stored);
+        assertEquals(projection.nodes.size(), diff.changedNodes.size());
+        assertTrue(diff.addedNodes.isEmpty());
+        assertTrue(diff.removedNodeIds.isEmpty());
+    }
+
+    @Test
+    void contentHashesAreOnlyComputedForIncrementalUpdates() {
+        GraphProjection projection = GraphProjection.project(movie(MOVIE), MappingPlan.compile(SCHEMA), null, true, new Neo4jConfig().incrementalUpdate);
+        assertNull(projection.graphHash);
+        for (GraphProjection.ProjectedNode node : projection.nodes) {
+            assertNull(node.hash);
+            assertFalse(node.properties.containsKey(GraphProjection.HASH_PROPERTY));
+            assertFalse(node.properties.containsKey(GraphProjection.GRAPH_HASH_PROPERTY));
+        }
+
+        projection = project(MOVIE);
+        assertEquals(projection.graphHash, projection.getRoot().properties.get(GraphProjection.GRAPH_HASH_PROPERTY));
+        for (GraphProjection.ProjectedNode node : projection.nodes) {
+            assertEquals(node.hash, node.properties.get(GraphProjection.HASH_PROPERTY));
+        }
+    }
+
+    private static GraphProjection project(String content) {
+        return GraphProjection.project(movie(content), MappingPlan.compile(SCHEMA), null, true, true);
+    }
+
+    private static CordraObject movie(String content) {
+        CordraObject co = new CordraObject();
+        co.id = "test/1";
+        co.type = "Movie";
+        co.content = JsonParser.parseString(content);
+        return co;
+    }
+
+    // what the stored graph query returns for the children of a graph written from the projection
+    private static List<Map<String, Object>> storedNodes(GraphProjection projection) {
+        List<Map<String, Object>> nodes = new ArrayList<>();
+        for (int i = 1; i < projection.nodes.size(); i++) {
+            Map<String, Object> node = new HashMap<>();
+            node.put("_id", projection.getNodeId(i));
+            node.put(GraphProjection.HASH_PROPERTY, projection.nodes.get(i).hash);
+            node.put("_type", projection.nodes.get(i).label);
+            nodes.add(node);
+        }
+        return nodes;
+    }
+
+    private static int indexOf(GraphProjection projection, String pointer) {
+        for (int i = 0; i < projection.nodes.size(); i++) {
+            if (projection.nodes.get(i).pointer.equals(pointer)) return i;
+        }
+        throw new AssertionError("No node at " + pointer);
+    }
+}
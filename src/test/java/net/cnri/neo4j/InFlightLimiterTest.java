@@ -0,0 +1,91 @@
+package net.cnri.neo4j;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class InFlightLimiterTest {
+
+    @Test
+    void operationsBeyondTheLimitWaitForAPermit() {
+        InFlightLimiter limiter = new InFlightLimiter(2, 10);
+        List<CompletableFuture<Integer>> operations = new ArrayList<>();
+        List<CompletionStage<Integer>> results = new ArrayList<>();
+        AtomicInteger started = new AtomicInteger();
+        for (int i = 0; i < 5; i++) {
+            CompletableFuture<Integer> operation = new CompletableFuture<>();
+            operations.add(operation);
+            results.add(limiter.submit(() -> {
+                started.incrementAndGet();
+                return operation;
+            }));
+        }
+        assertEquals(2, started.get());
+        assertEquals(3, limiter.getStats().get("pending").getAsInt());
+
+        operations.get(0).complete(0);
+        assertEquals(3, started.get());
+        assertTrue(results.get(0).toCompletableFuture().isDone());
+        assertFalse(results.get(2).toCompletableFuture().isDone());
+
+        for (int i = 1; i < 5; i++) operations.get(i).complete(i);
+        for (int i = 0; i < 5; i++) assertEquals(i, (int) results.get(i).toCompletableFuture().join());
+        assertEquals(0, limiter.getStats().get("inFlight").getAsInt());
+        assertEquals(2, limiter.getStats().get("maxObservedInFlight").getAsInt());
+    }
+
+    @Test
+    void submissionsPastTheQueueAreRejected() {
+        InFlightLimiter limiter = new InFlightLimiter(1, 1);
+        limiter.submit(CompletableFuture::new);
+        limiter.submit(CompletableFuture::new);
+        CompletableFuture<Object> rejected = limiter.submit(CompletableFuture::new).toCompletableFuture();
+        ExecutionException e = assertThrows(ExecutionException.class, rejected::get);
+        assertTrue(e.getCause() instanceof RejectedExecutionException);
+        assertEquals(1, limiter.getStats().get("rejected").getAsLong());
+    }
+
+    @Test
+    void failuresReleaseTheirPermit() {
+        InFlightLimiter limiter = new InFlightLimiter(1, 10);
+        CompletionStage<Object> failed = limiter.submit(() -> {
+            throw new IllegalStateException("boom");
+        });
+        assertTrue(failed.toCompletableFuture().isCompletedExceptionally());
+        assertEquals("ok", limiter.submit(() -> CompletableFuture.completedFuture("ok")).toCompletableFuture().join());
+        assertEquals(0, limiter.getStats().get("inFlight").getAsInt());
+    }
+
+    @Test
+    void longQueueOfSynchronousCompletionsDrainsWithoutNesting() throws Exception {
+        int count = 200000;
+        InFlightLimiter limiter = new InFlightLimiter(1, count);
+        CompletableFuture<Integer> blocker = new CompletableFuture<>();
+        limiter.submit(() -> blocker);
+        AtomicInteger completed = new AtomicInteger();
+        CompletionStage<Integer> last = null;
+        for (int i = 0; i < count; i++) {
+            int value = i;
+            last = limiter.submit(() -> CompletableFuture.completedFuture(value));
+            last.thenRun(completed::incrementAndGet);
+        }
+        blocker.complete(-1);
+        // a start nested per queued operation overflows the stack, and the last one never completes
+        assertEquals(count - 1, (int) last.toCompletableFuture().get(30, TimeUnit.SECONDS));
+        assertEquals(count, completed.get());
+        assertEquals(0, limiter.getStats().get("inFlight").getAsInt());
+        assertEquals(0, limiter.getStats().get("pending").getAsInt());
+    }
+}
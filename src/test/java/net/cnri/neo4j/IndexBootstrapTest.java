@@ -0,0 +1,43 @@
+package net.cnri.neo4j;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class IndexBootstrapTest {
+
+    @Test
+    void requiresUniqueIdsOwnerIndexAndAnIdIndexPerType() {
+        List<IndexBootstrap.RequiredIndex> required = IndexBootstrap.requiredIndexes(List.of("Movie", "CordraObject", "Schema-Type"));
+        List<String> names = new ArrayList<>();
+        for (IndexBootstrap.RequiredIndex index : required) names.add(index.name);
+        assertEquals(List.of("cordra_object_id", "cordra_child_object_id", "cordra_child_object_owner",
+                "cordra_type_Movie_id", "cordra_type_Schema_Type_id"), names);
+        assertTrue(required.get(0).unique);
+        assertTrue(required.get(1).unique);
+        assertFalse(required.get(2).unique);
+        assertEquals(GraphProjection.OWNER_PROPERTY, required.get(2).property);
+    }
+
+    @Test
+    void createStatementsUseTheFourFourSyntaxAndEscapeNames() {
+        assertEquals("CREATE CONSTRAINT `cordra_object_id` IF NOT EXISTS FOR (n:`CordraObject`) REQUIRE n.`_id` IS UNIQUE",
+                new IndexBootstrap.RequiredIndex("CordraObject", "_id", true, "cordra_object_id").createStatement());
+        assertEquals("CREATE INDEX `odd``name` IF NOT EXISTS FOR (n:`Odd``Type`) ON (n.`_id`)",
+                new IndexBootstrap.RequiredIndex("Odd`Type", "_id", false, "odd`name").createStatement());
+    }
+
+    @Test
+    void uniquenessConstraintTypesOfFourFourAndFiveAreRecognized() {
+        assertTrue(IndexBootstrap.isNodeUniqueness("UNIQUENESS"));
+        assertTrue(IndexBootstrap.isNodeUniqueness("NODE_PROPERTY_UNIQUENESS"));
+        assertTrue(IndexBootstrap.isNodeUniqueness("NODE_KEY"));
+        assertFalse(IndexBootstrap.isNodeUniqueness("RELATIONSHIP_UNIQUENESS"));
+        assertFalse(IndexBootstrap.isNodeUniqueness("NODE_PROPERTY_EXISTENCE"));
+    }
+}
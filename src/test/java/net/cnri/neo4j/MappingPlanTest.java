@@ -0,0 +1,99 @@
+package net.cnri.neo4j;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonParser;
+import org.junit.jupiter.api.Test;
+
+import java.util.Collections;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class MappingPlanTest {
+
+    @Test
+    void arrayIndexSegmentsAreNormalized() {
+        MappingPlan plan = MappingPlan.compile(JsonParser.parseString("{\"type\": \"array\", \"items\": {\"type\": \"array\"}}"));
+        assertEquals("", plan.normalize(""));
+        assertEquals("/~/~", plan.normalize("/0/1"));
+        assertEquals("/~/~/2", plan.normalize("/0/1/2"));
+        assertEquals("/01", plan.normalize("/01"));
+        assertEquals("/1x/2", plan.normalize("/1x/2"));
+
+        plan = MappingPlan.compile(JsonParser.parseString("{\"type\": \"object\", \"properties\": {"
+                + "\"a\": {\"type\": \"array\", \"items\": {\"type\": \"object\", \"properties\": {\"b\": {\"type\": \"array\"}}}}}}"));
+        assertEquals("/a/b", plan.normalize("/a/b"));
+        assertEquals("/a/~/b", plan.normalize("/a/0/b"));
+        assertEquals("/a/~/b/~", plan.normalize("/a/12/b/7"));
+        assertEquals("/a//b", plan.normalize("/a//b"));
+    }
+
+    @Test
+    void numericKeysAreNotArrayIndexes() {
+        MappingPlan plan = MappingPlan.compile(JsonParser.parseString("{\"type\": \"object\", \"properties\": {"
+                + "\"codes\": {\"type\": \"object\", \"properties\": {\"2021\": {\"type\": \"string\", \"format\": \"date\"}}},"
+                + "\"years\": {\"type\": \"array\", \"items\": {\"type\": \"integer\"}}}}"));
+        assertEquals("/codes/2021", plan.normalize("/codes/2021"));
+        assertEquals("/years/~", plan.normalize("/years/2021"));
+        assertEquals("date", plan.get("/codes/2021", null).format);
+        assertSame(MappingPlan.PointerMapping.NONE, plan.get("/codes/2022", null));
+        assertEquals("integer", plan.get("/years/2021", null).valueType);
+    }
+
+    @Test
+    void undeclaredKeysDoNotGrowThePlan() {
+        MappingPlan plan = MappingPlan.compile(JsonParser.parseString("{\"type\": \"object\", \"properties\": {"
+                + "\"labels\": {\"type\": \"object\", \"additionalProperties\": {\"type\": \"string\"}}}}"));
+        int size = plan.size();
+        Map<String, JsonElement> pointerToSchemaMap = Collections.singletonMap("/labels/en", JsonParser.parseString("{\"type\": \"string\"}"));
+        assertEquals("string", plan.get("/labels/en", pointerToSchemaMap).valueType);
+        for (int i = 0; i < 100; i++) {
+            plan.get("/labels/key" + i, null);
+        }
+        assertEquals(size, plan.size());
+        // looked up again rather than remembered
+        assertSame(MappingPlan.PointerMapping.NONE, plan.get("/labels/en", null));
+    }
+
+    @Test
+    void compiledEntriesAreSharedAcrossArrayIndexes() {
+        MappingPlan plan = MappingPlan.compile(JsonParser.parseString("{\"type\": \"object\", \"properties\": {"
+                + "\"pets\": {\"type\": \"array\", \"cordra\": {\"ext\": {\"neo4j\": {\"relationshipType\": \"HAS_PET\"}}},"
+                + "  \"items\": {\"type\": \"object\", \"cordra\": {\"ext\": {\"neo4j\": {\"nodeLabel\": \"Pet\"}}},"
+                + "    \"properties\": {\"born\": {\"type\": \"string\", \"format\": \"date\"}}}}}}"));
+
+        assertEquals("HAS_PET", plan.get("/pets", null).relationshipType);
+        assertEquals("Pet", plan.get("/pets/0", null).label);
+        assertSame(plan.get("/pets/0/born", null), plan.get("/pets/7/born", null));
+        assertEquals("date", plan.get("/pets/7/born", null).format);
+        assertEquals("HAS_PET", plan.get("/pets", null).getRelationshipType("pets"));
+        assertEquals("born", plan.get("/pets/7/born", null).getRelationshipType("born"));
+    }
+
+    @Test
+    void unresolvedPointersFallBackToTheObjectsSchemaMap() {
+        MappingPlan plan = MappingPlan.compile(JsonParser.parseString("{\"type\": \"object\", \"properties\": {"
+                + "\"owner\": {\"$ref\": \"#/definitions/person\"}}}"));
+        Map<String, JsonElement> pointerToSchemaMap = Collections.singletonMap("/owner",
+                JsonParser.parseString("{\"type\": \"string\", \"cordra\": {\"type\": {\"handleReference\": {\"types\": [\"Person\"]}}}}"));
+
+        assertTrue(plan.get("/owner", pointerToSchemaMap).handleReference);
+        // the schema is unconditional, so the lookup is kept for objects without a schema map entry
+        assertTrue(plan.get("/owner", null).handleReference);
+    }
+
+    @Test
+    void lookupsAreNotSharedWhenTheSchemaIsConditional() {
+        MappingPlan plan = MappingPlan.compile(JsonParser.parseString("{\"type\": \"object\", \"properties\": {"
+                + "\"owner\": {\"oneOf\": [{\"type\": \"string\"}, {\"type\": \"object\"}]}}}"));
+        Map<String, JsonElement> pointerToSchemaMap = Collections.singletonMap("/owner",
+                JsonParser.parseString("{\"type\": \"string\", \"cordra\": {\"type\": {\"handleReference\": {}}}}"));
+
+        assertTrue(plan.get("/owner", pointerToSchemaMap).handleReference);
+        assertFalse(plan.get("/owner", null).handleReference);
+        assertSame(MappingPlan.PointerMapping.NONE, plan.get("/owner", Collections.emptyMap()));
+    }
+}
@@ -0,0 +1,148 @@
+package net.cnri.neo4j;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import net.cnri.cordra.api.BadRequestCordraException;
+import org.junit.jupiter.api.Test;
+import org.neo4j.driver.Query;
+import org.neo4j.driver.Result;
+import org.neo4j.driver.Session;
+import org.neo4j.driver.TransactionConfig;
+import org.neo4j.driver.exceptions.ClientException;
+import org.neo4j.driver.exceptions.ServiceUnavailableException;
+import org.neo4j.driver.summary.QueryType;
+import org.neo4j.driver.summary.ResultSummary;
+
+import java.lang.reflect.Proxy;
+import java.time.LocalDate;
+import java.time.OffsetDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class NamedQueriesTest {
+
+    private static final String QUERIES = "{"
+            + "\"coActors\": {\"query\": \"MATCH (p:Person {name: $name})-[:ACTED_IN]->(m)<-[:ACTED_IN]-(c) RETURN c.name\", \"parameters\": {\"name\": \"string\"}},"
+            + "\"releasedIn\": {\"query\": \"MATCH (m:Movie) WHERE m.released IN $years AND m.rating > $`min rating` RETURN m\","
+            + "  \"parameters\": {\"years\": \"integer[]\", \"min rating\": \"float\"}},"
+            + "\"since\": {\"query\": \"MATCH (m:Movie) WHERE m.date >= $date AND m.updated < $at AND m.seen = $seen RETURN m\","
+            + "  \"parameters\": {\"date\": \"date\", \"at\": \"dateTime\", \"seen\": \"boolean\"}}"
+            + "}";
+
+    @Test
+    void valuesAreConvertedToTheDeclaredTypes() throws Exception {
+        NamedQueries queries = NamedQueries.fromJson(QUERIES);
+        assertEquals(Map.of("name", "Tom Hanks"), queries.get("coActors").toParameters(json("{\"name\": \"Tom Hanks\"}")));
+        assertEquals(Map.of("years", List.of(1999L, 2003L), "min rating", 7.5),
+                queries.get("releasedIn").toParameters(json("{\"years\": [1999, 2003], \"min rating\": 7.5}")));
+        assertEquals(Map.of("date", LocalDate.of(1999, 3, 31), "at", OffsetDateTime.parse("2020-01-01T00:00:00Z"), "seen", true),
+                queries.get("since").toParameters(json("{\"date\": \"1999-03-31\", \"at\": \"2020-01-01T00:00:00Z\", \"seen\": true}")));
+    }
+
+    @Test
+    void missingExtraAndMistypedValuesAreRejected() throws Exception {
+        NamedQueries.NamedQuery coActors = NamedQueries.fromJson(QUERIES).get("coActors");
+        NamedQueries.NamedQuery releasedIn = NamedQueries.fromJson(QUERIES).get("releasedIn");
+        NamedQueries.NamedQuery since = NamedQueries.fromJson(QUERIES).get("since");
+        assertThrows(BadRequestCordraException.class, () -> coActors.toParameters(null));
+        assertThrows(BadRequestCordraException.class, () -> coActors.toParameters(json("{\"name\": null}")));
+        assertThrows(BadRequestCordraException.class, () -> coActors.toParameters(json("{\"name\": \"Tom\", \"age\": 60}")));
+        assertThrows(BadRequestCordraException.class, () -> coActors.toParameters(json("{\"name\": 42}")));
+        assertThrows(BadRequestCordraException.class, () -> releasedIn.toParameters(json("{\"years\": 1999, \"min rating\": 7}")));
+        assertThrows(BadRequestCordraException.class, () -> releasedIn.toParameters(json("{\"years\": [1999.5], \"min rating\": 7}")));
+        assertThrows(BadRequestCordraException.class, () -> since.toParameters(json("{\"date\": \"yesterday\", \"at\": \"2020-01-01T00:00:00Z\", \"seen\": true}")));
+        assertThrows(BadRequestCordraException.class, () -> since.toParameters(json("{\"date\": \"1999-03-31\", \"at\": \"2020-01-01T00:00:00Z\", \"seen\": \"yes\"}")));
+    }
+
+    @Test
+    void definitionsAreCheckedBeforeNeo4jIsAsked() throws Exception {
+        NamedQueries queries = NamedQueries.fromJson("{"
+                + "\"ok\": {\"query\": \"MATCH (m:Movie {title: $title}) RETURN m\", \"parameters\": {\"title\": \"string\"}},"
+                + "\"blank\": {\"query\": \" \"},"
+                + "\"badType\": {\"query\": \"RETURN $x\", \"parameters\": {\"x\": \"duration\"}},"
+                + "\"undeclared\": {\"query\": \"MATCH (m:Movie) WHERE m.title = $title AND m.year = $`year` RETURN m\"}"
+                + "}");
+        assertNull(queries.get("ok").checkDefinition());
+        assertEquals("Missing query", queries.get("blank").checkDefinition());
+        assertEquals("Unknown type duration of parameter x", queries.get("badType").checkDefinition());
+        assertEquals("Undeclared parameters [title, year]", queries.get("undeclared").checkDefinition());
+    }
+
+    @Test
+    void dollarsInLiteralsAndCommentsAreNotParameters() throws Exception {
+        NamedQueries queries = NamedQueries.fromJson("{"
+                + "\"price\": {\"query\": \"MATCH (m:Movie) WHERE m.price = '$5' OR m.note = \\\"it's $x\\\" RETURN m // not $y\"},"
+                + "\"escaped\": {\"query\": \"MATCH (m:`$Movie`) WHERE m.title = 'a \\\\' $z' /* $w */ RETURN m\"},"
+                + "\"mixed\": {\"query\": \"MATCH (m:Movie) WHERE m.price = '$5' AND m.year = $year RETURN m\"}"
+                + "}");
+        assertNull(queries.get("price").checkDefinition());
+        assertNull(queries.get("escaped").checkDefinition());
+        assertEquals("Undeclared parameters [year]", queries.get("mixed").checkDefinition());
+    }
+
+    @Test
+    void explainDecidesWhetherAQueryIsValid() throws Exception {
+        NamedQueries queries = NamedQueries.fromJson("{"
+                + "\"reads\": {\"query\": \"MATCH (m:Movie) RETURN m\"},"
+                + "\"writes\": {\"query\": \"MATCH (m:Movie) SET m.seen = true\"},"
+                + "\"broken\": {\"query\": \"MATCH (m:Movie RETURN m\"}"
+                + "}");
+        List<String> explained = new ArrayList<>();
+        queries.validate(session(explained, query -> {
+            if (query.contains("SET")) return QueryType.READ_WRITE;
+            if (query.contains("Movie RETURN")) throw new ClientException("Invalid input");
+            return QueryType.READ_ONLY;
+        }), 1000);
+
+        assertEquals(List.of("EXPLAIN MATCH (m:Movie) RETURN m", "EXPLAIN MATCH (m:Movie) SET m.seen = true", "EXPLAIN MATCH (m:Movie RETURN m"), explained);
+        queries.get("reads").checkValid();
+        assertThrows(BadRequestCordraException.class, () -> queries.get("writes").checkValid());
+        assertThrows(BadRequestCordraException.class, () -> queries.get("broken").checkValid());
+        assertEquals("Invalid input", queries.toJson().getAsJsonObject("broken").get("error").getAsString());
+    }
+
+    @Test
+    void checkingStopsWhenNeo4jIsUnreachable() throws Exception {
+        NamedQueries queries = NamedQueries.fromJson(QUERIES);
+        List<String> explained = new ArrayList<>();
+        queries.validate(session(explained, query -> {
+            throw new ServiceUnavailableException("Connection refused");
+        }), 1000);
+
+        assertEquals(1, explained.size());
+        assertFalse(queries.get("coActors").isValidated());
+        assertFalse(queries.get("releasedIn").isValidated());
+        assertThrows(BadRequestCordraException.class, () -> queries.get("coActors").checkValid());
+
+        assertTrue(queries.get("coActors").validate(session(explained, query -> QueryType.READ_ONLY), 1000));
+        queries.get("coActors").checkValid();
+    }
+
+    private static JsonObject json(String json) {
+        return JsonParser.parseString(json).getAsJsonObject();
+    }
+
+    // a session that records the queries run outside a transaction function and answers with the query type
+    private static Session session(List<String> explained, Function<String, QueryType> queryTypes) {
+        return (Session) Proxy.newProxyInstance(Session.class.getClassLoader(), new Class<?>[] { Session.class }, (proxy, method, args) -> {
+            if (!method.getName().equals("run") || args.length != 2 || !(args[0] instanceof Query) || !(args[1] instanceof TransactionConfig)) {
+                throw new UnsupportedOperationException(method.getName());
+            }
+            String text = ((Query) args[0]).text();
+            explained.add(text);
+            QueryType queryType = queryTypes.apply(text);
+            ResultSummary summary = (ResultSummary) Proxy.newProxyInstance(ResultSummary.class.getClassLoader(), new Class<?>[] { ResultSummary.class },
+                    (summaryProxy, summaryMethod, summaryArgs) -> queryType);
+            return Proxy.newProxyInstance(Result.class.getClassLoader(), new Class<?>[] { Result.class },
+                    (resultProxy, resultMethod, resultArgs) -> summary);
+        });
+    }
+}
@@ -0,0 +1,71 @@
+package net.cnri.neo4j;
+
+import com.google.gson.JsonObject;
+import net.cnri.cordra.util.GsonUtility;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class ReindexJobTest {
+
+    private Path directory;
+
+    @BeforeEach
+    void createDirectory() throws IOException {
+        directory = Files.createTempDirectory("reindex-jobs");
+    }
+
+    @AfterEach
+    void deleteDirectory() throws IOException {
+        try (Stream<Path> paths = Files.walk(directory)) {
+            for (Path path : (Iterable<Path>) paths.sorted(Comparator.reverseOrder())::iterator) {
+                Files.delete(path);
+            }
+        }
+    }
+
+    @Test
+    void segmentsStartAfterTheCheckpoint() {
+        assertEquals("type:Movie", ReindexJob.segmentQuery("type:Movie", null));
+        assertEquals("(type:Movie) AND id:{\"test/42\" TO *]", ReindexJob.segmentQuery("type:Movie", "test/42"));
+        assertEquals("(*:*) AND id:{\"a\\\"b\\\\c\" TO *]", ReindexJob.segmentQuery("*:*", "a\"b\\c"));
+    }
+
+    @Test
+    void interruptedJobsArePausedWhenTheyCannotResume() throws Exception {
+        ReindexJob.Checkpoint running = checkpoint("running", ReindexJob.State.RUNNING);
+        ReindexJob.Checkpoint completed = checkpoint("completed", ReindexJob.State.COMPLETED);
+        Files.writeString(directory.resolve("running.json"), GsonUtility.getGson().toJson(running));
+        Files.writeString(directory.resolve("completed.json"), GsonUtility.getGson().toJson(completed));
+
+        ReindexJobs jobs = new ReindexJobs(null, null, directory);
+        jobs.resumeInterrupted("indexes are missing");
+        jobs.shutdown();
+
+        JsonObject status = jobs.get("running").toJson();
+        assertEquals("PAUSED", status.get("state").getAsString());
+        assertEquals("indexes are missing", status.get("error").getAsString());
+        assertEquals("test/9", status.get("lastId").getAsString());
+        assertEquals("COMPLETED", jobs.get("completed").getState().name());
+        ReindexJob.Checkpoint saved = GsonUtility.getGson().fromJson(Files.readString(directory.resolve("running.json")), ReindexJob.Checkpoint.class);
+        assertEquals(ReindexJob.State.PAUSED, saved.state);
+    }
+
+    private static ReindexJob.Checkpoint checkpoint(String jobId, ReindexJob.State state) {
+        ReindexJob.Checkpoint checkpoint = new ReindexJob.Checkpoint();
+        checkpoint.jobId = jobId;
+        checkpoint.query = "type:Movie";
+        checkpoint.segmentSize = 10;
+        checkpoint.lastId = "test/9";
+        checkpoint.state = state;
+        return checkpoint;
+    }
+}
@@ -0,0 +1,109 @@
+package net.cnri.neo4j;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonParser;
+import org.junit.jupiter.api.Test;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class SearchCacheTest {
+
+    private static final String MOVIES = "MATCH (m:Movie) RETURN m.title AS title";
+    private static final String PEOPLE = "MATCH (p:`Person`) RETURN p.name AS name";
+    private static final JsonArray RECORDS = JsonParser.parseString("[{\"title\": \"The Matrix\"}]").getAsJsonArray();
+
+    @Test
+    void labeledQueriesDependOnTheirLabels() {
+        assertEquals(List.of("Movie"), SearchCache.dependencies(MOVIES));
+        assertEquals(List.of("Person"), SearchCache.dependencies(PEOPLE));
+        List<String> labels = SearchCache.dependencies("MATCH (p:Person)-[:ACTED_IN]->(m:Movie:Film) RETURN p, m");
+        assertTrue(labels.containsAll(List.of("Person", "Movie", "Film")));
+        assertFalse(labels.contains(null));
+    }
+
+    @Test
+    void openEndedQueriesDependOnEveryWrite() {
+        assertTrue(SearchCache.dependencies("MATCH (n) RETURN n").contains(null));
+        assertTrue(SearchCache.dependencies("MATCH (m:Movie)--(other) RETURN other").contains(null));
+        assertTrue(SearchCache.dependencies("MATCH (p:Person)-[:KNOWS*1..3]->(q:Person) RETURN q").contains(null));
+        assertTrue(SearchCache.dependencies("CALL db.labels()").contains(null));
+        assertTrue(SearchCache.dependencies("RETURN 1").contains(null));
+    }
+
+    @Test
+    void writesOnlyInvalidateQueriesOnTheirLabels() {
+        SearchCache cache = new SearchCache(10, 1 << 20, 60000);
+        put(cache, MOVIES);
+        put(cache, PEOPLE);
+        String everything = "MATCH (n) RETURN count(n) AS count";
+        put(cache, everything);
+
+        cache.invalidate("Person", List.of("CordraObject", "Person"));
+        assertNotNull(get(cache, MOVIES));
+        assertNull(get(cache, PEOPLE));
+        assertNull(get(cache, everything));
+        assertEquals(1, cache.getStats().get("hits").getAsInt());
+        assertEquals(2, cache.getStats().get("staleMisses").getAsInt());
+    }
+
+    @Test
+    void aWriteWhileTheQueryRunsKeepsItsResultOutOfTheCache() {
+        SearchCache cache = new SearchCache(10, 1 << 20, 60000);
+        SearchCache.Snapshot snapshot = cache.snapshot(MOVIES, Collections.emptyMap(), 0, 10);
+        cache.invalidate("Movie", List.of("Movie"));
+        cache.put(snapshot, RECORDS, false);
+        assertNull(get(cache, MOVIES));
+    }
+
+    @Test
+    void removalsOfAnUnseenTypeInvalidateEverything() {
+        SearchCache cache = new SearchCache(10, 1 << 20, 60000);
+        put(cache, MOVIES);
+        cache.invalidateType("Person");
+        assertNull(get(cache, MOVIES));
+
+        put(cache, MOVIES);
+        cache.invalidate("Person", List.of("Person"));
+        cache.invalidateType("Person");
+        assertNotNull(get(cache, MOVIES));
+    }
+
+    @Test
+    void entriesAreCopiedAndKeyedByParametersAndPage() {
+        SearchCache cache = new SearchCache(10, 1 << 20, 60000);
+        put(cache, MOVIES);
+        SearchCache.CachedPage page = get(cache, MOVIES);
+        page.records.remove(0);
+        assertEquals(RECORDS, get(cache, MOVIES).records);
+        assertNull(cache.get(cache.snapshot(MOVIES, Collections.emptyMap(), 10, 10)));
+        assertNull(cache.get(cache.snapshot(MOVIES, Map.of("year", 1999L), 0, 10)));
+    }
+
+    @Test
+    void theLeastRecentlyUsedEntryIsEvicted() {
+        SearchCache cache = new SearchCache(2, 1 << 20, 60000);
+        put(cache, MOVIES);
+        put(cache, PEOPLE);
+        get(cache, MOVIES);
+        put(cache, "MATCH (s:Studio) RETURN s");
+        assertNotNull(get(cache, MOVIES));
+        assertNull(get(cache, PEOPLE));
+        assertEquals(1, cache.getStats().get("evictions").getAsInt());
+    }
+
+    private static void put(SearchCache cache, String query) {
+        cache.put(cache.snapshot(query, Collections.emptyMap(), 0, 10), RECORDS, false);
+    }
+
+    private static SearchCache.CachedPage get(SearchCache cache, String query) {
+        return cache.get(cache.snapshot(query, Collections.emptyMap(), 0, 10));
+    }
+}
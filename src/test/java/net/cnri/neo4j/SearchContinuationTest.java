@@ -0,0 +1,49 @@
+package net.cnri.neo4j;
+
+import net.cnri.cordra.api.BadRequestCordraException;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class SearchContinuationTest {
+
+    private static final String QUERY = "MATCH (m:Movie) RETURN m.title ORDER BY m.title";
+
+    @Test
+    void tokensRoundTripForTheirQuery() throws Exception {
+        assertEquals(0, SearchContinuation.decode(SearchContinuation.encode(0, QUERY), QUERY));
+        assertEquals(1234567, SearchContinuation.decode(SearchContinuation.encode(1234567, QUERY), QUERY));
+    }
+
+    @Test
+    void missingTokenStartsAtTheBeginning() throws Exception {
+        assertEquals(0, SearchContinuation.decode(null, QUERY));
+        assertEquals(0, SearchContinuation.decode("", QUERY));
+    }
+
+    @Test
+    void tokensAreRejectedForOtherQueriesAndWhenMalformed() {
+        String token = SearchContinuation.encode(100, QUERY);
+        assertThrows(BadRequestCordraException.class, () -> SearchContinuation.decode(token, QUERY + " DESC"));
+        assertThrows(BadRequestCordraException.class, () -> SearchContinuation.decode("not base64!", QUERY));
+        assertThrows(BadRequestCordraException.class, () -> SearchContinuation.decode(SearchContinuation.encode(-1, QUERY), QUERY));
+    }
+
+    @Test
+    void pagedQueryWrapsTheQueryWithoutItsSemicolons() {
+        assertEquals("CALL {\n" + QUERY + "\n}\nRETURN `m.title` SKIP $_pageSkip LIMIT $_pageLimit",
+                SearchContinuation.pagedQuery("  " + QUERY + " ; ;\n", List.of("m.title")));
+    }
+
+    @Test
+    void pagedQueryKeepsTheColumnOrder() {
+        String query = "MATCH (m:Movie) RETURN m.title AS title, m.released AS `the year`, m.tagline AS `odd``name` ORDER BY title";
+        assertEquals("CALL {\n" + query + "\n}\nRETURN `title`, `the year`, `odd``name` SKIP $_pageSkip LIMIT $_pageLimit",
+                SearchContinuation.pagedQuery(query, List.of("title", "the year", "odd`name")));
+        assertEquals("CALL {\n" + query + "\n}\nRETURN * SKIP $_pageSkip LIMIT $_pageLimit",
+                SearchContinuation.pagedQuery(query, List.of()));
+    }
+}
@@ -0,0 +1,69 @@
+package net.cnri.neo4j;
+
+import com.google.gson.JsonParser;
+import com.google.gson.JsonPrimitive;
+import org.junit.jupiter.api.Test;
+
+import java.time.LocalDate;
+import java.time.LocalTime;
+import java.time.OffsetDateTime;
+import java.time.OffsetTime;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class ValueConverterTest {
+
+    private static final MappingPlan.PointerMapping NONE = MappingPlan.PointerMapping.NONE;
+
+    @Test
+    void integralNumbersBecomeLongsAndOthersDoubles() {
+        assertEquals(1999L, convert("1999", NONE));
+        assertEquals(-5L, convert("-5", NONE));
+        assertEquals(8.7, convert("8.7", NONE));
+        assertEquals(1e300, convert("1e300", NONE));
+        assertEquals(6.3e19, convert("63000000000000000000", NONE));
+        assertEquals(2.0, convert("2.0", NONE));
+        assertEquals(2L, convert("2.0", mapping("integer", null)));
+        assertEquals(1.0e20, convert("1e20", mapping("integer", null)));
+    }
+
+    @Test
+    void stringsWithATemporalFormatAreParsed() {
+        assertEquals(LocalDate.of(1999, 3, 31), convert("\"1999-03-31\"", mapping("string", "date")));
+        assertEquals(OffsetDateTime.parse("1999-03-31T10:15:30+01:00"), convert("\"1999-03-31T10:15:30+01:00\"", mapping("string", "date-time")));
+        assertEquals(LocalTime.of(10, 15), convert("\"10:15\"", mapping("string", "time")));
+        assertEquals(OffsetTime.parse("10:15:30Z"), convert("\"10:15:30Z\"", mapping("string", "time")));
+        assertEquals(OffsetTime.parse("10:15:30-05:00"), convert("\"10:15:30-05:00\"", mapping("string", "time")));
+        assertEquals("not a date", convert("\"not a date\"", mapping("string", "date")));
+        assertEquals("1999-03-31", convert("\"1999-03-31\"", mapping("string", "email")));
+        assertEquals("1999-03-31", convert("\"1999-03-31\"", NONE));
+        assertEquals(true, convert("true", NONE));
+    }
+
+    @Test
+    void arraysBecomeHomogeneousLists() {
+        assertEquals(List.of(1L, 2L, 3L), convertArray("[1, 2, 3]", NONE));
+        assertEquals(List.of(1.0, 2.5), convertArray("[1, 2.5]", NONE));
+        assertEquals(List.of(true, false), convertArray("[true, false]", NONE));
+        assertEquals(List.of("a", "b"), convertArray("[\"a\", {\"skipped\": 1}, \"b\"]", NONE));
+        assertEquals(List.of("a", "1", "true"), convertArray("[\"a\", 1, true]", NONE));
+        assertEquals(List.of(LocalDate.of(2020, 1, 1), LocalDate.of(2021, 1, 1)),
+                convertArray("[\"2020-01-01\", \"2021-01-01\"]", mapping("string", "date")));
+        assertEquals(List.of("2020-01-01", "soon"), convertArray("[\"2020-01-01\", \"soon\"]", mapping("string", "date")));
+        assertEquals(List.of(), convertArray("[]", NONE));
+    }
+
+    private static MappingPlan.PointerMapping mapping(String valueType, String format) {
+        return new MappingPlan.PointerMapping(null, null, false, valueType, format);
+    }
+
+    private static Object convert(String json, MappingPlan.PointerMapping mapping) {
+        JsonPrimitive primitive = JsonParser.parseString(json).getAsJsonPrimitive();
+        return ValueConverter.toValue(primitive, mapping).asObject();
+    }
+
+    private static Object convertArray(String json, MappingPlan.PointerMapping mapping) {
+        return ValueConverter.toValue(JsonParser.parseString(json).getAsJsonArray(), mapping).asObject();
+    }
+}
@@ -0,0 +1,154 @@
+package net.cnri.neo4j;
+
+import com.google.gson.JsonElement;
+import net.cnri.cordra.api.CordraObject;
+import net.cnri.neo4j.WriteBehindQueue.Operation;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class WriteBehindQueueTest {
+
+    @Test
+    void deleteWinsAndCreateIsKeptOnlyWhenFollowedByCreate() {
+        assertEquals(Operation.CREATE, WriteBehindQueue.coalesce(Operation.CREATE, Operation.CREATE));
+        assertEquals(Operation.UPDATE, WriteBehindQueue.coalesce(Operation.CREATE, Operation.UPDATE));
+        assertEquals(Operation.UPDATE, WriteBehindQueue.coalesce(Operation.UPDATE, Operation.CREATE));
+        assertEquals(Operation.UPDATE, WriteBehindQueue.coalesce(Operation.DELETE, Operation.UPDATE));
+        assertEquals(Operation.UPDATE, WriteBehindQueue.coalesce(Operation.DELETE, Operation.CREATE));
+        assertEquals(Operation.DELETE, WriteBehindQueue.coalesce(Operation.CREATE, Operation.DELETE));
+        assertEquals(Operation.DELETE, WriteBehindQueue.coalesce(Operation.UPDATE, Operation.DELETE));
+    }
+
+    @Test
+    void writesForAQueuedIdAreCoalescedAndAppliedAfterTheOneInFlight() throws Exception {
+        RecordingWriter writer = new RecordingWriter();
+        WriteBehindQueue queue = new WriteBehindQueue(writer, 10, 1, 0);
+
+        assertTrue(queue.submit(Operation.CREATE, object("a"), Collections.emptyMap()));
+        assertTrue(writer.started.await(5, TimeUnit.SECONDS));
+        assertTrue(queue.submit(Operation.UPDATE, object("a"), Collections.emptyMap()));
+        assertTrue(queue.submit(Operation.DELETE, object("a"), Collections.emptyMap()));
+        assertTrue(queue.submit(Operation.CREATE, object("b"), Collections.emptyMap()));
+        assertTrue(queue.submit(Operation.UPDATE, object("b"), Collections.emptyMap()));
+        assertEquals(1, queue.getStats().get("inFlight").getAsInt());
+        assertEquals(2, queue.getStats().get("depth").getAsInt());
+        assertEquals(2, queue.getStats().get("coalesced").getAsInt());
+
+        writer.release.countDown();
+        queue.shutdown(5000);
+        assertEquals(List.of("CREATE a", "DELETE a", "UPDATE b"), writer.writes);
+        assertEquals(3, queue.getStats().get("completed").getAsInt());
+    }
+
+    @Test
+    void aFullQueueDropsNewIdsButStillCoalescesQueuedOnes() throws Exception {
+        RecordingWriter writer = new RecordingWriter();
+        WriteBehindQueue queue = new WriteBehindQueue(writer, 1, 1, 10);
+
+        assertTrue(queue.submit(Operation.CREATE, object("a"), Collections.emptyMap()));
+        assertTrue(writer.started.await(5, TimeUnit.SECONDS));
+        assertTrue(queue.submit(Operation.CREATE, object("b"), Collections.emptyMap()));
+        assertFalse(queue.submit(Operation.CREATE, object("c"), Collections.emptyMap()));
+        assertTrue(queue.submit(Operation.UPDATE, object("b"), Collections.emptyMap()));
+        assertEquals(1, queue.getStats().get("dropped").getAsInt());
+
+        writer.release.countDown();
+        queue.shutdown(5000);
+        assertEquals(List.of("CREATE a", "UPDATE b"), writer.writes);
+    }
+
+    @Test
+    void failedWritesAreCountedAndDoNotStopTheWorker() throws Exception {
+        List<String> writes = Collections.synchronizedList(new ArrayList<>());
+        WriteBehindQueue queue = new WriteBehindQueue((operation, co, pointerToSchemaMap) -> {
+            writes.add(co.id);
+            if (co.id.equals("a")) throw new IllegalStateException("expected");
+        }, 10, 1, 0);
+
+        queue.submit(Operation.CREATE, object("a"), Collections.emptyMap());
+        queue.submit(Operation.CREATE, object("b"), Collections.emptyMap());
+        queue.shutdown(5000);
+        assertEquals(List.of("a", "b"), writes);
+        assertEquals(1, queue.getStats().get("failed").getAsInt());
+        assertEquals(1, queue.getStats().get("completed").getAsInt());
+    }
+
+    @Test
+    void writesRacingAReloadAreAppliedAfterTheOldQueuesWrites() throws Exception {
+        RecordingWriter writer = new RecordingWriter();
+        WriteBehindQueue oldQueue = new WriteBehindQueue(writer, 10, 1, 0);
+        assertTrue(oldQueue.submit(Operation.CREATE, object("a"), Collections.emptyMap()));
+        assertTrue(writer.started.await(5, TimeUnit.SECONDS));
+        assertTrue(oldQueue.submit(Operation.UPDATE, object("b"), Collections.emptyMap()));
+
+        WriteBehindQueue newQueue = new WriteBehindQueue((operation, co, pointerToSchemaMap) -> writer.writes.add(operation + " " + co.id), 10, 1, 0);
+        oldQueue.retire(newQueue, 5000);
+        // a hook still holding the old queue
+        assertTrue(oldQueue.submit(Operation.DELETE, object("a"), Collections.emptyMap()));
+        assertTrue(newQueue.submit(Operation.UPDATE, object("c"), Collections.emptyMap()));
+        assertEquals(0, oldQueue.getStats().get("dropped").getAsInt());
+
+        // b and c are written at once, but the delete of a waits for the old queue's create
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (newQueue.getStats().get("completed").getAsInt() < 2 && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(List.of("CREATE a", "UPDATE b", "UPDATE c"), writer.writes);
+        assertEquals(1, newQueue.getStats().get("depth").getAsInt());
+
+        writer.release.countDown();
+        newQueue.shutdown(5000);
+        assertEquals(List.of("CREATE a", "UPDATE b", "UPDATE c", "DELETE a"), writer.writes);
+    }
+
+    @Test
+    void withoutASuccessorTheQueueDrainsAndThenWritesDirectly() throws Exception {
+        RecordingWriter writer = new RecordingWriter();
+        WriteBehindQueue queue = new WriteBehindQueue(writer, 10, 1, 0);
+        assertTrue(queue.submit(Operation.CREATE, object("a"), Collections.emptyMap()));
+        assertTrue(writer.started.await(5, TimeUnit.SECONDS));
+        assertTrue(queue.submit(Operation.UPDATE, object("a"), Collections.emptyMap()));
+
+        CompletableFuture<Void> retired = CompletableFuture.runAsync(() -> queue.retire(null, 5000));
+        Thread.sleep(100);
+        assertFalse(retired.isDone());
+        // still queued behind the pending update while the queue drains
+        assertTrue(queue.submit(Operation.DELETE, object("a"), Collections.emptyMap()));
+        writer.release.countDown();
+        retired.get(5, TimeUnit.SECONDS);
+
+        assertTrue(queue.submit(Operation.CREATE, object("b"), Collections.emptyMap()));
+        assertEquals(List.of("CREATE a", "DELETE a", "CREATE b"), writer.writes);
+    }
+
+    private static CordraObject object(String id) {
+        CordraObject co = new CordraObject();
+        co.id = id;
+        return co;
+    }
+
+    // holds the first write until released, so that later submissions find it in flight
+    private static class RecordingWriter implements WriteBehindQueue.Writer {
+        final List<String> writes = Collections.synchronizedList(new ArrayList<>());
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+
+        @Override
+        public void write(Operation operation, CordraObject co, Map<String, JsonElement> pointerToSchemaMap) throws Exception {
+            writes.add(operation + " " + co.id);
+            started.countDown();
+            release.await();
+        }
+    }
+}
@@ -0,0 +1,87 @@
+package net.cnri.neo4j;
+
+import com.google.gson.JsonObject;
+import org.junit.jupiter.api.Test;
+import org.neo4j.driver.exceptions.ClientException;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class WriteSchedulerTest {
+
+    @Test
+    void aFailedBulkWriteHalvesTheLimit() {
+        WriteScheduler scheduler = new WriteScheduler(config(60000));
+        for (int i = 0; i < 10; i++) {
+            scheduler.bulk(() -> { });
+        }
+        int grown = scheduler.getStats().get("bulkConcurrencyLimit").getAsInt();
+        assertTrue(grown > 2);
+
+        assertThrows(IllegalStateException.class, () -> scheduler.bulk(() -> {
+            throw new IllegalStateException("Neo4j is overloaded");
+        }));
+        JsonObject stats = scheduler.getStats();
+        assertEquals(1, stats.get("bulkFailures").getAsInt());
+        assertEquals(grown / 2, stats.get("bulkConcurrencyLimit").getAsInt());
+    }
+
+    @Test
+    void clientErrorsAreNotCongestion() {
+        WriteScheduler scheduler = new WriteScheduler(config(60000));
+        assertThrows(ClientException.class, () -> scheduler.bulk(() -> {
+            throw new ClientException("Node already exists");
+        }));
+        scheduler.endLive(scheduler.beginLive(), new CompletionException(new ClientException("Node already exists")));
+        JsonObject stats = scheduler.getStats();
+        assertEquals(0, stats.get("bulkFailures").getAsInt());
+        assertEquals(0, stats.get("liveFailures").getAsInt());
+        assertEquals(0, stats.get("decreases").getAsInt());
+    }
+
+    @Test
+    void aFailedLiveWriteSlowsBulkWrites() {
+        WriteScheduler scheduler = new WriteScheduler(config(60000));
+        scheduler.endLive(scheduler.beginLive(), new CompletionException(new IllegalStateException("timed out")));
+        JsonObject stats = scheduler.getStats();
+        assertEquals(1, stats.get("liveFailures").getAsInt());
+        assertEquals(1, stats.get("decreases").getAsInt());
+        // the limit is already at its minimum, so the next bulk writes are paused instead
+        assertTrue(stats.get("bulkDelayMs").getAsLong() > 0);
+    }
+
+    @Test
+    void bulkWritesWaitForLiveWritesInFlight() throws Exception {
+        WriteScheduler scheduler = new WriteScheduler(config(60000));
+        long liveStart = scheduler.beginLive();
+        CompletableFuture<Void> bulk = CompletableFuture.runAsync(() -> scheduler.bulk(() -> { }));
+        Thread.sleep(200);
+        assertFalse(bulk.isDone());
+
+        scheduler.endLive(liveStart, null);
+        bulk.get(5, TimeUnit.SECONDS);
+        assertEquals(1, scheduler.getStats().get("bulkYieldsToLive").getAsInt());
+    }
+
+    @Test
+    void bulkWritesOnlyYieldForSoLong() throws Exception {
+        WriteScheduler scheduler = new WriteScheduler(config(50));
+        scheduler.beginLive();
+        CompletableFuture.runAsync(() -> scheduler.bulk(() -> { })).get(5, TimeUnit.SECONDS);
+        assertEquals(1, scheduler.getStats().get("bulkYieldsToLive").getAsInt());
+    }
+
+    private static Neo4jConfig config(long yieldToLiveMs) {
+        Neo4jConfig config = new Neo4jConfig();
+        config.bulkMinConcurrency = 1;
+        config.bulkMaxConcurrency = 8;
+        config.bulkYieldToLiveMs = yieldToLiveMs;
+        return config;
+    }
+}
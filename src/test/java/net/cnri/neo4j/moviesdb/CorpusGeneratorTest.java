@@ -0,0 +1,93 @@
+package net.cnri.neo4j.moviesdb;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import net.cnri.cordra.api.CordraObject;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class CorpusGeneratorTest {
+
+    @Test
+    void theSameSeedGivesTheSameCorpus() {
+        assertEquals(contents(generator(42)), contents(generator(42)));
+        assertNotEquals(contents(generator(42)), contents(generator(43)));
+    }
+
+    @Test
+    void moviesComeFirstAndReferencesPointAtEarlierObjects() {
+        CorpusGenerator generator = generator(7);
+        List<CordraObject> objects = objects(generator);
+        assertEquals(generator.size(), objects.size());
+
+        Set<String> seen = new HashSet<>();
+        for (int i = 0; i < objects.size(); i++) {
+            CordraObject co = objects.get(i);
+            assertEquals(i < generator.movies ? "Movie" : "Person", co.type);
+            for (Map.Entry<String, JsonElement> entry : co.content.getAsJsonObject().entrySet()) {
+                if (!entry.getKey().equals(entry.getKey().toUpperCase())) continue;
+                for (JsonElement target : entry.getValue().getAsJsonArray()) {
+                    assertTrue(seen.contains(target.getAsString()), co.id + " refers to " + target + " before it exists");
+                }
+            }
+            seen.add(co.id);
+        }
+    }
+
+    @Test
+    void peopleAreNestedToTheConfiguredDepth() {
+        CorpusGenerator generator = generator(1);
+        generator.depth = 3;
+        JsonObject person = objects(generator).get(generator.movies).content.getAsJsonObject();
+        int levels = 0;
+        for (JsonObject career = person.getAsJsonObject("career"); career != null; career = career.getAsJsonObject("previous")) {
+            assertEquals(generator.arraySize, career.getAsJsonArray("credits").size());
+            levels++;
+        }
+        assertEquals(3, levels);
+        assertEquals(generator.arraySize, person.getAsJsonArray("aliases").size());
+    }
+
+    @Test
+    void withoutFanOutPeopleHaveNoRelationships() {
+        CorpusGenerator generator = generator(1);
+        generator.fanOut = 0;
+        for (CordraObject co : objects(generator)) {
+            if (!co.type.equals("Person")) continue;
+            for (String key : co.content.getAsJsonObject().keySet()) {
+                assertFalse(key.equals(key.toUpperCase()), co.id + " has " + key);
+            }
+        }
+    }
+
+    private static CorpusGenerator generator(long seed) {
+        CorpusGenerator generator = new CorpusGenerator();
+        generator.movies = 20;
+        generator.people = 200;
+        generator.hubs = 2;
+        generator.seed = seed;
+        return generator;
+    }
+
+    private static List<CordraObject> objects(CorpusGenerator generator) {
+        List<CordraObject> objects = new ArrayList<>();
+        generator.forEach(objects::add);
+        return objects;
+    }
+
+    private static List<String> contents(CorpusGenerator generator) {
+        List<String> contents = new ArrayList<>();
+        generator.forEach(co -> contents.add(co.id + " " + co.content));
+        return contents;
+    }
+}